@@ -17,13 +17,18 @@ Contributors : Pedro Gomes and Universidade do Minho.
  ***********************************************************************/
 package com.spidertracks.datanucleus;
 
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnLayout;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
 
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.cassandra.thrift.Column;
 import org.datanucleus.ClassLoaderResolver;
@@ -42,9 +47,18 @@ import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.collection.CassEntry;
+import com.spidertracks.datanucleus.collection.ElementLoader;
+import com.spidertracks.datanucleus.collection.EntryLoader;
+import com.spidertracks.datanucleus.collection.LazyList;
+import com.spidertracks.datanucleus.collection.LazyMap;
+import com.spidertracks.datanucleus.collection.LazySet;
+import com.spidertracks.datanucleus.collection.PagedColumnReader;
 import com.spidertracks.datanucleus.collection.ReadCollection;
 import com.spidertracks.datanucleus.collection.ReadMap;
+import com.spidertracks.datanucleus.collection.StoredColumns;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
+import com.spidertracks.datanucleus.utils.ColumnLayout;
 
 /**
  * @author Todd Nine
@@ -52,7 +66,14 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
  */
 public class CassandraFetchFieldManager extends AbstractFieldManager {
 
-	private Map<Bytes, Bytes> columns;
+	/**
+	 * The number of elements read at a time if the fetch plan has no fetch
+	 * size
+	 */
+	private static final int DEFAULT_FETCH_SIZE = 100;
+
+	private ColumnLayout layout;
+	private ByteBuffer[] values;
 	private AbstractClassMetaData metaData;
 	private ObjectProvider objectProvider;
 	private ByteConverterContext byteContext;
@@ -61,6 +82,8 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	private String columnFamily;
 	private Bytes rowKey;
 	private Selector selector;
+	private BatchFetchManager fetchManager;
+	private Map<Bytes, List<Column>> containerColumns;
 
 	/**
 	 * @param columns
@@ -68,6 +91,67 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	 */
 	public CassandraFetchFieldManager(List<Column> columns, ObjectProvider op,
 			String columnFamily, Bytes rowKey, Selector selector) {
+		this(op, columnFamily, rowKey, selector);
+
+		for (Column column : columns) {
+			setValue(column.name, column.value);
+		}
+	}
+
+	/**
+	 * @param columns
+	 *            The values of the columns that were read by their names
+	 * @param metaData
+	 */
+	public CassandraFetchFieldManager(Map<Bytes, Bytes> columns,
+			ObjectProvider op, String columnFamily, Bytes rowKey,
+			Selector selector) {
+		this(op, columnFamily, rowKey, selector);
+
+		for (Entry<Bytes, Bytes> column : columns.entrySet()) {
+			setValue(column.getKey().getBytes(), column.getValue().getBytes());
+		}
+	}
+
+	/**
+	 * @param row
+	 *            Every column of the row. The columns of collection, map and
+	 *            array fields are used instead of reading them again
+	 * @param metaData
+	 */
+	public CassandraFetchFieldManager(ObjectProvider op, String columnFamily,
+			Bytes rowKey, Selector selector, List<Column> row) {
+		this(op, columnFamily, rowKey, selector);
+
+		this.containerColumns = new HashMap<Bytes, List<Column>>();
+
+		for (Column column : row) {
+			int delimiter = indexOfDelimiter(column.name);
+
+			// a single column field
+			if (delimiter < 0) {
+				setValue(column.name, column.value);
+				continue;
+			}
+
+			byte[] fieldName = new byte[delimiter - column.name.position()];
+			column.name.duplicate().get(fieldName);
+
+			Bytes owner = Bytes.fromBytes(fieldName);
+
+			List<Column> fieldColumns = containerColumns.get(owner);
+
+			if (fieldColumns == null) {
+				fieldColumns = new ArrayList<Column>();
+				containerColumns.put(owner, fieldColumns);
+			}
+
+			fieldColumns.add(column);
+		}
+	}
+
+	private CassandraFetchFieldManager(ObjectProvider op, String columnFamily,
+			Bytes rowKey, Selector selector) {
 		super();
 
 		this.objectProvider = op;
@@ -79,17 +163,57 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 		this.columnFamily = columnFamily;
 		this.rowKey = rowKey;
 		this.selector = selector;
+		this.layout = getColumnLayout(metaData);
+		this.values = new ByteBuffer[layout.size()];
+		this.fetchManager = ((CassandraStoreManager) context.getStoreManager())
+				.getFetchManager();
+	}
 
-		// rather than iterate over every field call for O(n) it's faster to
-		// take our O(n) hit up front then perform an O(1) lookup. Sorting and
-		// searching is O(n log (n)) sort plus log n search
-		this.columns = new HashMap<Bytes, Bytes>();
+	/**
+	 * Set the value of the column if it's a column of one of our fields
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	private void setValue(ByteBuffer name, ByteBuffer value) {
+		int index = layout.indexOf(name);
 
-		for (Column column : columns) {
-			this.columns.put(Bytes.fromBytes(column.getName()),
-					Bytes.fromBytes(column.getValue()));
+		if (index > -1) {
+			values[index] = value;
 		}
+	}
 
+	/**
+	 * Get the value of the column of the field, null if it wasn't read
+	 * 
+	 * @param fieldNumber
+	 * @return
+	 */
+	private Bytes getValue(int fieldNumber) {
+		int index = layout.getIndex(fieldNumber);
+
+		if (index < 0 || values[index] == null) {
+			return null;
+		}
+
+		return Bytes.fromByteBuffer(values[index].duplicate());
+	}
+
+	/**
+	 * Get the position of the delimiter between the field name and the key of
+	 * an element column. Returns -1 if the name has no delimiter
+	 * 
+	 * @param name
+	 * @return
+	 */
+	private static int indexOfDelimiter(ByteBuffer name) {
+		for (int i = name.position(); i < name.limit(); i++) {
+			if (name.get(i) == 0) {
+				return i;
+			}
+		}
+
+		return -1;
 	}
 
 	@Override
@@ -97,10 +221,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes value = this.columns.get(columnName);
+			Bytes value = getValue(fieldNumber);
 
-			return (Boolean) byteContext.getBoolean(value);
+			return byteContext.readBoolean(value);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -111,8 +234,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public byte fetchByteField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes value = this.columns.get(columnName);
+			Bytes value = getValue(fieldNumber);
 
 			return value.toByte();
 
@@ -125,10 +247,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public char fetchCharField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes value = this.columns.get(columnName);
+			Bytes value = getValue(fieldNumber);
 
-			return (Character) byteContext.getCharacter(value);
+			return byteContext.readChar(value);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -139,10 +260,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public double fetchDoubleField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes value = this.columns.get(columnName);
+			Bytes value = getValue(fieldNumber);
 
-			return (Double) byteContext.getDouble(value);
+			return byteContext.readDouble(value);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -153,10 +273,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public float fetchFloatField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes value = this.columns.get(columnName);
+			Bytes value = getValue(fieldNumber);
 
-			return (Float) byteContext.getFloat(value);
+			return byteContext.readFloat(value);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -167,10 +286,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public int fetchIntField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes column = this.columns.get(columnName);
+			Bytes column = getValue(fieldNumber);
 
-			return (Integer) byteContext.getInteger(column);
+			return byteContext.readInt(column);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -181,10 +299,9 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public long fetchLongField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes column = this.columns.get(columnName);
+			Bytes column = getValue(fieldNumber);
 
-			return (Long) byteContext.getLong(column);
+			return byteContext.readLong(column);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -196,8 +313,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public Object fetchObjectField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes column = columns.get(columnName);
+			Bytes column = getValue(fieldNumber);
 
 			AbstractMemberMetaData fieldMetaData = this.metaData
 					.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber);
@@ -239,6 +355,8 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 					|| relationType == Relation.ONE_TO_MANY_BI
 					|| relationType == Relation.ONE_TO_MANY_UNI) {
 
+				Bytes columnName = getColumnName(metaData, fieldNumber);
+
 				if (Collection.class.isAssignableFrom(fieldMetaData.getType())) {
 
 					Collection<Object> coll;
@@ -255,30 +373,37 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 						throw new NucleusDataStoreException(e.getMessage(), e);
 					}
 
-					// loop through the super columns
-
-					// get our list of Strings
+					int pageSize = getFetchSize();
 
 					ReadCollection columnFetcher = new ReadCollection(selector, 
 							byteContext, columnFamily, rowKey, columnName,
 							context, elementClass);
 
-					// TODO use context.getFetchPlan().getFetchSize()
-					columnFetcher.fetchColumns(100, null);
+					readColumns(columnFetcher, columnName, pageSize);
 
-					for (Object key : columnFetcher) {
+					ElementLoader loader = new ElementLoader(objectProvider,
+							fieldNumber, columnFetcher, fetchManager,
+							elementClass, fieldMetaData.getTypeName(),
+							pageSize);
 
-						try {
-							Object element = context.findObject(key, false,
-									true, fieldMetaData.getTypeName());
+					loader.loadPage();
 
-							coll.add(element);
-						} catch (NucleusObjectNotFoundException nonfe) {
-							// swallow. TODO remove the lazy reference if record
-							// is over tombstone time
+					// more than a page, only load the rest as it's used
+					if (!loader.isComplete()) {
+						Collection<Object> lazy = createLazyCollection(
+								fieldMetaData.getType(), loader);
+
+						if (lazy != null) {
+							StoredColumns.remove(objectProvider, fieldNumber);
+							return lazy;
 						}
 					}
 
+					coll.addAll(loader.loadAll());
+
+					setStoredColumns(fieldNumber,
+							columnFetcher.getStoredColumns());
+
 					if (coll.size() == 0) {
 						return null;
 					}
@@ -327,49 +452,35 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 										clr, context.getMetaDataManager()));
 					}
 
-					// TODO use context.getFetchPlan().getFetchSize()
+					int pageSize = getFetchSize();
+
 					ReadMap mapReader = new ReadMap(selector, byteContext, columnFamily,
 							rowKey, columnName, storedKeyClass,
 							storedValueClass);
-					mapReader.fetchColumns(100, null);
-
-					for (CassEntry entry : mapReader) {
-
-						try {
-							Object key = null;
-
-							if (pcKey) {
-
-								key = context.findObject(
-										context.newObjectId(keyClass,
-												entry.getKey()), false, true,
-
-										fieldMetaData.getTypeName());
-							} else {
-								key = entry.getKey();
-							}
-
-							Object value = null;
-
-							if (pcValue) {
-								value = context.findObject(
-										context.newObjectId(valueClass,
-												entry.getValue()), false, true,
-
-										fieldMetaData.getTypeName());
-							} else {
-								value = entry.getValue();
-							}
-
-							map.put(key, value);
-						} catch (NucleusObjectNotFoundException nonfe) {
-							// swallow. TODO remove the lazy reference if record
-							// is over
-							// tombstone time
-						}
+					readColumns(mapReader, columnName, pageSize);
+
+					EntryLoader loader = new EntryLoader(objectProvider,
+							fieldNumber, mapReader, fetchManager,
+							pcKey ? keyClass : null, pcValue ? valueClass
+									: null, fieldMetaData.getTypeName(),
+							pageSize);
+
+					loader.loadPage();
+
+					// more than a page, only load the rest as it's used
+					if (!loader.isComplete()
+							&& fieldMetaData.getType().isAssignableFrom(
+									LazyMap.class)) {
+						StoredColumns.remove(objectProvider, fieldNumber);
+						return new LazyMap(loader);
+					}
 
+					for (CassEntry entry : loader.loadAll()) {
+						map.put(entry.getKey(), entry.getValue());
 					}
 
+					setStoredColumns(fieldNumber, mapReader.getStoredColumns());
+
 					if (map.size() == 0) {
 						return null;
 					}
@@ -379,30 +490,38 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 
 				} else if (fieldMetaData.getType().isArray()) {
 
+					int pageSize = getFetchSize();
+
 					ReadMap mapReader = new ReadMap(selector, byteContext, columnFamily,
 							rowKey, columnName, Integer.class,
 							byteContext.getKeyClass(context, metaData));
-					mapReader.fetchColumns(100, null);
-
-					int columns = mapReader.getColumnCount();
-
-					// TODO make this size more
-					Object array = Array.newInstance(fieldMetaData.getType()
-							.getComponentType(), columns);
+					readColumns(mapReader, columnName, pageSize);
 
 					Class<?> elementClass = clr.classForName(fieldMetaData
 							.getArray().getElementType());
 
-					for (int i = 0; mapReader.hasNext(); i++) {
+					EntryLoader loader = new EntryLoader(objectProvider,
+							fieldNumber, mapReader, fetchManager, null,
+							elementClass, fieldMetaData.getTypeName(),
+							pageSize);
 
-						CassEntry entry = mapReader.next();
+					// arrays can't be loaded lazily
+					List<CassEntry> entries = loader.loadAll();
 
-						Object id = context.newObjectId(elementClass,
-								entry.getValue());
+					setStoredColumns(fieldNumber, mapReader.getStoredColumns());
 
-						Object element = context.findObject(id, false, true, fieldMetaData.getTypeName());
+					int length = mapReader.getColumnCount();
 
-						Array.set(array, (Integer) entry.getKey(), element);
+					for (CassEntry entry : entries) {
+						length = Math.max(length, (Integer) entry.getKey() + 1);
+					}
+
+					Object array = Array.newInstance(fieldMetaData.getType()
+							.getComponentType(), length);
+
+					for (CassEntry entry : entries) {
+						Array.set(array, (Integer) entry.getKey(),
+								entry.getValue());
 					}
 
 					return objectProvider.wrapSCOField(fieldNumber, array,
@@ -423,14 +542,91 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 		}
 	}
 
+	/**
+	 * Read the first page of the columns of the field. If the whole row was
+	 * read the columns that were read with it are used instead
+	 * 
+	 * @param reader
+	 * @param columnName
+	 * @param pageSize
+	 */
+	private void readColumns(PagedColumnReader<?> reader, Bytes columnName,
+			int pageSize) {
+		if (containerColumns == null) {
+			reader.fetchColumns(pageSize, null);
+			return;
+		}
+
+		List<Column> fieldColumns = containerColumns.get(columnName);
+
+		if (fieldColumns == null) {
+			fieldColumns = Collections.emptyList();
+		}
+
+		reader.setColumns(fieldColumns);
+	}
+
+	/**
+	 * Get the number of elements read at a time from the fetch plan. Uses
+	 * {@link #DEFAULT_FETCH_SIZE} if the fetch plan doesn't set a size
+	 * 
+	 * @return
+	 */
+	private int getFetchSize() {
+		int fetchSize = context.getFetchPlan().getFetchSize();
+
+		if (fetchSize <= 0) {
+			return DEFAULT_FETCH_SIZE;
+		}
+
+		return fetchSize;
+	}
+
+	/**
+	 * Create a lazy collection of the elements if the type of the field
+	 * allows it. Returns null otherwise
+	 * 
+	 * @param type
+	 * @param loader
+	 * @return
+	 */
+	private Collection<Object> createLazyCollection(Class<?> type,
+			ElementLoader loader) {
+		if (type.isAssignableFrom(LazyList.class)) {
+			return new LazyList(loader);
+		}
+
+		if (type.isAssignableFrom(LazySet.class)) {
+			return new LazySet(loader);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Record the columns read for the field so the next write of the field
+	 * doesn't need to read them again
+	 * 
+	 * @param fieldNumber
+	 * @param stored
+	 *            The stored columns, null if not all of them were read
+	 */
+	private void setStoredColumns(int fieldNumber, Map<Bytes, Bytes> stored) {
+		if (stored == null) {
+			StoredColumns.remove(objectProvider, fieldNumber);
+			return;
+		}
+
+		StoredColumns.set(objectProvider, fieldNumber, stored);
+	}
+
 	@Override
 	public short fetchShortField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes column = this.columns.get(columnName);
+			Bytes column = getValue(fieldNumber);
 
-			return (Short) byteContext.getShort(column);
+			return byteContext.readShort(column);
 
 		} catch (Exception e) {
 			throw new NucleusException(e.getMessage(), e);
@@ -441,8 +637,7 @@ public class CassandraFetchFieldManager extends AbstractFieldManager {
 	public String fetchStringField(int fieldNumber) {
 		try {
 
-			Bytes columnName = getColumnName(metaData, fieldNumber);
-			Bytes column = this.columns.get(columnName);
+			Bytes column = getValue(fieldNumber);
 
 			return (String) byteContext.getString(column);
 
@@ -22,6 +22,7 @@ import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnName;
 import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 import org.datanucleus.ClassLoaderResolver;
@@ -35,12 +36,20 @@ import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.datanucleus.store.fieldmanager.AbstractFieldManager;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.collection.CassEntry;
+import com.spidertracks.datanucleus.collection.LazyList;
+import com.spidertracks.datanucleus.collection.LazyLoader;
+import com.spidertracks.datanucleus.collection.LazyMap;
+import com.spidertracks.datanucleus.collection.LazySet;
+import com.spidertracks.datanucleus.collection.StoredColumns;
 import com.spidertracks.datanucleus.collection.WriteCollection;
 import com.spidertracks.datanucleus.collection.WriteMap;
+import com.spidertracks.datanucleus.convert.ByteBufferArena;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
+import com.spidertracks.datanucleus.mutate.ExecutionContextMutate;
 
 /**
  * @author Todd Nine
@@ -50,23 +59,35 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
 	private ExecutionContext context;
 	private Selector selector;
-	private Mutator mutator;
+	private ExecutionContextMutate mutate;
+	private BatchMutator mutator;
+	private ByteBufferArena arena;
 	private AbstractClassMetaData metaData;
 	private ObjectProvider objectProvider;
 	private String columnFamily;
 	private ByteConverterContext byteContext;
 	private Bytes key;
+	private boolean insert;
 
 	/**
-	 * @param columns
-	 * @param metaData
+	 * @param selector
+	 * @param mutate
+	 * @param op
+	 * @param columnFamily
+	 * @param key
+	 * @param insert
+	 *            True if the row is new. Nothing can be stored for it, so no
+	 *            columns are read or deleted
 	 */
-	public CassandraInsertFieldManager(Selector selector, Mutator mutator,
-			ObjectProvider op, String columnFamily, Bytes key) {
+	public CassandraInsertFieldManager(Selector selector,
+			ExecutionContextMutate mutate, ObjectProvider op,
+			String columnFamily, Bytes key, boolean insert) {
 		super();
 
 		this.selector = selector;
-		this.mutator = mutator;
+		this.mutate = mutate;
+		this.mutator = mutate.getMutator();
+		this.arena = mutate.getArena();
 		this.objectProvider = op;
 		this.metaData = op.getClassMetaData();
 		this.context = op.getExecutionContext();
@@ -74,6 +95,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 				.getByteConverterContext();
 		this.columnFamily = columnFamily;
 		this.key = key;
+		this.insert = insert;
 
 	}
 
@@ -83,7 +105,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
@@ -110,7 +132,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
@@ -123,7 +145,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
@@ -136,7 +158,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
 		}
@@ -148,7 +170,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
@@ -161,7 +183,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
@@ -173,7 +195,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
@@ -209,7 +231,7 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
 				// delete operation
 				if (value == null) {
-					this.mutator.deleteColumn(columnFamily, key, columnName);
+					deleteColumn(columnName);
 					return;
 				}
 
@@ -237,30 +259,57 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 
 					WriteCollection collectionWriter = new WriteCollection(
 							selector, byteContext, columnFamily, key,
-							columnName);
+							columnName, getStoredColumns(fieldNumber), arena,
+							StoredColumns.isRecorded(context));
 
 					if (value == null) {
 						collectionWriter.removeAllColumns(mutator);
+						mutate.setStoredColumns(objectProvider, fieldNumber,
+								collectionWriter.getSavedColumns());
 						return;
 					}
 
-					Object persisted = null;
-					Object objectPk = null;
+					LazyLoader<Object> lazy = getLazyElements(value,
+							fieldNumber);
 
-					for (Object element : (Collection<?>) value) {
-						// persist the object
-						persisted = context.persistObjectInternal(element,
-								objectProvider, fieldNumber, 0);
+					// only the changes of a lazy collection are written
+					if (lazy != null) {
+						for (Object element : lazy.getAdded()) {
+							writeElement(collectionWriter, element,
+									fieldNumber);
+						}
 
-						objectPk = context.getApiAdapter().getIdForObject(
-								persisted);
+						for (Object element : lazy.getRemoved()) {
+							Object objectPk = context.getApiAdapter()
+									.getIdForObject(element);
+
+							// never stored if it has no identity
+							if (objectPk != null) {
+								collectionWriter.removeRelationship(mutator,
+										objectPk);
+							}
+						}
+
+						if (lazy.isCleared()) {
+							collectionWriter.removeRemaining(mutator);
+						}
+
+						// the changes are kept until they are written
+						mutate.resetChangesOnExecute(lazy);
+
+						return;
+					}
 
-						collectionWriter.writeRelationship(mutator, objectPk);
+					for (Object element : (Collection<?>) value) {
+						writeElement(collectionWriter, element, fieldNumber);
 					}
 
-					// TODO remove this when SCO is working
+					// only reads if the stored columns aren't known
 					collectionWriter.removeRemaining(mutator);
 
+					mutate.setStoredColumns(objectProvider, fieldNumber,
+							collectionWriter.getSavedColumns());
+
 					objectProvider.wrapSCOField(fieldNumber, value, true, true,
 							true);
 
@@ -269,68 +318,68 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 				} else if (fieldMetaData.hasMap()) {
 
 					WriteMap mapWriter = new WriteMap(selector, byteContext,
-							columnFamily, key, columnName);
+							columnFamily, key, columnName,
+							getStoredColumns(fieldNumber), arena,
+							StoredColumns.isRecorded(context));
 
 					if (value == null) {
 						mapWriter.removeAllColumns(mutator);
+						mutate.setStoredColumns(objectProvider, fieldNumber,
+								mapWriter.getSavedColumns());
 						return;
 					}
 
-					ApiAdapter adapter = context.getApiAdapter();
-
-					Map<?, ?> map = ((Map<?, ?>) value);
-
-					// serialized values to store per item
-					Object serializedKey = null;
-					Object serializedValue = null;
-
-					// value set by the user in the map
-					Object mapValue = null;
+					LazyLoader<CassEntry> lazy = getLazyEntries(value,
+							fieldNumber);
 
-					// pointer to what we persisted
-					Object persisted = null;
-
-					// get each element and persist it.
-					for (Object mapKey : map.keySet()) {
-
-						mapValue = map.get(mapKey);
-
-						// handle the case if our key is a persistent class
-						// itself
-						if (adapter.isPersistable(mapKey)) {
-
-							persisted = context.persistObjectInternal(mapKey,
-									objectProvider, fieldNumber,
-									0);
+					// only the changes of a lazy map are written
+					if (lazy != null) {
+						ApiAdapter adapter = context.getApiAdapter();
 
-							serializedKey = context.getApiAdapter()
-									.getIdForObject(persisted);
-						} else {
-							serializedKey = mapKey;
+						for (CassEntry entry : lazy.getAdded()) {
+							writeEntry(mapWriter, entry.getKey(),
+									entry.getValue(), fieldNumber);
 						}
 
-						// persist the value if it can be persisted
-						if (adapter.isPersistable(mapValue)) {
+						for (Object mapKey : lazy.getRemoved()) {
+							Object serializedKey = mapKey;
 
-							persisted = context.persistObjectInternal(mapValue,
-									objectProvider, fieldNumber,
-									0);
+							if (adapter.isPersistable(mapKey)) {
+								serializedKey = adapter.getIdForObject(mapKey);
+							}
 
-							serializedValue = context.getApiAdapter()
-									.getIdForObject(persisted);
+							// never stored if it has no identity
+							if (serializedKey != null) {
+								mapWriter.removeRelationship(mutator,
+										serializedKey);
+							}
+						}
 
-						} else {
-							serializedValue = mapValue;
+						if (lazy.isCleared()) {
+							mapWriter.removeRemaining(mutator);
 						}
 
-						mapWriter.writeRelationship(mutator, serializedKey,
-								serializedValue);
+						// the changes are kept until they are written
+						mutate.resetChangesOnExecute(lazy);
 
-						// TODO remove this when SCO is working
-						mapWriter.removeRemaining(mutator);
+						return;
+					}
 
+					// get each element and persist it. Iterate the entries
+					// so each value isn't looked up again
+					for (Map.Entry<?, ?> entry : ((Map<?, ?>) value)
+							.entrySet()) {
+						writeEntry(mapWriter, entry.getKey(),
+								entry.getValue(), fieldNumber);
 					}
 
+					// only once every entry is written, otherwise entries not
+					// yet written would be removed
+					mapWriter.removeRemaining(mutator);
+
+					mutate.setStoredColumns(objectProvider, fieldNumber,
+							mapWriter.getSavedColumns());
+
 					objectProvider.wrapSCOField(fieldNumber, value, true, true,
 							true);
 
@@ -342,10 +391,14 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 					Object objectPk = null;
 
 					WriteMap mapWriter = new WriteMap(selector, byteContext,
-							columnFamily, key, columnName);
+							columnFamily, key, columnName,
+							getStoredColumns(fieldNumber), arena,
+							StoredColumns.isRecorded(context));
 
 					if (value == null) {
 						mapWriter.removeAllColumns(mutator);
+						mutate.setStoredColumns(objectProvider, fieldNumber,
+								mapWriter.getSavedColumns());
 						return;
 					}
 
@@ -362,8 +415,11 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 						mapWriter.writeRelationship(mutator, i, objectPk);
 					}
 
-					// TODO remove this when SCO is working
+					// only reads if the stored columns aren't known
 					mapWriter.removeRemaining(mutator);
+
+					mutate.setStoredColumns(objectProvider, fieldNumber,
+							mapWriter.getSavedColumns());
 				}
 
 				objectProvider.wrapSCOField(fieldNumber, value, true, true,
@@ -373,11 +429,11 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 			}
 
 			if (value == null) {
-				this.mutator.deleteColumn(columnFamily, key, columnName);
+				deleteColumn(columnName);
 				return;
 			}
 
-			Bytes data = byteContext.getBytes(value);
+			Bytes data = byteContext.getBytes(value, arena);
 
 			mutator.writeColumn(columnFamily, key,
 					mutator.newColumn(columnName, data));
@@ -392,17 +448,147 @@ public class CassandraInsertFieldManager extends AbstractFieldManager {
 		try {
 
 			if (value == null) {
-				mutator.deleteColumn(columnFamily, key,
-						getColumnName(metaData, fieldNumber));
+				deleteColumn(getColumnName(metaData, fieldNumber));
 				return;
 			}
 
 			mutator.writeColumn(columnFamily, key, mutator.newColumn(
 					getColumnName(metaData, fieldNumber),
-					byteContext.getBytes(value)));
+					byteContext.getBytes(value, arena)));
 
 		} catch (Exception e) {
 			throw new NucleusDataStoreException(e.getMessage(), e);
 		}
 	}
+
+	/**
+	 * Persist the element and write its column
+	 * 
+	 * @param writer
+	 * @param element
+	 * @param fieldNumber
+	 */
+	private void writeElement(WriteCollection writer, Object element,
+			int fieldNumber) {
+		// persist the object
+		Object persisted = context.persistObjectInternal(element,
+				objectProvider, fieldNumber, 0);
+
+		Object objectPk = context.getApiAdapter().getIdForObject(persisted);
+
+		writer.writeRelationship(mutator, objectPk);
+	}
+
+	/**
+	 * Persist the key and value of the entry if they can be persisted and
+	 * write its column
+	 * 
+	 * @param writer
+	 * @param mapKey
+	 *            The key set by the user in the map
+	 * @param mapValue
+	 *            The value set by the user in the map
+	 * @param fieldNumber
+	 */
+	private void writeEntry(WriteMap writer, Object mapKey, Object mapValue,
+			int fieldNumber) {
+		ApiAdapter adapter = context.getApiAdapter();
+
+		// serialized values to store per item
+		Object serializedKey = mapKey;
+		Object serializedValue = mapValue;
+
+		// handle the case if our key is a persistent class itself
+		if (adapter.isPersistable(mapKey)) {
+			Object persisted = context.persistObjectInternal(mapKey,
+					objectProvider, fieldNumber, 0);
+
+			serializedKey = adapter.getIdForObject(persisted);
+		}
+
+		// persist the value if it can be persisted
+		if (adapter.isPersistable(mapValue)) {
+			Object persisted = context.persistObjectInternal(mapValue,
+					objectProvider, fieldNumber, 0);
+
+			serializedValue = adapter.getIdForObject(persisted);
+		}
+
+		writer.writeRelationship(mutator, serializedKey, serializedValue);
+	}
+
+	/**
+	 * Get the loader of a lazy collection loaded for the field of this
+	 * object. Its changes are written instead of every element
+	 * 
+	 * @param value
+	 * @param fieldNumber
+	 * @return The loader, null if the value isn't a lazy collection of the
+	 *         field
+	 */
+	private LazyLoader<Object> getLazyElements(Object value, int fieldNumber) {
+		LazyLoader<Object> loader = null;
+
+		if (value instanceof LazyList) {
+			loader = ((LazyList) value).getLoader();
+		} else if (value instanceof LazySet) {
+			loader = ((LazySet) value).getLoader();
+		}
+
+		if (loader == null || !loader.isOwner(objectProvider, fieldNumber)) {
+			return null;
+		}
+
+		return loader;
+	}
+
+	/**
+	 * Get the loader of a lazy map loaded for the field of this object. Its
+	 * changes are written instead of every entry
+	 * 
+	 * @param value
+	 * @param fieldNumber
+	 * @return The loader, null if the value isn't a lazy map of the field
+	 */
+	private LazyLoader<CassEntry> getLazyEntries(Object value,
+			int fieldNumber) {
+		if (!(value instanceof LazyMap)) {
+			return null;
+		}
+
+		LazyLoader<CassEntry> loader = ((LazyMap) value).getLoader();
+
+		if (!loader.isOwner(objectProvider, fieldNumber)) {
+			return null;
+		}
+
+		return loader;
+	}
+
+	/**
+	 * Delete the column. Nothing to do on insert since the row is new
+	 * 
+	 * @param columnName
+	 */
+	private void deleteColumn(Bytes columnName) {
+		if (insert) {
+			return;
+		}
+
+		mutator.deleteColumn(columnFamily, key, columnName);
+	}
+
+	/**
+	 * Get the columns stored for the collection field. A new row has none
+	 * 
+	 * @param fieldNumber
+	 * @return
+	 */
+	private Map<Bytes, Bytes> getStoredColumns(int fieldNumber) {
+		if (insert) {
+			return Collections.emptyMap();
+		}
+
+		return StoredColumns.get(objectProvider, fieldNumber);
+	}
 }
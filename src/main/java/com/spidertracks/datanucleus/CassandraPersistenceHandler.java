@@ -18,8 +18,11 @@ Contributors : Pedro Gomes and Universidade do Minho.
 package com.spidertracks.datanucleus;
 
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnNames;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchColumnList;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.hasContainerFields;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.isIdentityGenerated;
 
 import java.lang.reflect.Array;
 import java.util.Collection;
@@ -40,14 +43,16 @@ import org.datanucleus.store.AbstractPersistenceHandler;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Pelops;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.RowCache;
 import com.spidertracks.datanucleus.mutate.BatchMutationManager;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 import com.spidertracks.datanucleus.mutate.ExecutionContextDelete;
+import com.spidertracks.datanucleus.mutate.ExecutionContextMutate;
 
 /**
  * Persistence handler for our DN plugin
@@ -83,14 +88,21 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 		ExecutionContextDelete delete = this.batchManager.beginDelete(ec, op);
 
-		// we've already visited this object, do nothing
+		// we've already visited this object, do nothing. We still need to end
+		// the delete we began, otherwise the root would never be executed
 		if (!delete.addDeletion(op, key, columnFamily)) {
+			endDelete(ec);
 			return;
 		}
 
 		// delete our dependent objects as well.
 		AbstractClassMetaData metaData = op.getClassMetaData();
 
+		// the key may be written again with another class
+		manager.getClassNameCache().invalidate(
+				metaData.getBaseAbstractClassMetaData().getFullClassName(), key);
+		manager.getFetchManager().invalidatePending(ec, key);
+
 		int[] fields = metaData.getAllMemberPositions();
 
 		for (int current : fields) {
@@ -140,12 +152,14 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 						ApiAdapter adapter = ec.getApiAdapter();
 
 						Map<?, ?> map = ((Map<?, ?>) value);
+						Object mapKey;
 						Object mapValue;
 
-						// get each element and persist it.
-						for (Object mapKey : map.keySet()) {
+						// get each element and delete it.
+						for (Map.Entry<?, ?> entry : map.entrySet()) {
 
-							mapValue = map.get(mapKey);
+							mapKey = entry.getKey();
+							mapValue = entry.getValue();
 
 							// handle the case if our key is a persistent
 							// class
@@ -178,6 +192,16 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 		}
 
+		endDelete(ec);
+	}
+
+	/**
+	 * End the delete for the execution context, executing the row deletions
+	 * if this was the root object of the delete
+	 * 
+	 * @param ec
+	 */
+	private void endDelete(ExecutionContext ec) {
 		try {
 			this.batchManager.endDelete(ec);
 
@@ -197,8 +221,66 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 		Selector selector = Pelops.createSelector(manager.getPoolName());
 
-		List<Column> columns = selector.getColumnsFromRow(columnFamily, key,
-				getFetchColumnList(metaData, fieldNumbers), Consistency.get());
+		// use the row if it was already read with the page of a query
+		List<Column> columns = manager.getFetchManager().consume(
+				op.getExecutionContext(), columnFamily,
+				metaData.getFullClassName(), key, fieldNumbers);
+
+		// read the elements of every collection with the rest of the row
+		// rather than a slice per field
+		if (columns == null
+				&& manager.isFetchWholeRow()
+				&& hasContainerFields(metaData, op.getExecutionContext()
+						.getClassLoaderResolver(), fieldNumbers)) {
+
+			List<Column> row = manager.getFetchManager().readRow(selector,
+					columnFamily, key, manager.getFetchWholeRowMaxColumns());
+
+			// a row too large to hold is read a field at a time below
+			if (row != null) {
+				if (row.size() == 0) {
+					pksearched(metaData, fieldNumbers);
+				}
+
+				op.replaceFields(fieldNumbers, new CassandraFetchFieldManager(
+						op, columnFamily, key, selector, row));
+
+				return;
+			}
+		}
+
+		RowCache cache = manager.getRowCache();
+
+		if (columns == null && cache != null) {
+			Bytes[] names = getColumnNames(metaData, fieldNumbers);
+
+			Map<Bytes, Bytes> cached = cache.get(columnFamily, key, names);
+
+			// every column was read recently, don't read them again
+			if (cached != null) {
+				if (cached.size() == 0) {
+					pksearched(metaData, fieldNumbers);
+				}
+
+				op.replaceFields(fieldNumbers, new CassandraFetchFieldManager(
+						cached, op, columnFamily, key, selector));
+
+				return;
+			}
+
+			long stamp = cache.getStamp();
+
+			columns = selector.getColumnsFromRow(columnFamily, key,
+					Selector.newColumnsPredicate(names), Consistency.get());
+
+			cache.put(columnFamily, key, names, columns, stamp);
+		}
+
+		if (columns == null) {
+			columns = selector.getColumnsFromRow(columnFamily, key,
+					getFetchColumnList(metaData, fieldNumbers),
+					Consistency.get());
+		}
 
 		// nothing to do
 		if (columns == null || columns.size() == 0) {
@@ -247,8 +329,8 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 	@Override
 	public void insertObject(ObjectProvider op) {
-		// just delegate to update. They both perform the same logic
-		updateObject(op, op.getClassMetaData().getAllMemberPositions());
+		// a new object, write every field as well as the discriminator
+		writeObject(op, op.getClassMetaData().getAllMemberPositions(), true);
 
 	}
 
@@ -260,6 +342,28 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 
 	@Override
 	public void updateObject(ObjectProvider op, int[] fieldNumbers) {
+		// only the dirty fields are passed to us, don't re-write the rest of
+		// the row
+		writeObject(op, fieldNumbers, false);
+	}
+
+	/**
+	 * Write the given fields of the object to the mutation for this execution
+	 * context. The discriminator is only written on insert since it can never
+	 * change once the row exists.
+	 * 
+	 * @param op
+	 *            The object to write
+	 * @param fieldNumbers
+	 *            The fields to write
+	 * @param insert
+	 *            True if this is the first write of the object. If its
+	 *            identity was generated nothing can be stored for the row, so
+	 *            the write never reads or deletes. Otherwise the object may
+	 *            replace a stored row and every stale column is removed
+	 */
+	private void writeObject(ObjectProvider op, int[] fieldNumbers,
+			boolean insert) {
 		this.manager.assertReadOnlyForUpdateOfObject(op);
 
 		AbstractClassMetaData metaData = op.getClassMetaData();
@@ -267,21 +371,26 @@ public class CassandraPersistenceHandler extends AbstractPersistenceHandler {
 		ExecutionContext ec = op.getExecutionContext();
 
 		// signal a write is about to start
-		Mutator mutator = this.batchManager.beginWrite(ec).getMutator();
+		ExecutionContextMutate mutate = this.batchManager.beginWrite(ec);
+		BatchMutator mutator = mutate.getMutator();
 		Selector selector = Pelops.createSelector(manager.getPoolName());
 
 
 		Bytes key = byteContext.getRowKey(op);
 		String columnFamily = getColumnFamily(metaData);
 
+		// a row held for a fetch no longer matches what is stored
+		this.manager.getFetchManager().invalidatePending(ec, key);
+
 		// Write our all our primary object data
 		CassandraInsertFieldManager manager = new CassandraInsertFieldManager(
-				selector, mutator, op, columnFamily, key);
+				selector, mutate, op, columnFamily, key, insert
+						&& isIdentityGenerated(metaData));
 
-		op.provideFields(metaData.getAllMemberPositions(), manager);
+		op.provideFields(fieldNumbers, manager);
 
 		// if we have a discriminator, write the value
-		if (metaData.hasDiscriminatorStrategy()) {
+		if (insert && metaData.hasDiscriminatorStrategy()) {
 			DiscriminatorMetaData discriminator = metaData
 					.getDiscriminatorMetaData();
 
@@ -19,14 +19,32 @@ Contributors : Pedro Gomes and Universidade do Minho.
 package com.spidertracks.datanucleus;
 
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDefaultFetchColumns;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDefaultFetchFields;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDescriminatorColumn;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.OMFContext;
@@ -43,8 +61,17 @@ import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.convert.SlabPool;
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
+import com.spidertracks.datanucleus.fetch.ClassNameCache;
+import com.spidertracks.datanucleus.fetch.FetchedRow;
+import com.spidertracks.datanucleus.fetch.RowCache;
+import com.spidertracks.datanucleus.mutate.FlushMode;
 import com.spidertracks.datanucleus.serialization.JavaSerializer;
 import com.spidertracks.datanucleus.serialization.Serializer;
+import com.spidertracks.datanucleus.utils.BlockingSubmitPolicy;
+import com.spidertracks.datanucleus.utils.DaemonThreadFactory;
+import com.spidertracks.datanucleus.utils.PartitionerReader;
 
 public class CassandraStoreManager extends AbstractStoreManager {
 
@@ -58,6 +85,26 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	private static final String SERIALIZER = "com.spidertracks.cassandra.serializer";
 	private static final String BYTEMAPPER = "com.spidertracks.cassandra.bytemapper";
 	private static final String CHECKSLEEPTIME = "com.spidertracks.cassandra.checksleep";
+	private static final String FLUSH_MODE = "com.spidertracks.cassandra.flushMode";
+	private static final String BATCH_MAX_BYTES = "com.spidertracks.cassandra.batch.maxBytes";
+	private static final String BATCH_MAX_COLUMNS = "com.spidertracks.cassandra.batch.maxColumns";
+	private static final String BATCH_MAX_ROWS = "com.spidertracks.cassandra.batch.maxRows";
+	private static final String BATCH_THREADS = "com.spidertracks.cassandra.batch.threads";
+	private static final String ASYNC_THREADS = "com.spidertracks.cassandra.async.threads";
+	private static final String ASYNC_QUEUE_SIZE = "com.spidertracks.cassandra.async.queueSize";
+	private static final String ASYNC_WAIT_ON_COMMIT = "com.spidertracks.cassandra.async.waitOnCommit";
+	private static final String FETCH_BATCH_SIZE = "com.spidertracks.cassandra.fetch.batchSize";
+	private static final String QUERY_FETCH_DEFAULT_GROUP = "com.spidertracks.cassandra.query.fetchDefaultGroup";
+	private static final String QUERY_ORDERED_KEYS = "com.spidertracks.cassandra.query.orderedKeys";
+	private static final String FETCH_WHOLE_ROW = "com.spidertracks.cassandra.fetch.wholeRow";
+	private static final String FETCH_WHOLE_ROW_MAX_COLUMNS = "com.spidertracks.cassandra.fetch.wholeRowMaxColumns";
+	private static final String ROW_CACHE_MAX_SIZE = "com.spidertracks.cassandra.rowCache.maxSize";
+	private static final String ROW_CACHE_TTL = "com.spidertracks.cassandra.rowCache.ttl";
+	private static final String CLASS_CACHE_MAX_SIZE = "com.spidertracks.cassandra.classCache.maxSize";
+	private static final String CLASS_CACHE_TTL = "com.spidertracks.cassandra.classCache.ttl";
+	private static final String PROBE_THREADS = "com.spidertracks.cassandra.probe.threads";
+	private static final String QUERY_THREADS = "com.spidertracks.cassandra.query.threads";
+	private static final String SCAN_SPLITS = "com.spidertracks.cassandra.scan.splits";
 	
 	
 	private boolean autoCreateSchema = false;
@@ -67,10 +114,33 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	private int poolTimeBetweenEvictionRunsMillis;
 	private int poolMinEvictableIdleTimeMillis;
 	private long checkSleepTime;
+	private FlushMode flushMode;
+	private int batchMaxBytes;
+	private int batchMaxColumns;
+	private int batchMaxRows;
+	private ExecutorService batchExecutor;
+	private ExecutorService asyncExecutor;
+	private ExecutorService probeExecutor;
+	private ExecutorService queryExecutor;
+	private ExecutorService scanExecutor;
+	private int scanSplits;
+	private volatile String partitioner;
+	private boolean asyncWaitOnCommit;
+	private int fetchBatchSize;
+	private boolean queryFetchDefaultGroup;
+	private boolean queryOrderedKeys;
+	private boolean fetchWholeRow;
+	private int fetchWholeRowMaxColumns;
+	private RowCache rowCache;
+	private ClassNameCache classNameCache;
+	private BatchFetchManager fetchManager;
 
 	private ConnectionFactoryImpl connectionFactory;
 
 	private ByteConverterContext byteConverterContext;
+	
+	// 64 slabs of 64k, 4 MB at most is held for reuse
+	private SlabPool slabPool = new SlabPool(64 * 1024, 64);
 
 	/**
 	 * Constructor.
@@ -113,7 +183,163 @@ public class CassandraStoreManager extends AbstractStoreManager {
 		
 		checkSleepTime = conf.getLongProperty(CHECKSLEEPTIME);
 		
+		flushMode = FlushMode.fromValue(conf.getStringProperty(FLUSH_MODE));
+		
+		// limits of a single batch_mutate call
+		batchMaxBytes = conf.getIntProperty(BATCH_MAX_BYTES);
+		
+		if (batchMaxBytes <= 0) {
+			batchMaxBytes = 4 * 1024 * 1024; // default, 4 MB
+		}
+		
+		batchMaxColumns = conf.getIntProperty(BATCH_MAX_COLUMNS);
+		
+		if (batchMaxColumns <= 0) {
+			batchMaxColumns = 10000;
+		}
+		
+		batchMaxRows = conf.getIntProperty(BATCH_MAX_ROWS);
+		
+		if (batchMaxRows <= 0) {
+			batchMaxRows = 1000;
+		}
+		
+		// only send batches in parallel if threads have been configured
+		int batchThreads = conf.getIntProperty(BATCH_THREADS);
+		
+		if (batchThreads > 0) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(batchThreads,
+					batchThreads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new DaemonThreadFactory("cassandra-batch"));
+			executor.allowCoreThreadTimeOut(true);
+			
+			batchExecutor = executor;
+		}
+		
+		if (flushMode == FlushMode.ASYNC) {
+			int asyncThreads = conf.getIntProperty(ASYNC_THREADS);
+			
+			if (asyncThreads <= 0) {
+				asyncThreads = 4;
+			}
+			
+			int asyncQueueSize = conf.getIntProperty(ASYNC_QUEUE_SIZE);
+			
+			if (asyncQueueSize <= 0) {
+				asyncQueueSize = 1000;
+			}
+			
+			// callers block once the queue is full
+			asyncExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads,
+					0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+							asyncQueueSize), new DaemonThreadFactory(
+							"cassandra-async"), new BlockingSubmitPolicy());
+			
+			String waitOnCommit = conf.getStringProperty(ASYNC_WAIT_ON_COMMIT);
+			
+			asyncWaitOnCommit = waitOnCommit == null
+					|| Boolean.parseBoolean(waitOnCommit.trim());
+		}
+		
+		// the number of query results read with a single multiget
+		fetchBatchSize = conf.getIntProperty(FETCH_BATCH_SIZE);
+		
+		if (fetchBatchSize <= 0) {
+			fetchBatchSize = 100;
+		}
+		
+		fetchManager = new BatchFetchManager(this);
+		
+		queryFetchDefaultGroup = conf.getBooleanProperty(QUERY_FETCH_DEFAULT_GROUP);
+		
+		queryOrderedKeys = conf.getBooleanProperty(QUERY_ORDERED_KEYS);
+		
+		fetchWholeRow = conf.getBooleanProperty(FETCH_WHOLE_ROW);
+		
+		// larger rows are read a field at a time
+		fetchWholeRowMaxColumns = conf.getIntProperty(FETCH_WHOLE_ROW_MAX_COLUMNS);
+		
+		if (fetchWholeRowMaxColumns <= 0) {
+			fetchWholeRowMaxColumns = 1000;
+		}
+		
+		// rows are only cached if a size is set
+		int rowCacheMaxSize = conf.getIntProperty(ROW_CACHE_MAX_SIZE);
+		
+		if (rowCacheMaxSize > 0) {
+			long rowCacheTtl = conf.getIntProperty(ROW_CACHE_TTL);
+			
+			if (rowCacheTtl <= 0) {
+				rowCacheTtl = 60000;
+			}
+			
+			rowCache = new RowCache(rowCacheMaxSize, rowCacheTtl);
+		}
+		
+		int classCacheMaxSize = conf.getIntProperty(CLASS_CACHE_MAX_SIZE);
+		
+		if (classCacheMaxSize <= 0) {
+			classCacheMaxSize = 10000;
+		}
+		
+		long classCacheTtl = conf.getIntProperty(CLASS_CACHE_TTL);
+		
+		if (classCacheTtl <= 0) {
+			classCacheTtl = 600000;
+		}
+		
+		classNameCache = new ClassNameCache(classCacheMaxSize, classCacheTtl);
+		
+		// the column families of descendants are read in parallel when
+		// finding the class of an id
+		int probeThreads = conf.getIntProperty(PROBE_THREADS);
+		
+		if (probeThreads <= 0) {
+			probeThreads = 4;
+		}
+		
+		ThreadPoolExecutor probes = new ThreadPoolExecutor(probeThreads,
+				probeThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new DaemonThreadFactory("cassandra-probe"));
+		probes.allowCoreThreadTimeOut(true);
+		
+		probeExecutor = probes;
+		
+		// the index searches of a query are performed in parallel
+		int queryThreads = conf.getIntProperty(QUERY_THREADS);
+		
+		if (queryThreads <= 0) {
+			queryThreads = 4;
+		}
+		
+		ThreadPoolExecutor queries = new ThreadPoolExecutor(queryThreads,
+				queryThreads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new DaemonThreadFactory("cassandra-query"));
+		queries.allowCoreThreadTimeOut(true);
+		
+		queryExecutor = queries;
+		
+		// queries without a filter scan the ring in this many ranges
+		scanSplits = conf.getIntProperty(SCAN_SPLITS);
 		
+		if (scanSplits <= 0) {
+			scanSplits = 1;
+		}
+		
+		// the ranges have their own threads, a reader waiting on its pages
+		// can't starve them
+		if (scanSplits > 1) {
+			ThreadPoolExecutor scans = new ThreadPoolExecutor(scanSplits,
+					scanSplits, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new DaemonThreadFactory("cassandra-scan"));
+			scans.allowCoreThreadTimeOut(true);
+			
+			scanExecutor = scans;
+		}
 
 		if (autoCreateSchema) {
 			autoCreateTables = true;
@@ -169,6 +395,23 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	 */
 	public void close() {
 		// omfContext.getMetaDataManager().deregisterListener(metadataListener);
+		// let any queued asynchronous writes complete
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+		}
+		
+		if (batchExecutor != null) {
+			batchExecutor.shutdown();
+		}
+		
+		probeExecutor.shutdown();
+		
+		queryExecutor.shutdown();
+		
+		if (scanExecutor != null) {
+			scanExecutor.shutdownNow();
+		}
+		
 		super.close();
 	}
 
@@ -227,6 +470,162 @@ public class CassandraStoreManager extends AbstractStoreManager {
 		return checkSleepTime;
 	}
 
+	/**
+	 * @return the mode that determines when mutations are sent to Cassandra
+	 */
+	public FlushMode getFlushMode() {
+		return flushMode;
+	}
+
+	/**
+	 * @return the maximum estimated size in bytes of a single batch mutation
+	 */
+	public int getBatchMaxBytes() {
+		return batchMaxBytes;
+	}
+
+	/**
+	 * @return the maximum number of columns in a single batch mutation
+	 */
+	public int getBatchMaxColumns() {
+		return batchMaxColumns;
+	}
+
+	/**
+	 * @return the maximum number of rows in a single batch mutation
+	 */
+	public int getBatchMaxRows() {
+		return batchMaxRows;
+	}
+
+	/**
+	 * @return the executor used to send batches in parallel. Null if batches
+	 *         should be sent sequentially
+	 */
+	public ExecutorService getBatchExecutor() {
+		return batchExecutor;
+	}
+
+	/**
+	 * @return the executor used to execute mutations when the flush mode is
+	 *         async. Null for any other flush mode
+	 */
+	public ExecutorService getAsyncExecutor() {
+		return asyncExecutor;
+	}
+
+	/**
+	 * @return the executor used to perform the index searches of a query in
+	 *         parallel
+	 */
+	public ExecutorService getQueryExecutor() {
+		return queryExecutor;
+	}
+
+	/**
+	 * @return the number of token ranges scanned in parallel by queries
+	 *         without a filter. 1 if the rows are scanned in key order
+	 */
+	public int getScanSplits() {
+		return scanSplits;
+	}
+
+	/**
+	 * @return the executor that scans token ranges in parallel. Null if the
+	 *         rows are scanned in key order
+	 */
+	public ExecutorService getScanExecutor() {
+		return scanExecutor;
+	}
+
+	/**
+	 * Get the class name of the partitioner of the cluster. Only read once
+	 * 
+	 * @return
+	 */
+	public String getPartitioner() {
+		if (partitioner == null) {
+			try {
+				partitioner = new PartitionerReader(
+						Pelops.getDbConnPool(getPoolName())).getPartitioner();
+			} catch (Exception e) {
+				throw new NucleusDataStoreException(
+						"Unable to read the partitioner of the cluster", e);
+			}
+		}
+
+		return partitioner;
+	}
+
+	/**
+	 * @return true if commit should wait for the asynchronous mutations of the
+	 *         transaction to complete
+	 */
+	public boolean isAsyncWaitOnCommit() {
+		return asyncWaitOnCommit;
+	}
+
+	/**
+	 * @return the number of query results read with a single multiget
+	 */
+	public int getFetchBatchSize() {
+		return fetchBatchSize;
+	}
+
+	/**
+	 * @return true if queries should read the default fetch group columns
+	 *         with the keys of the candidates
+	 */
+	public boolean isQueryFetchDefaultGroup() {
+		return queryFetchDefaultGroup;
+	}
+
+	/**
+	 * @return true if rows are scanned in the order of their identity, so an
+	 *         ordering on the identity can be read in key order
+	 */
+	public boolean isQueryOrderedKeys() {
+		return queryOrderedKeys;
+	}
+
+	/**
+	 * @return true if an object with collection, map or array fields should
+	 *         be read with a single slice of its whole row
+	 */
+	public boolean isFetchWholeRow() {
+		return fetchWholeRow;
+	}
+
+	/**
+	 * @return the most columns read with a single slice of a whole row. A
+	 *         larger row is read with a slice per field instead
+	 */
+	public int getFetchWholeRowMaxColumns() {
+		return fetchWholeRowMaxColumns;
+	}
+
+	/**
+	 * @return the cache of recently read rows, null if rows aren't cached
+	 */
+	public RowCache getRowCache() {
+		return rowCache;
+	}
+
+	/**
+	 * @return the cache of the concrete class of recently resolved row keys
+	 */
+	public ClassNameCache getClassNameCache() {
+		return classNameCache;
+	}
+
+	/**
+	 * @return the manager holding rows read in bulk before their objects are
+	 *         fetched
+	 */
+	public BatchFetchManager getFetchManager() {
+		return fetchManager;
+	}
+
 
 
 	/**
@@ -248,6 +647,13 @@ public class CassandraStoreManager extends AbstractStoreManager {
 	public ByteConverterContext getByteConverterContext() {
 		return byteConverterContext;
 	}
+
+	/**
+	 * @return the pool of buffers the arena of every flush is built from
+	 */
+	public SlabPool getSlabPool() {
+		return slabPool;
+	}
 	
 	/*
 	 * (non-Javadoc)
@@ -276,82 +682,263 @@ public class CassandraStoreManager extends AbstractStoreManager {
 
 		Bytes key = byteConverterContext.getRowKeyForId(id);
 
-		return findObject(key, metaData, clr, ec, id);
+		String baseClassName = metaData.getBaseAbstractClassMetaData()
+				.getFullClassName();
+
+		String className = classNameCache.get(baseClassName, key);
+
+		if (className != null) {
+			return className;
+		}
+
+		className = findObject(key, metaData, clr, ec);
+
+		if (className != null) {
+			classNameCache.put(baseClassName, key, className);
+		}
+
+		return className;
 
 	}
 
+	/**
+	 * Find the concrete class of the row. The column family of the class is
+	 * read first. If the row isn't there the column families of every
+	 * descendant with its own table are read in parallel, and the first row
+	 * found decides the class
+	 * 
+	 * @param key
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @return The class name, null if no row exists
+	 */
 	private String findObject(Bytes key, AbstractClassMetaData metaData,
-			ClassLoaderResolver clr, ExecutionContext ec, Object id) {
+			ClassLoaderResolver clr, ExecutionContext ec) {
+
+		ConsistencyLevel consistency = Consistency.get();
+
+		ClassProbe probe = readClassName(key, metaData, clr, ec, consistency);
+
+		if (probe == null) {
+			probe = probeDescendants(key, metaData, clr, ec, consistency);
+		}
+
+		if (probe == null) {
+			return null;
+		}
+
+		// hold the row for the fetch of the object that follows
+		if (probe.row != null) {
+			fetchManager.registerPending(ec, key, probe.row);
+		}
+
+		return probe.className;
+	}
+
+	/**
+	 * Read the discriminator of the row in the column family of the class.
+	 * The default fetch group is read with it, so the fetch of the object
+	 * doesn't need to read the row again. Doesn't use any thread locals, so it
+	 * can be run on any thread
+	 * 
+	 * @param key
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @param consistency
+	 * @return The class and the row read for it, null if no discriminator was
+	 *         found
+	 */
+	private ClassProbe readClassName(Bytes key, AbstractClassMetaData metaData,
+			ClassLoaderResolver clr, ExecutionContext ec,
+			ConsistencyLevel consistency) {
 
 		Selector selector = Pelops.createSelector(getPoolName());
 
-		// if we have a discriminator, fetch the discriminator column only
-		// and see if it's equal
-		// to the class provided by the op
+		String columnFamily = getColumnFamily(metaData);
+		Bytes discriminatorColumn = getDiscriminatorColumnName(metaData);
+
+		Bytes value = null;
 
+		Map<Bytes, Bytes> cached = rowCache == null ? null : rowCache.get(
+				columnFamily, key, new Bytes[] { discriminatorColumn });
+
+		// the columns read with the discriminator
+		Set<Bytes> read = null;
 		List<Column> columns = null;
 
-		try {
+		if (cached != null) {
+			value = cached.get(discriminatorColumn);
+		} else {
+			// read the default fetch group with the discriminator, the fetch
+			// of the object that follows then doesn't need to read the row
+			read = new LinkedHashSet<Bytes>();
+			read.add(discriminatorColumn);
+			read.addAll(getDefaultFetchColumns(metaData, clr, ec));
 
-			columns = selector.getColumnsFromRow(getColumnFamily(metaData),
-					key, getDescriminatorColumn(metaData), Consistency.get());
+			Bytes[] names = read.toArray(new Bytes[read.size()]);
 
-		} catch (Exception e) {
-			throw new NucleusDataStoreException(e.getMessage(), e);
+			long stamp = rowCache == null ? 0 : rowCache.getStamp();
+
+			try {
+
+				columns = selector.getColumnsFromRow(columnFamily, key,
+						Selector.newColumnsPredicate(names), consistency);
+
+			} catch (Exception e) {
+				throw new NucleusDataStoreException(e.getMessage(), e);
+			}
+
+			if (rowCache != null) {
+				rowCache.put(columnFamily, key, names, columns, stamp);
+			}
+
+			for (Column column : columns) {
+				if (discriminatorColumn.equals(Bytes.fromByteBuffer(column.name
+						.duplicate()))) {
+					value = Bytes.fromByteArray(column.getValue());
+				}
+			}
+		}
+
+		if (value == null) {
+			return null;
+		}
+
+		String descriminatorValue = byteConverterContext.getString(value);
+
+		String className = org.datanucleus.metadata.MetaDataUtils
+				.getClassNameFromDiscriminatorValue(descriminatorValue,
+						metaData.getDiscriminatorMetaData(), ec);
+
+		AbstractClassMetaData targetMetaData = ec.getMetaDataManager()
+				.getMetaDataForClass(className, clr);
+
+		// only hold the row if the object is stored in the column family we
+		// read
+		if (columns == null || targetMetaData == null
+				|| !columnFamily.equals(getColumnFamily(targetMetaData))) {
+			return new ClassProbe(className, null);
 		}
 
-		// what do we do if no descriminator is found and one should be
-		// present?
-		if (columns == null || columns.size() != 1) {
+		return new ClassProbe(className, new FetchedRow(columnFamily,
+				className, getDefaultFetchFields(targetMetaData, clr, read),
+				columns));
+	}
 
-			// now check if we have subclasses from the given metaData, if we do
-			// recurse to a child class and search for the object
-			String[] decendents = ec.getMetaDataManager()
-					.getSubclassesForClass(metaData.getFullClassName(), true);
+	/**
+	 * Read the discriminator from the column family of every descendant that
+	 * stores its objects in a column family of its own. The reads are run in
+	 * parallel and the first discriminator found is used
+	 * 
+	 * @param key
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @param consistency
+	 * @return
+	 */
+	private ClassProbe probeDescendants(final Bytes key,
+			AbstractClassMetaData metaData, final ClassLoaderResolver clr,
+			final ExecutionContext ec, final ConsistencyLevel consistency) {
+
+		// every descendant, not just the direct subclasses
+		String[] decendents = ec.getMetaDataManager().getSubclassesForClass(
+				metaData.getFullClassName(), true);
+
+		if (decendents == null || decendents.length == 0) {
+			return null;
+		}
 
-			// it has decendents, only recurse to them if their inheritance
-			// strategy is a new table
-			if (decendents == null || decendents.length == 0) {
-				return null;
+		// only read each column family once
+		Map<String, AbstractClassMetaData> tables = new LinkedHashMap<String, AbstractClassMetaData>();
+
+		String columnFamily = getColumnFamily(metaData);
+
+		for (String decendent : decendents) {
+			AbstractClassMetaData decendentMetaData = ec.getMetaDataManager()
+					.getMetaDataForClass(decendent, clr);
+
+			InheritanceStrategy strategy = decendentMetaData
+					.getInheritanceMetaData().getStrategy();
+
+			if (!InheritanceStrategy.NEW_TABLE.equals(strategy)) {
+				continue;
 			}
 
-			AbstractClassMetaData decendentMetaData = null;
+			String decendentFamily = getColumnFamily(decendentMetaData);
 
-			for (String decendent : decendents) {
-				decendentMetaData = ec.getMetaDataManager()
-						.getMetaDataForClass(decendent, clr);
+			if (!decendentFamily.equals(columnFamily)
+					&& !tables.containsKey(decendentFamily)) {
+				tables.put(decendentFamily, decendentMetaData);
+			}
+		}
 
-				InheritanceStrategy strategy = decendentMetaData
-						.getInheritanceMetaData().getStrategy();
+		if (tables.isEmpty()) {
+			return null;
+		}
 
-				// either the subclass has it's own table, or one if it's
-				// children may, recurse to find the object
-				if (InheritanceStrategy.NEW_TABLE.equals(strategy)
-						|| InheritanceStrategy.SUBCLASS_TABLE.equals(strategy)) {
-					String result = findObject(key, decendentMetaData, clr, ec,
-							id);
+		if (tables.size() == 1) {
+			return readClassName(key, tables.values().iterator().next(), clr,
+					ec, consistency);
+		}
+
+		CompletionService<ClassProbe> probes = new ExecutorCompletionService<ClassProbe>(
+				probeExecutor);
+
+		List<Future<ClassProbe>> futures = new ArrayList<Future<ClassProbe>>(
+				tables.size());
+
+		for (final AbstractClassMetaData table : tables.values()) {
+			futures.add(probes.submit(new Callable<ClassProbe>() {
 
-					// we found a subclass with the descriminator stored, return
-					// it
-					if (result != null) {
-						return result;
-					}
+				@Override
+				public ClassProbe call() throws Exception {
+					return readClassName(key, table, clr, ec, consistency);
+				}
+
+			}));
+		}
+
+		try {
+			for (int i = 0; i < futures.size(); i++) {
+				ClassProbe probe = probes.take().get();
+
+				if (probe != null) {
+					return probe;
 				}
 			}
 
-			// nothing found in this class or it's children return null
 			return null;
 
+		} catch (ExecutionException e) {
+			throw new NucleusDataStoreException(e.getCause().getMessage(),
+					e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		} finally {
+			// the row was found, the other reads are no longer needed
+			for (Future<ClassProbe> future : futures) {
+				future.cancel(false);
+			}
 		}
+	}
 
-		String descriminatorValue = byteConverterContext.getString(Bytes.fromByteArray(columns.get(0).getValue()));
+	/**
+	 * The class of a row, along with the row read to find it
+	 * 
+	 */
+	private static class ClassProbe {
 
-		String className = org.datanucleus.metadata.MetaDataUtils
-				.getClassNameFromDiscriminatorValue(descriminatorValue,
-						metaData.getDiscriminatorMetaData(), ec);
+		private final String className;
 
-		// now recursively load the search for our class
+		private final FetchedRow row;
 
-		return className;
+		private ClassProbe(String className, FetchedRow row) {
+			this.className = className;
+			this.row = row;
+		}
 	}
 }
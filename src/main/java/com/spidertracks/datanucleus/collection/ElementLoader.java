@@ -0,0 +1,108 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
+
+/**
+ * Loads the related elements of a collection field. The elements of each page
+ * are found in bulk
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ElementLoader extends LazyLoader<Object> {
+
+	private ReadCollection reader;
+
+	private BatchFetchManager fetchManager;
+
+	private Class<?> elementClass;
+
+	private String typeName;
+
+	private int pageSize;
+
+	/**
+	 * @param op
+	 *            The owner of the field
+	 * @param fieldNumber
+	 * @param reader
+	 *            The reader of the field columns. The first page must have
+	 *            been fetched
+	 * @param fetchManager
+	 * @param elementClass
+	 * @param typeName
+	 *            The type name of the field
+	 * @param pageSize
+	 */
+	public ElementLoader(ObjectProvider op, int fieldNumber,
+			ReadCollection reader, BatchFetchManager fetchManager,
+			Class<?> elementClass, String typeName, int pageSize) {
+		super(op, fieldNumber, reader);
+		this.reader = reader;
+		this.fetchManager = fetchManager;
+		this.elementClass = elementClass;
+		this.typeName = typeName;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	protected List<Object> readPage() {
+		List<Object> ids = new ArrayList<Object>(pageSize);
+
+		while (ids.size() < pageSize && reader.hasNext()) {
+			ids.add(reader.next());
+		}
+
+		ExecutionContext context = getExecutionContext();
+
+		List<Object> elements = new ArrayList<Object>(ids.size());
+
+		for (Object element : fetchManager.findRelated(context, elementClass,
+				ids, typeName)) {
+			if (element != null) {
+				elements.add(element);
+			}
+		}
+
+		return elements;
+	}
+
+	@Override
+	protected Object getKey(Object element) {
+		return element;
+	}
+
+	@Override
+	protected Object getStoredKey(Object key) {
+		return getExecutionContext().getApiAdapter().getIdForObject(key);
+	}
+
+	@Override
+	protected boolean hasMoreElements() {
+		return reader.hasMoreColumns();
+	}
+
+}
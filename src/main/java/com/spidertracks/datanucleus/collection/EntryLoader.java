@@ -0,0 +1,150 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
+
+/**
+ * Loads the entries of a map or array field. Related keys and values of each
+ * page are found in bulk
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class EntryLoader extends LazyLoader<CassEntry> {
+
+	private ReadMap reader;
+
+	private BatchFetchManager fetchManager;
+
+	private Class<?> keyClass;
+
+	private Class<?> valueClass;
+
+	private String typeName;
+
+	private int pageSize;
+
+	/**
+	 * @param op
+	 *            The owner of the field
+	 * @param fieldNumber
+	 * @param reader
+	 *            The reader of the field columns. The first page must have
+	 *            been fetched
+	 * @param fetchManager
+	 * @param keyClass
+	 *            The class of related keys. Null if the keys are stored by
+	 *            value
+	 * @param valueClass
+	 *            The class of related values. Null if the values are stored
+	 *            by value
+	 * @param typeName
+	 *            The type name of the field
+	 * @param pageSize
+	 */
+	public EntryLoader(ObjectProvider op, int fieldNumber, ReadMap reader,
+			BatchFetchManager fetchManager, Class<?> keyClass,
+			Class<?> valueClass, String typeName, int pageSize) {
+		super(op, fieldNumber, reader);
+		this.reader = reader;
+		this.fetchManager = fetchManager;
+		this.keyClass = keyClass;
+		this.valueClass = valueClass;
+		this.typeName = typeName;
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	protected List<CassEntry> readPage() {
+		List<CassEntry> stored = new ArrayList<CassEntry>(pageSize);
+
+		while (stored.size() < pageSize && reader.hasNext()) {
+			stored.add(reader.next());
+		}
+
+		ExecutionContext context = getExecutionContext();
+
+		List<Object> keys = null;
+		List<Object> values = null;
+
+		if (keyClass != null) {
+			List<Object> ids = new ArrayList<Object>(stored.size());
+
+			for (CassEntry entry : stored) {
+				ids.add(context.newObjectId(keyClass, entry.getKey()));
+			}
+
+			keys = fetchManager.findRelated(context, keyClass, ids, typeName);
+		}
+
+		if (valueClass != null) {
+			List<Object> ids = new ArrayList<Object>(stored.size());
+
+			for (CassEntry entry : stored) {
+				ids.add(context.newObjectId(valueClass, entry.getValue()));
+			}
+
+			values = fetchManager.findRelated(context, valueClass, ids,
+					typeName);
+		}
+
+		List<CassEntry> entries = new ArrayList<CassEntry>(stored.size());
+
+		for (int i = 0; i < stored.size(); i++) {
+			Object key = keys == null ? stored.get(i).getKey() : keys.get(i);
+			Object value = values == null ? stored.get(i).getValue() : values
+					.get(i);
+
+			// the related key or value no longer exists
+			if (key == null || value == null) {
+				continue;
+			}
+
+			entries.add(new CassEntry(key, value));
+		}
+
+		return entries;
+	}
+
+	@Override
+	protected Object getKey(CassEntry element) {
+		return element.getKey();
+	}
+
+	@Override
+	protected Object getStoredKey(Object key) {
+		if (keyClass == null) {
+			return key;
+		}
+
+		return getExecutionContext().getApiAdapter().getIdForObject(key);
+	}
+
+	@Override
+	protected boolean hasMoreElements() {
+		return reader.hasMoreColumns();
+	}
+
+}
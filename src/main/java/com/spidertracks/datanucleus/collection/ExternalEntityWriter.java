@@ -17,23 +17,38 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.collection;
 
+import static com.spidertracks.datanucleus.convert.ConverterUtils.check;
+
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.cassandra.thrift.SliceRange;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.convert.ByteBufferArena;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
- * Class that allows us to perform basic I/O ops on external entities
+ * Class that allows us to perform basic I/O ops on external entities.
+ * 
+ * If the columns stored by the last read or write of the field are known,
+ * only columns that have changed are written and columns that are no longer
+ * present are removed without reading from Cassandra. Otherwise every column
+ * is written and the stored columns are read to find the ones to remove.
+ * Changes of a lazy container are written as single columns instead.
+ * 
+ * The columns saved by the write are only copied when they will be recorded
+ * as the stored columns, otherwise only the names written are kept until the
+ * mutation executes.
  * 
  * @author Todd Nine
  * 
@@ -42,29 +57,138 @@ public class ExternalEntityWriter extends ExternalEntity {
 
 	private static final int ITERATION_SIZE = 100;
 
-	private Set<Bytes> savedColumns;
+	private Map<Bytes, Bytes> savedColumns;
+
+	// the names written into the arena when the saved columns aren't kept
+	private Set<Bytes> writtenColumns;
 
+	private Map<Bytes, Bytes> storedColumns;
+
+	protected ByteBufferArena arena;
+
+	/**
+	 * 
+	 * @param selector
+	 * @param context
+	 * @param ownerColumnFamily
+	 * @param rowKey
+	 * @param ownerColumn
+	 * @param storedColumns
+	 *            The columns known to be stored for this field. Null if they
+	 *            are unknown
+	 * @param arena
+	 *            The arena to write column names and values into
+	 * @param saveColumns
+	 *            True if the saved columns will be recorded as the stored
+	 *            columns
+	 */
 	public ExternalEntityWriter(Selector selector,
 			ByteConverterContext context, String ownerColumnFamily,
-			Bytes rowKey, Bytes ownerColumn) {
+			Bytes rowKey, Bytes ownerColumn, Map<Bytes, Bytes> storedColumns,
+			ByteBufferArena arena, boolean saveColumns) {
 		super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
-		savedColumns = new HashSet<Bytes>();
+
+		if (saveColumns) {
+			this.savedColumns = new HashMap<Bytes, Bytes>();
+		} else {
+			this.writtenColumns = new HashSet<Bytes>();
+		}
+
+		this.storedColumns = storedColumns;
+		this.arena = arena;
 	}
 
 	/**
-	 * Add the stored column to our internal queue
+	 * Add the saved column to our internal queue and write it if it isn't
+	 * already stored with the same value
+	 * 
+	 * @param mutator
+	 * @param name
+	 * @param value
+	 */
+	protected void writeColumn(BatchMutator mutator, ByteBuffer name,
+			ByteBuffer value) {
+
+		Bytes columnName = Bytes.fromByteBuffer(name);
+		Bytes columnValue = Bytes.fromByteBuffer(value);
+
+		// the saved columns outlive the arena, so they need their own copy
+		if (savedColumns != null) {
+			savedColumns.put(copy(name), copy(value));
+		} else {
+			writtenColumns.add(columnName);
+		}
+
+		if (storedColumns != null
+				&& columnValue.equals(storedColumns.get(columnName))) {
+			return;
+		}
+
+		Column column = mutator.newColumn(columnName, columnValue);
+
+		mutator.writeColumn(ownerColumnFamily, rowKey, column, true);
+	}
+
+	/**
+	 * Delete the column and forget it was saved
+	 * 
+	 * @param mutator
+	 * @param name
+	 */
+	protected void deleteColumn(BatchMutator mutator, ByteBuffer name) {
+		Bytes columnName = Bytes.fromByteBuffer(name);
+
+		if (savedColumns != null) {
+			savedColumns.remove(columnName);
+		} else {
+			writtenColumns.remove(columnName);
+		}
+
+		mutator.deleteColumn(ownerColumnFamily, rowKey, columnName);
+	}
+
+	/**
+	 * Get all columns that are stored once the mutation has been executed
+	 * 
+	 * @return The columns, null if they aren't saved
+	 */
+	public Map<Bytes, Bytes> getSavedColumns() {
+		return savedColumns;
+	}
+
+	/**
+	 * Returns true if the column was written by this writer
 	 * 
 	 * @param column
+	 * @return
 	 */
-	protected void addStoredColumn(ByteBuffer column) {
-		savedColumns.add(Bytes.fromByteBuffer(column));
+	private boolean isWritten(Bytes column) {
+		if (savedColumns != null) {
+			return savedColumns.containsKey(column);
+		}
+
+		return writtenColumns.contains(column);
 	}
 
 	/**
 	 * Remove all columns from the collection/map. Useful for if a collection is
 	 * set to null
 	 */
-	public void removeAllColumns(Mutator mutator) {
+	public void removeAllColumns(BatchMutator mutator) {
+
+		if (savedColumns != null) {
+			savedColumns.clear();
+		} else {
+			writtenColumns.clear();
+		}
+
+		if (storedColumns != null) {
+			for (Bytes column : storedColumns.keySet()) {
+				mutator.deleteColumn(ownerColumnFamily, rowKey, column);
+			}
+
+			return;
+		}
 
 		byte[] columnBytes = ownerColumn.toByteArray();
 
@@ -102,7 +226,18 @@ public class ExternalEntityWriter extends ExternalEntity {
 	/**
 	 * Removes all columns that have not been marked as persisted.
 	 */
-	public void removeRemaining(Mutator mutator) {
+	public void removeRemaining(BatchMutator mutator) {
+
+		if (storedColumns != null) {
+			for (Bytes column : storedColumns.keySet()) {
+				if (!isWritten(column)) {
+					mutator.deleteColumn(ownerColumnFamily, rowKey, column);
+				}
+			}
+
+			return;
+		}
+
 		byte[] columnBytes = ownerColumn.toByteArray();
 
 		SliceRange range = new SliceRange();
@@ -125,7 +260,7 @@ public class ExternalEntityWriter extends ExternalEntity {
 			for (Column col : results) {
 
 				//not in our already saved columns, remove it
-				if (!savedColumns.contains(Bytes.fromByteBuffer(col.name))) {
+				if (!isWritten(Bytes.fromByteBuffer(col.name))) {
 					mutator.deleteColumn(ownerColumnFamily, rowKey,
 							Bytes.fromByteArray(col.getName()));
 				}
@@ -140,6 +275,48 @@ public class ExternalEntityWriter extends ExternalEntity {
 
 	}
 
+	/**
+	 * Create the column name of the given key in the arena. This is the owner
+	 * column, followed by the delimiter and then the bytes of the key
+	 * 
+	 * @param key
+	 * @return
+	 */
+	protected ByteBuffer createColumnName(Object key) {
+		ByteBuffer begun = arena.begin();
+
+		ByteBuffer buffer = check(begun, ownerColumn.length() + 1);
+		buffer.put(ownerColumn.getBytes().duplicate());
+		buffer.put(DELIM_MIN);
+		buffer = context.getRowKeyForId(key, buffer);
+
+		return arena.end(begun, buffer);
+	}
+
+	/**
+	 * Create the bytes of the given key in the arena
+	 * 
+	 * @param key
+	 * @return
+	 */
+	protected ByteBuffer createKey(Object key) {
+		ByteBuffer begun = arena.begin();
+
+		return arena.end(begun, context.getRowKeyForId(key, begun));
+	}
+
+	/**
+	 * Copy the remaining bytes of the buffer
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	private Bytes copy(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return Bytes.fromByteArray(bytes);
+	}
+
 	protected ByteBuffer createBuffer(byte[] columnBytes, byte delimByte) {
 		ByteBuffer buffer = ByteBuffer.allocate(columnBytes.length + 1);
 		buffer.mark();
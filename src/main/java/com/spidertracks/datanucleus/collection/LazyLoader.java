@@ -0,0 +1,745 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+
+/**
+ * Loads the elements of a collection, map or array field a page at a time.
+ * Every page is appended to the loaded elements in the order they are stored.
+ * The lazy containers only load as many pages as are needed to answer each
+ * call.
+ * 
+ * Changes are applied to the loaded elements without reading the rest. The
+ * elements added and removed since the field was read or last written are
+ * kept, so the next write only writes and deletes their columns. Stored
+ * elements that were added or removed before their page was read are left out
+ * of the page. The changes are kept by the bytes of their stored key, or by
+ * the key itself until it has an identity, so a change never scans the others.
+ * Every change increments the version of the changes. The mutation writing a
+ * version can execute on another thread, so it only records the version it
+ * wrote, and the changes are forgotten by the owning thread the next time
+ * they are read if nothing changed since.
+ * 
+ * The size is counted by Cassandra and corrected by the changes, so it never
+ * loads the elements. Columns of related objects that no longer exist are
+ * counted until they are read. Nothing can be read once the persistence
+ * manager of the owner is closed.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public abstract class LazyLoader<T> {
+
+	private List<T> loaded = new ArrayList<T>();
+
+	// the loaded elements by the key of their column
+	private Map<Object, T> index = new HashMap<Object, T>();
+
+	// keys changed before the page holding them was read
+	private Set<Object> skipped = new HashSet<Object>();
+
+	// the added elements by the bytes of their stored key
+	private Map<Bytes, T> added = new LinkedHashMap<Bytes, T>();
+
+	// the added elements whose key has no identity yet
+	private Map<Object, T> addedUnidentified = new IdentityHashMap<Object, T>();
+
+	// the removed keys by the bytes of their stored key
+	private Map<Bytes, Object> removed = new LinkedHashMap<Bytes, Object>();
+
+	private boolean cleared;
+
+	private int version;
+
+	// the version last written, set by the thread that executed the mutation
+	private volatile int writtenVersion = -1;
+
+	// whether every key changed since the field was read is present, by the
+	// bytes of its stored key, or by the key while it has no identity
+	private Map<Bytes, Boolean> changed = new HashMap<Bytes, Boolean>();
+
+	private Map<Object, Boolean> changedUnidentified = new IdentityHashMap<Object, Boolean>();
+
+	private boolean complete;
+
+	private ObjectProvider op;
+
+	private int fieldNumber;
+
+	private PagedColumnReader<?> reader;
+
+	/**
+	 * @param op
+	 *            The owner of the field
+	 * @param fieldNumber
+	 *            The field the elements are loaded for
+	 * @param reader
+	 *            The reader of the field columns
+	 */
+	public LazyLoader(ObjectProvider op, int fieldNumber,
+			PagedColumnReader<?> reader) {
+		this.op = op;
+		this.fieldNumber = fieldNumber;
+		this.reader = reader;
+	}
+
+	/**
+	 * Read and resolve the next page of elements. Elements that no longer
+	 * exist are left out
+	 * 
+	 * @return
+	 */
+	protected abstract List<T> readPage();
+
+	/**
+	 * Returns true if there are stored elements that haven't been read yet
+	 * 
+	 * @return
+	 */
+	protected abstract boolean hasMoreElements();
+
+	/**
+	 * Get the key the column of the element is named by. The element of a
+	 * collection or the key of a map entry
+	 * 
+	 * @param element
+	 * @return
+	 */
+	protected abstract Object getKey(T element);
+
+	/**
+	 * Get the key as it's stored in the column name. The identity of a
+	 * persistent key, otherwise the key itself
+	 * 
+	 * @param key
+	 * @return The stored key, null if the key has no identity yet
+	 */
+	protected abstract Object getStoredKey(Object key);
+
+	/**
+	 * Load the next page of elements if there is one
+	 */
+	public void loadPage() {
+		if (complete) {
+			return;
+		}
+
+		checkOpen();
+
+		for (T element : readPage()) {
+			Object key = getKey(element);
+
+			if (skipped.contains(key) || index.containsKey(key)) {
+				continue;
+			}
+
+			loaded.add(element);
+			index.put(key, element);
+		}
+
+		complete = !hasMoreElements();
+	}
+
+	/**
+	 * Load pages until the element at the index has been loaded. Returns false
+	 * if there are fewer elements
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public boolean load(int index) {
+		while (loaded.size() <= index && !complete) {
+			loadPage();
+		}
+
+		return index < loaded.size();
+	}
+
+	/**
+	 * Get the element at the index, only loading the pages up to it
+	 * 
+	 * @param index
+	 * @return
+	 */
+	public T get(int index) {
+		if (!load(index)) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+
+		return loaded.get(index);
+	}
+
+	/**
+	 * Load every page and return all elements
+	 * 
+	 * @return
+	 */
+	public List<T> loadAll() {
+		while (!complete) {
+			loadPage();
+		}
+
+		return Collections.unmodifiableList(loaded);
+	}
+
+	/**
+	 * Get the number of elements without loading them. Reads the count of
+	 * stored columns, and the columns of the changed keys if there are any
+	 * 
+	 * @return
+	 */
+	public int size() {
+		if (complete) {
+			return loaded.size();
+		}
+
+		checkOpen();
+
+		try {
+			CassandraStoreManager manager = (CassandraStoreManager) getExecutionContext()
+					.getStoreManager();
+
+			int size = reader.countColumns(Pelops.getDbConnPool(manager
+					.getPoolName()));
+
+			if (changed.isEmpty() && changedUnidentified.isEmpty()) {
+				return size;
+			}
+
+			// keys that were given their identity since they changed
+			for (Iterator<Map.Entry<Object, Boolean>> it = changedUnidentified
+					.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Object, Boolean> entry = it.next();
+				Bytes keyBytes = getStoredKeyBytes(entry.getKey());
+
+				if (keyBytes == null) {
+					continue;
+				}
+
+				if (!changed.containsKey(keyBytes)) {
+					changed.put(keyBytes, entry.getValue());
+				}
+
+				it.remove();
+			}
+
+			Set<Bytes> stored = Collections.emptySet();
+
+			if (!changed.isEmpty()) {
+				stored = reader.findStored(changed.keySet());
+			}
+
+			// the changes may or may not have been written yet
+			for (Map.Entry<Bytes, Boolean> entry : changed.entrySet()) {
+				boolean isStored = stored.contains(entry.getKey());
+
+				if (entry.getValue() && !isStored) {
+					size++;
+				} else if (!entry.getValue() && isStored) {
+					size--;
+				}
+			}
+
+			// a key without an identity was never stored
+			for (Boolean present : changedUnidentified.values()) {
+				if (present) {
+					size++;
+				}
+			}
+
+			return size;
+		} catch (NucleusException ne) {
+			throw ne;
+		} catch (Exception e) {
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Find the element with the key, only loading pages until it's found
+	 * 
+	 * @param key
+	 * @return The element, null if there is none
+	 */
+	public T find(Object key) {
+		T found = findLoaded(key);
+
+		while (found == null && !complete && !skipped.contains(key)) {
+			loadPage();
+			found = index.get(key);
+		}
+
+		return found;
+	}
+
+	/**
+	 * Get the element with the key if it has been loaded. Never reads
+	 * 
+	 * @param key
+	 * @return The element, null if it's not stored or hasn't been read yet
+	 */
+	public T getLoaded(Object key) {
+		return findLoaded(key);
+	}
+
+	/**
+	 * Add the element after the loaded elements. Never reads
+	 * 
+	 * @param element
+	 */
+	public void add(T element) {
+		add(loaded.size(), element);
+	}
+
+	/**
+	 * Add the element at the index. Only loads the pages up to the index
+	 * 
+	 * @param position
+	 * @param element
+	 */
+	public void add(int position, T element) {
+		checkOpen();
+
+		if (position > 0 && !load(position - 1)) {
+			throw new IndexOutOfBoundsException("Index: " + position);
+		}
+
+		Object key = getKey(element);
+		Bytes keyBytes = getStoredKeyBytes(key);
+
+		loaded.add(position, element);
+		index.put(key, element);
+
+		if (!complete) {
+			skipped.add(key);
+		}
+
+		unadd(key, keyBytes);
+
+		if (keyBytes == null) {
+			addedUnidentified.put(key, element);
+		} else {
+			// a delete of the same column in the same batch would win
+			removed.remove(keyBytes);
+			added.put(keyBytes, element);
+		}
+
+		changed(key, keyBytes, true);
+	}
+
+	/**
+	 * Replace the element with the same key. Never reads
+	 * 
+	 * @param element
+	 * @return The element that was replaced, null if there is none or it
+	 *         hasn't been read yet
+	 */
+	public T replace(T element) {
+		checkOpen();
+
+		Object key = getKey(element);
+
+		T previous = unload(key, getStoredKeyBytes(key));
+
+		add(element);
+
+		return previous;
+	}
+
+	/**
+	 * Remove the element with the key. Never reads, so while there are pages
+	 * that haven't been read true is returned even if the key was never stored
+	 * 
+	 * @param key
+	 * @return False if the element is known not to be stored
+	 */
+	public boolean remove(Object key) {
+		checkOpen();
+
+		Bytes keyBytes = getStoredKeyBytes(key);
+
+		if (unload(key, keyBytes) == null && complete) {
+			return false;
+		}
+
+		removed(key, keyBytes);
+
+		return true;
+	}
+
+	/**
+	 * Remove the element at the index. Only loads the pages up to the index
+	 * 
+	 * @param position
+	 * @return The removed element
+	 */
+	public T removeAt(int position) {
+		checkOpen();
+
+		T element = get(position);
+		Object key = getKey(element);
+
+		loaded.remove(position);
+
+		if (index.get(key) == element) {
+			index.remove(key);
+		}
+
+		Bytes keyBytes = getStoredKeyBytes(key);
+
+		unadd(key, keyBytes);
+		removed(key, keyBytes);
+
+		return element;
+	}
+
+	/**
+	 * Remove every element without reading the rest
+	 */
+	public void clear() {
+		checkOpen();
+
+		loaded.clear();
+		index.clear();
+		skipped.clear();
+		added.clear();
+		addedUnidentified.clear();
+		removed.clear();
+		changed.clear();
+		changedUnidentified.clear();
+		complete = true;
+		cleared = true;
+		version++;
+	}
+
+	/**
+	 * @return true if every element has been loaded
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return The elements added since the field was read or last written
+	 */
+	public List<T> getAdded() {
+		applyWritten();
+
+		List<T> all = new ArrayList<T>(added.size()
+				+ addedUnidentified.size());
+
+		all.addAll(added.values());
+		all.addAll(addedUnidentified.values());
+
+		return all;
+	}
+
+	/**
+	 * @return The keys of the elements removed since the field was read or
+	 *         last written. Keys that were never given an identity are left
+	 *         out, they were never stored
+	 */
+	public Collection<Object> getRemoved() {
+		applyWritten();
+
+		return removed.values();
+	}
+
+	/**
+	 * @return true if the field was cleared since it was read or last written.
+	 *         Every stored column that isn't added again must be removed
+	 */
+	public boolean isCleared() {
+		applyWritten();
+
+		return cleared;
+	}
+
+	/**
+	 * @return The version of the changes, incremented by every change
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Record that the changes of the version have been written. Safe to call
+	 * from any thread, the changes are forgotten by the owning thread
+	 * 
+	 * @param version
+	 */
+	public void written(int version) {
+		writtenVersion = version;
+	}
+
+	/**
+	 * Forget the changes if the version written is the current one. Changes
+	 * made since are kept, and written again with them by the next write
+	 */
+	private void applyWritten() {
+		if (writtenVersion != version) {
+			return;
+		}
+
+		writtenVersion = -1;
+
+		resetChanges();
+	}
+
+	/**
+	 * Forget the changes once they have been written. New elements have their
+	 * identity now, so they are indexed again
+	 */
+	private void resetChanges() {
+		added.clear();
+		addedUnidentified.clear();
+		removed.clear();
+		cleared = false;
+
+		index.clear();
+
+		for (T element : loaded) {
+			index.put(getKey(element), element);
+		}
+	}
+
+	/**
+	 * Returns true if the elements are loaded for the field of the object
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @return
+	 */
+	public boolean isOwner(ObjectProvider op, int fieldNumber) {
+		return this.op == op && this.fieldNumber == fieldNumber;
+	}
+
+	/**
+	 * @return the execution context of the owner
+	 */
+	protected ExecutionContext getExecutionContext() {
+		return op.getExecutionContext();
+	}
+
+	/**
+	 * Mark the field as dirty so it's written with the owner
+	 */
+	public void makeDirty() {
+		op.makeDirty(fieldNumber);
+	}
+
+	/**
+	 * An iterator that only loads the next page once the elements already
+	 * loaded have been iterated
+	 * 
+	 * @return
+	 */
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+
+			private int cursor = 0;
+
+			private int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return load(cursor);
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException("No elements left");
+				}
+
+				last = cursor++;
+
+				return loaded.get(last);
+			}
+
+			@Override
+			public void remove() {
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+
+				removeAt(last);
+				makeDirty();
+
+				cursor = last;
+				last = -1;
+			}
+		};
+	}
+
+	/**
+	 * Find the loaded element of the key. The hash of an added element can
+	 * change once it's persisted, so they are also found by their stored key
+	 * 
+	 * @param key
+	 * @return The element, null if it hasn't been loaded
+	 */
+	private T findLoaded(Object key) {
+		T found = index.get(key);
+
+		if (found != null) {
+			return found;
+		}
+
+		found = addedUnidentified.get(key);
+
+		if (found != null) {
+			return found;
+		}
+
+		Bytes keyBytes = getStoredKeyBytes(key);
+
+		return keyBytes == null ? null : added.get(keyBytes);
+	}
+
+	/**
+	 * Remove the element of the key from the loaded and added elements
+	 * 
+	 * @param key
+	 * @param keyBytes
+	 *            The bytes of the stored key, null if it has no identity
+	 * @return The loaded element, null if it wasn't loaded
+	 */
+	private T unload(Object key, Bytes keyBytes) {
+		T previous = findLoaded(key);
+
+		if (previous != null) {
+			index.values().remove(previous);
+
+			for (int i = 0; i < loaded.size(); i++) {
+				if (loaded.get(i) == previous) {
+					loaded.remove(i);
+					break;
+				}
+			}
+		}
+
+		unadd(key, keyBytes);
+
+		return previous;
+	}
+
+	/**
+	 * Forget the added element with the key
+	 * 
+	 * @param key
+	 * @param keyBytes
+	 *            The bytes of the stored key, null if it has no identity
+	 */
+	private void unadd(Object key, Bytes keyBytes) {
+		addedUnidentified.remove(key);
+
+		if (keyBytes != null) {
+			added.remove(keyBytes);
+		}
+	}
+
+	/**
+	 * Record the removed key so its column is deleted and left out of the
+	 * pages not read yet
+	 * 
+	 * @param key
+	 * @param keyBytes
+	 *            The bytes of the stored key, null if it has no identity
+	 */
+	private void removed(Object key, Bytes keyBytes) {
+		if (!complete) {
+			skipped.add(key);
+		}
+
+		// never stored if it has no identity
+		if (keyBytes != null) {
+			removed.put(keyBytes, key);
+		}
+
+		changed(key, keyBytes, false);
+	}
+
+	/**
+	 * Record whether the key is present after a change, replacing an earlier
+	 * change of the same key
+	 * 
+	 * @param key
+	 * @param keyBytes
+	 *            The bytes of the stored key, null if it has no identity
+	 * @param present
+	 */
+	private void changed(Object key, Bytes keyBytes, boolean present) {
+		version++;
+
+		// it may have changed before it was given its identity
+		changedUnidentified.remove(key);
+
+		if (keyBytes == null) {
+			changedUnidentified.put(key, present);
+		} else {
+			changed.put(keyBytes, present);
+		}
+	}
+
+	/**
+	 * Get the bytes the key is stored with in its column name
+	 * 
+	 * @param key
+	 * @return The bytes, null if the key has no identity yet
+	 */
+	private Bytes getStoredKeyBytes(Object key) {
+		Object storedKey = getStoredKey(key);
+
+		return storedKey == null ? null : reader.getKeyBytes(storedKey);
+	}
+
+	/**
+	 * Fail if the persistence manager of the owner has been closed, nothing
+	 * can be read or written for the field
+	 */
+	private void checkOpen() {
+		if (op.getExecutionContext() == null) {
+			throw new NucleusUserException(
+					"The persistence manager of the owner of the field is closed. Read the field or detach the owner before closing it");
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A map field with more entries than the fetch size. Iterating loads the
+ * entries a page at a time, looking up a key only loads pages until the key is
+ * found and the size is counted without loading them. Changes mark the field
+ * dirty and only the put and removed entries are written, without reading the
+ * rest of the map. Put and remove return null for a key stored in a page that
+ * hasn't been read yet. Entries are read only, use put to change the value of a
+ * key. The execution context of the owner must be open until every entry has
+ * been loaded
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazyMap extends AbstractMap<Object, Object> {
+
+	private LazyLoader<CassEntry> loader;
+
+	public LazyMap(LazyLoader<CassEntry> loader) {
+		this.loader = loader;
+	}
+
+	@Override
+	public Object get(Object key) {
+		return valueOf(loader.find(key));
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return loader.find(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return loader.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !loader.load(0);
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+		CassEntry previous = loader.replace(new CassEntry(key, value));
+		loader.makeDirty();
+
+		return valueOf(previous);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		CassEntry previous = loader.getLoaded(key);
+
+		if (!loader.remove(key)) {
+			return null;
+		}
+
+		loader.makeDirty();
+
+		return valueOf(previous);
+	}
+
+	@Override
+	public void clear() {
+		loader.clear();
+		loader.makeDirty();
+	}
+
+	@Override
+	public Set<Entry<Object, Object>> entrySet() {
+		return new AbstractSet<Entry<Object, Object>>() {
+
+			@Override
+			public Iterator<Entry<Object, Object>> iterator() {
+				final Iterator<CassEntry> entries = loader.iterator();
+
+				return new Iterator<Entry<Object, Object>>() {
+
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public Entry<Object, Object> next() {
+						return entries.next();
+					}
+
+					@Override
+					public void remove() {
+						entries.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return LazyMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return LazyMap.this.isEmpty();
+			}
+		};
+	}
+
+	/**
+	 * @return The loader of the entries and their changes
+	 */
+	public LazyLoader<CassEntry> getLoader() {
+		return loader;
+	}
+
+	private Object valueOf(CassEntry entry) {
+		return entry == null ? null : entry.getValue();
+	}
+
+}
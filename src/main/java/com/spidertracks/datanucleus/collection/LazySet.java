@@ -0,0 +1,99 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * A set field with more elements than the fetch size. Elements are loaded a
+ * page at a time as they are used, the size is counted without loading them.
+ * Changes mark the field dirty and only the added and removed elements are
+ * written, without reading the rest of the set. An added element is only looked
+ * up in the pages already read, so add returns true for an element stored in a
+ * page that hasn't been read yet. The execution context of the owner must be
+ * open until every element has been loaded
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class LazySet extends AbstractSet<Object> {
+
+	private LazyLoader<Object> loader;
+
+	public LazySet(LazyLoader<Object> loader) {
+		this.loader = loader;
+	}
+
+	@Override
+	public int size() {
+		return loader.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !loader.load(0);
+	}
+
+	@Override
+	public boolean contains(Object element) {
+		return loader.find(element) != null;
+	}
+
+	@Override
+	public Iterator<Object> iterator() {
+		return loader.iterator();
+	}
+
+	@Override
+	public boolean add(Object element) {
+		if (loader.getLoaded(element) != null) {
+			return false;
+		}
+
+		loader.add(element);
+		loader.makeDirty();
+
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object element) {
+		if (!loader.remove(element)) {
+			return false;
+		}
+
+		loader.makeDirty();
+
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		loader.clear();
+		loader.makeDirty();
+	}
+
+	/**
+	 * @return The loader of the elements and their changes
+	 */
+	public LazyLoader<Object> getLoader() {
+		return loader;
+	}
+
+}
@@ -0,0 +1,348 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.utils.ColumnCounter;
+
+/**
+ * Reads the columns of a collection, map or array field a page at a time.
+ * The next page is only read once every column of the current page has been
+ * iterated, starting at the last column of the current page.
+ *
+ * @author Todd Nine
+ *
+ */
+public abstract class PagedColumnReader<T> extends ExternalEntity implements
+		Iterable<T>, Iterator<T> {
+
+	private int index = -1;
+
+	private List<Column> columns;
+
+	private int count;
+
+	private boolean lastPage;
+
+	private ByteBuffer lastName;
+
+	private Map<Bytes, Bytes> stored;
+
+	private int iterated;
+
+	public PagedColumnReader(Selector selector, ByteConverterContext context,
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
+		super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
+	}
+
+	/**
+	 * Get the slice predicate for selecting all the columns from the given
+	 * start key (inclusive). If the key is null, the range reads from the
+	 * beginning. Reads up to the max for the given column from start using
+	 * count. Later pages are read with the same count as they are iterated
+	 *
+	 * @param count
+	 * @param startKey
+	 * @return
+	 */
+	public void fetchColumns(int count, Bytes startKey) {
+
+		this.count = count;
+		this.stored = new HashMap<Bytes, Bytes>();
+
+		int length = ownerColumn.length() + 1;
+
+		if (startKey != null) {
+			length += startKey.length();
+		}
+
+		ByteBuffer startBuff = ByteBuffer.allocate(length);
+		startBuff.mark();
+		startBuff.put(ownerColumn.toByteArray());
+		startBuff.put(DELIM_MIN);
+
+		if (startKey != null) {
+			startBuff.put(startKey.toByteArray());
+		}
+
+		startBuff.reset();
+
+		fetchPage(startBuff, count);
+	}
+
+	/**
+	 * Use columns of the field that were already read with the rest of the
+	 * row. No columns are read by the reader
+	 *
+	 * @param columns
+	 *            Every column of the field
+	 */
+	public void setColumns(List<Column> columns) {
+		this.columns = columns;
+		this.count = columns.size();
+		this.stored = new HashMap<Bytes, Bytes>();
+
+		index = -1;
+		lastPage = true;
+
+		storeColumns();
+	}
+
+	/**
+	 * Read the page of columns from the start column (inclusive)
+	 *
+	 * @param start
+	 * @param pageSize
+	 */
+	private void fetchPage(ByteBuffer start, int pageSize) {
+
+		SliceRange range = new SliceRange();
+
+		range.setStart(start);
+
+		ByteBuffer endBuff = ByteBuffer.allocate(ownerColumn.length() + 1);
+		endBuff.mark();
+		endBuff.put(ownerColumn.toByteArray());
+		endBuff.put(DELIM_MAX);
+		endBuff.reset();
+
+		range.setFinish(endBuff);
+		range.setCount(pageSize);
+
+		SlicePredicate predicate = new SlicePredicate();
+
+		predicate.setSlice_range(range);
+
+		columns = selector.getColumnsFromRow(ownerColumnFamily, rowKey,
+				predicate, Consistency.get());
+
+		index = -1;
+		lastPage = columns.size() < pageSize;
+
+		if (columns.size() > 0) {
+			// the names are moved past the owner column as they're iterated
+			lastName = columns.get(columns.size() - 1).name.duplicate();
+		}
+
+		storeColumns();
+	}
+
+	/**
+	 * Add the columns of the current page to the stored columns. They are no
+	 * larger than the elements read from them
+	 */
+	private void storeColumns() {
+		stored.putAll(StoredColumns.fromColumns(columns));
+	}
+
+	/**
+	 * Get the stored columns of the field. Only returns the columns if all of
+	 * them were read, otherwise null
+	 *
+	 * @return
+	 */
+	public Map<Bytes, Bytes> getStoredColumns() {
+		if (columns == null || !lastPage) {
+			return null;
+		}
+
+		return stored;
+	}
+
+	/**
+	 * Count every column of the field. Cassandra counts them without sending
+	 * them
+	 *
+	 * @param pool
+	 * @return
+	 * @throws Exception
+	 */
+	public int countColumns(IThriftPool pool) throws Exception {
+		SliceRange range = new SliceRange();
+		range.setStart(createBuffer(DELIM_MIN));
+		range.setFinish(createBuffer(DELIM_MAX));
+		range.setCount(Integer.MAX_VALUE);
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setSlice_range(range);
+
+		return new ColumnCounter(pool).countColumns(ownerColumnFamily, rowKey,
+				predicate, Consistency.get());
+	}
+
+	/**
+	 * Get the bytes the key is stored with in the column name
+	 * 
+	 * @param key
+	 *            The stored form of the key, an identity or the key itself
+	 * @return
+	 */
+	public Bytes getKeyBytes(Object key) {
+		return context.getRowKeyForId(key);
+	}
+
+	/**
+	 * Check which of the keys have a stored column with a single read
+	 *
+	 * @param keys
+	 *            The bytes of the stored keys
+	 * @return The bytes of the keys that are stored
+	 */
+	public Set<Bytes> findStored(Collection<Bytes> keys) {
+		List<ByteBuffer> names = new ArrayList<ByteBuffer>(keys.size());
+		Map<Bytes, Bytes> keysByName = new HashMap<Bytes, Bytes>();
+
+		for (Bytes keyBytes : keys) {
+			ByteBuffer name = ByteBuffer.allocate(ownerColumn.length() + 1
+					+ keyBytes.length());
+			name.mark();
+			name.put(ownerColumn.toByteArray());
+			name.put(DELIM_MIN);
+			name.put(keyBytes.toByteArray());
+			name.reset();
+
+			names.add(name);
+			keysByName.put(Bytes.fromByteBuffer(name), keyBytes);
+		}
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setColumn_names(names);
+
+		Set<Bytes> stored = new HashSet<Bytes>();
+
+		for (Column column : selector.getColumnsFromRow(ownerColumnFamily,
+				rowKey, predicate, Consistency.get())) {
+			stored.add(keysByName.get(Bytes.fromByteBuffer(column.name)));
+		}
+
+		return stored;
+	}
+
+	/**
+	 * Create the owner column followed by the delimiter
+	 *
+	 * @param delimiter
+	 * @return
+	 */
+	private ByteBuffer createBuffer(byte delimiter) {
+		ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 1);
+		buffer.mark();
+		buffer.put(ownerColumn.toByteArray());
+		buffer.put(delimiter);
+		buffer.reset();
+
+		return buffer;
+	}
+
+	/**
+	 * Returns true if there are columns left that haven't been iterated.
+	 * Unlike {@link #hasNext()} this never reads the next page
+	 *
+	 * @return
+	 */
+	public boolean hasMoreColumns() {
+		return columns != null && (index + 1 < columns.size() || !lastPage);
+	}
+
+	/**
+	 * @return the number of columns iterated so far
+	 */
+	public int getColumnCount() {
+		return iterated;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return this;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (columns == null) {
+			return false;
+		}
+
+		if (index + 1 < columns.size()) {
+			return true;
+		}
+
+		if (lastPage) {
+			return false;
+		}
+
+		// the next page starts with the last column of this one, read an
+		// extra column and skip it
+		fetchPage(lastName.duplicate(), count + 1);
+
+		if (columns.size() > 0 && columns.get(0).name.equals(lastName)) {
+			columns = columns.subList(1, columns.size());
+		}
+
+		return index + 1 < columns.size();
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No elements left");
+		}
+
+		Column column = columns.get(++index);
+		iterated++;
+
+		ByteBuffer buffer = column.name;
+		buffer.position(buffer.position() + ownerColumn.length() + 1);
+
+		return convert(buffer, column);
+	}
+
+	/**
+	 * Convert the column to the value returned by the iterator
+	 *
+	 * @param name
+	 *            The name of the column after the owner column
+	 * @param column
+	 * @return
+	 */
+	protected abstract T convert(ByteBuffer name, Column column);
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove isn't supported");
+	}
+
+}
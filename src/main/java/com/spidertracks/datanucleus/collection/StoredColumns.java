@@ -0,0 +1,272 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.collection;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.cassandra.thrift.Column;
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.store.ExecutionContext;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Keeps the columns of a collection, map or array field as they are known to
+ * be stored in Cassandra. They are recorded on the object provider when the
+ * field is read in full or written. The next write of the field is compared to
+ * them, so only changed columns are written and removed columns are deleted
+ * without reading the existing columns back from Cassandra.
+ * 
+ * Other persistence managers can change the field once the transaction ends,
+ * so the columns are only used within the transaction that recorded them.
+ * Nothing is recorded outside of a transaction.
+ * 
+ * A failed mutation only marks the columns of the field as unknown, since it
+ * may fail on another thread. The owning thread forgets them the next time
+ * they are read. The mark is kept by later writes of the field in the same
+ * transaction, which were compared to columns that were never stored.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class StoredColumns {
+
+	private static final String KEY_PREFIX = "com.spidertracks.cassandra.storedColumns.";
+
+	private static final ConcurrentMap<ExecutionContext, TransactionScope> scopes = new ConcurrentHashMap<ExecutionContext, TransactionScope>();
+
+	private Map<Bytes, Bytes> columns;
+
+	private TransactionScope scope;
+
+	// set by the thread of a failed mutation
+	private volatile boolean invalid;
+
+	private StoredColumns(Map<Bytes, Bytes> columns, TransactionScope scope) {
+		this.columns = columns;
+		this.scope = scope;
+	}
+
+	/**
+	 * Get the stored columns of the field. Returns null if they are not known,
+	 * were recorded by a transaction that has ended or a mutation writing them
+	 * failed
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @return
+	 */
+	public static Map<Bytes, Bytes> get(ObjectProvider op, int fieldNumber) {
+		StoredColumns stored = (StoredColumns) op
+				.getAssociatedValue(key(fieldNumber));
+
+		if (stored == null) {
+			return null;
+		}
+
+		if (stored.invalid || !stored.scope.isActive()) {
+			remove(op, fieldNumber);
+			return null;
+		}
+
+		return stored.columns;
+	}
+
+	/**
+	 * Set the stored columns of the field for the rest of the transaction.
+	 * Forgets them if there is no active transaction
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @param columns
+	 *            The column names and values of the field
+	 * @return The stored columns to invalidate if they turn out not to be
+	 *         stored, null if they weren't recorded
+	 */
+	public static StoredColumns set(ObjectProvider op, int fieldNumber,
+			Map<Bytes, Bytes> columns) {
+		TransactionScope scope = getScope(op.getExecutionContext());
+
+		if (scope == null) {
+			remove(op, fieldNumber);
+			return null;
+		}
+
+		StoredColumns stored = (StoredColumns) op
+				.getAssociatedValue(key(fieldNumber));
+
+		// keep a failure of an earlier write in this transaction
+		if (stored != null && stored.scope == scope) {
+			stored.columns = columns;
+			return stored;
+		}
+
+		stored = new StoredColumns(columns, scope);
+
+		op.setAssociatedValue(key(fieldNumber), stored);
+
+		return stored;
+	}
+
+	/**
+	 * Mark the columns as unknown. Safe to call from any thread, the owner of
+	 * the field forgets them the next time they are read
+	 */
+	public void invalidate() {
+		invalid = true;
+	}
+
+	/**
+	 * Returns true if stored columns set now would be recorded, which is only
+	 * within an active transaction
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public static boolean isRecorded(ExecutionContext context) {
+		return context.getTransaction().isActive();
+	}
+
+	/**
+	 * Forget the stored columns of the field. The next write will read the
+	 * stored columns to find any that must be removed
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 */
+	public static void remove(ObjectProvider op, int fieldNumber) {
+		op.removeAssociatedValue(key(fieldNumber));
+	}
+
+	/**
+	 * Create the stored columns from the columns read. The buffers are
+	 * duplicated so moving the position of the read columns does not change
+	 * them
+	 * 
+	 * @param columns
+	 * @return
+	 */
+	public static Map<Bytes, Bytes> fromColumns(List<Column> columns) {
+		Map<Bytes, Bytes> stored = new HashMap<Bytes, Bytes>(
+				columns.size() * 2);
+
+		for (Column column : columns) {
+			stored.put(Bytes.fromByteBuffer(column.name.duplicate()),
+					Bytes.fromByteBuffer(column.value.duplicate()));
+		}
+
+		return stored;
+	}
+
+	private static String key(int fieldNumber) {
+		return KEY_PREFIX + fieldNumber;
+	}
+
+	/**
+	 * Get the scope of the active transaction of the execution context.
+	 * Registers a new scope the first time in each transaction
+	 * 
+	 * @param context
+	 * @return The scope, null if there is no active transaction
+	 */
+	private static TransactionScope getScope(ExecutionContext context) {
+		if (!isRecorded(context)) {
+			return null;
+		}
+
+		TransactionScope scope = scopes.get(context);
+
+		if (scope != null) {
+			return scope;
+		}
+
+		scope = new TransactionScope(context);
+
+		TransactionScope existing = scopes.putIfAbsent(context, scope);
+
+		if (existing != null) {
+			return existing;
+		}
+
+		context.getTransaction().addTransactionEventListener(scope);
+
+		return scope;
+	}
+
+	/**
+	 * Ends the stored columns recorded in a transaction once it commits or
+	 * rolls back
+	 * 
+	 */
+	private static class TransactionScope implements TransactionEventListener {
+
+		private ExecutionContext context;
+
+		private volatile boolean active = true;
+
+		private TransactionScope(ExecutionContext context) {
+			this.context = context;
+		}
+
+		public boolean isActive() {
+			return active;
+		}
+
+		private void end() {
+			active = false;
+			scopes.remove(context, this);
+		}
+
+		public void transactionCommitted() {
+			end();
+		}
+
+		public void transactionRolledBack() {
+			end();
+		}
+
+		public void transactionEnded() {
+			end();
+		}
+
+		public void transactionStarted() {
+		}
+
+		public void transactionFlushed() {
+		}
+
+		public void transactionPreCommit() {
+		}
+
+		public void transactionPreRollBack() {
+		}
+
+		public void transactionSetSavepoint(String name) {
+		}
+
+		public void transactionReleaseSavepoint(String name) {
+		}
+
+		public void transactionRollbackToSavepoint(String name) {
+		}
+	}
+}
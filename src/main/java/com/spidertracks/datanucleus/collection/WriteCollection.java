@@ -18,13 +18,14 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
 
-import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.convert.ByteBufferArena;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * Object for writing collection columns
@@ -34,12 +35,15 @@ import com.spidertracks.datanucleus.convert.ByteConverterContext;
 public class WriteCollection extends ExternalEntityWriter {
 
 
-	private static final Bytes PLACEHOLDER = new Bytes(new byte[] { 0 });
+	private static final byte[] PLACEHOLDER = new byte[] { 0 };
 
 
 	public WriteCollection(Selector selector, ByteConverterContext context,
-			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
-		super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn,
+			Map<Bytes, Bytes> storedColumns, ByteBufferArena arena,
+			boolean saveColumns) {
+		super(selector, context, ownerColumnFamily, rowKey, ownerColumn,
+				storedColumns, arena, saveColumns);
 	}
 
 
@@ -47,24 +51,19 @@ public class WriteCollection extends ExternalEntityWriter {
 	 * Write the relationship column
 	 * @param mutator
 	 */
-	public void writeRelationship(Mutator mutator, Object entityKey) {
-		// a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
-		ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
-
-		buffer.mark();
-		buffer.put(ownerColumn.toByteArray());
-		buffer.put(DELIM_MIN);
-		buffer = this.context.getRowKeyForId(entityKey, buffer);
-		buffer.limit(buffer.position());
-
-		buffer.reset();
+	public void writeRelationship(BatchMutator mutator, Object entityKey) {
+		ByteBuffer buffer = createColumnName(entityKey);
 		
-		super.addStoredColumn(buffer);
+		super.writeColumn(mutator, buffer, ByteBuffer.wrap(PLACEHOLDER));
 
-		Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-				PLACEHOLDER);
-
-		mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
+	}
 
+	/**
+	 * Delete the relationship column
+	 * @param mutator
+	 * @param entityKey
+	 */
+	public void removeRelationship(BatchMutator mutator, Object entityKey) {
+		super.deleteColumn(mutator, createColumnName(entityKey));
 	}
 }
@@ -18,13 +18,14 @@ Contributors :
 package com.spidertracks.datanucleus.collection;
 
 import java.nio.ByteBuffer;
+import java.util.Map;
 
-import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.Mutator;
 import org.scale7.cassandra.pelops.Selector;
 
+import com.spidertracks.datanucleus.convert.ByteBufferArena;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.mutate.BatchMutator;
 
 /**
  * Object for writing collection columns
@@ -35,8 +36,11 @@ public class WriteMap extends ExternalEntityWriter {
 
 
 	public WriteMap(Selector selector,ByteConverterContext context,
-			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn) {
-		super(selector, context, ownerColumnFamily, rowKey, ownerColumn);
+			String ownerColumnFamily, Bytes rowKey, Bytes ownerColumn,
+			Map<Bytes, Bytes> storedColumns, ByteBufferArena arena,
+			boolean saveColumns) {
+		super(selector, context, ownerColumnFamily, rowKey, ownerColumn,
+				storedColumns, arena, saveColumns);
 	}
 
 	
@@ -45,26 +49,22 @@ public class WriteMap extends ExternalEntityWriter {
 	 * Write the relationship column
 	 * @param mutator
 	 */
-	public void writeRelationship(Mutator mutator, Object key, Object entityKey) {
-		// a DRE, take the property +256 bytes so the buffer hopefully won't need to be re-allocated and copied.
-		ByteBuffer buffer = ByteBuffer.allocate(ownerColumn.length() + 256);
-
-		buffer.mark();
-		buffer.put(ownerColumn.toByteArray());
-		buffer.put(DELIM_MIN);
-		buffer = context.getRowKeyForId(key, buffer);
-		buffer.limit(buffer.position());
-		buffer.reset();
-		
-		super.addStoredColumn(buffer);
+	public void writeRelationship(BatchMutator mutator, Object key, Object entityKey) {
+		ByteBuffer buffer = createColumnName(key);
 		
-		ByteBuffer value = context.getRowKeyForId(entityKey, null);
-		value.reset();
+		ByteBuffer value = createKey(entityKey);
 
-		Column keyColumn = mutator.newColumn(Bytes.fromByteBuffer(buffer),
-				Bytes.fromByteBuffer(value));
+		super.writeColumn(mutator, buffer, value);
 
-		mutator.writeColumn(ownerColumnFamily, rowKey, keyColumn, true);
+	}
 
+	/**
+	 * Delete the relationship column of the key
+	 * @param mutator
+	 * @param key
+	 */
+	public void removeRelationship(BatchMutator mutator, Object key) {
+		super.deleteColumn(mutator, createColumnName(key));
 	}
+
 }
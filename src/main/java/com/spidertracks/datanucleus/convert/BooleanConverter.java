@@ -57,6 +57,31 @@ public class BooleanConverter implements ByteConverter {
 
 	
 
+	/**
+	 * Read the value without boxing it. The position of the buffer isn't
+	 * changed. The buffer must hold the whole value
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public static boolean readBoolean(ByteBuffer buffer) {
+		return buffer.get(buffer.position()) == TRUE;
+	}
+
+	/**
+	 * Write the value without boxing it
+	 * 
+	 * @param value
+	 * @param buffer
+	 *            The buffer to write to, allocated if null
+	 * @return The buffer to use for the next write
+	 */
+	public static ByteBuffer writeBoolean(boolean value, ByteBuffer buffer) {
+		ByteBuffer checked = check(buffer, 1);
+
+		return checked.put(value ? TRUE : FALSE);
+	}
+
 	@Override
 	public String getComparatorType() {
 		return ColumnFamilyManager.CFDEF_COMPARATOR_BYTES;
@@ -0,0 +1,109 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bump allocator for the column names and values of a single flush. Buffers
+ * are slices of slabs taken from a {@link SlabPool}, and every slab is
+ * returned to the pool on {@link #release()}. Nothing written into the arena
+ * may be referenced once it has been released.
+ * 
+ * A write starts with {@link #begin()}, which returns a slice covering the free
+ * space of the current slab with the mark set at its start. Once the converter
+ * has written to it {@link #end(ByteBuffer, ByteBuffer)} claims the written
+ * bytes. If the converter needed more space than was free it allocates its own
+ * buffer as usual, and the arena claims nothing.
+ * 
+ * Not thread safe, an arena belongs to a single execution context.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ByteBufferArena {
+
+	/**
+	 * Start a new slab if less than this is free in the current one
+	 */
+	private static final int MIN_FREE = 256;
+
+	private final SlabPool pool;
+	private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+	private ByteBuffer current;
+
+	public ByteBufferArena(SlabPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Get a buffer to write into. The mark is set at position 0
+	 * 
+	 * @return
+	 */
+	public ByteBuffer begin() {
+		if (current == null || current.remaining() < MIN_FREE) {
+			current = pool.take();
+			slabs.add(current);
+		}
+
+		ByteBuffer slice = current.slice();
+		slice.mark();
+
+		return slice;
+	}
+
+	/**
+	 * Claim the bytes written into the buffer from {@link #begin()}. The
+	 * written buffer is returned with its limit at the end of the written bytes
+	 * and its position at the mark
+	 * 
+	 * @param begun
+	 *            The buffer returned by begin
+	 * @param written
+	 *            The buffer returned by the converter
+	 * @return
+	 */
+	public ByteBuffer end(ByteBuffer begun, ByteBuffer written) {
+
+		// if the converter reallocated the slab is untouched, nothing to claim
+		if (written == begun) {
+			current.position(current.position() + written.position());
+		}
+
+		written.limit(written.position());
+		written.reset();
+
+		return written;
+	}
+
+	/**
+	 * Return every slab to the pool
+	 */
+	public void release() {
+		for (ByteBuffer slab : slabs) {
+			pool.give(slab);
+		}
+
+		slabs.clear();
+		current = null;
+	}
+
+}
@@ -109,6 +109,16 @@ public class ByteConverterContext {
 	private ByteConverter stringConverter;
 	private ByteConverter serializerConverter;
 
+	// true if the built in converter of the primitive hasn't been replaced,
+	// so values can be read and written without boxing
+	private boolean nativeBoolean;
+	private boolean nativeChar;
+	private boolean nativeShort;
+	private boolean nativeInt;
+	private boolean nativeLong;
+	private boolean nativeFloat;
+	private boolean nativeDouble;
+
 	private Serializer serializer;
 	private TypeManager typeManager;
 	private ApiAdapter apiAdapter;
@@ -199,6 +209,14 @@ public class ByteConverterContext {
 
 		this.serializerConverter = new SerializerWrapperConverter(serializer);
 
+		this.nativeBoolean = boolConverter.getClass() == BooleanConverter.class;
+		this.nativeChar = charConverter.getClass() == CharacterConverter.class;
+		this.nativeShort = shortConverter.getClass() == ShortConverter.class;
+		this.nativeInt = intConverter.getClass() == IntegerConverter.class;
+		this.nativeLong = longConverter.getClass() == LongConverter.class;
+		this.nativeFloat = floatConverter.getClass() == FloatConverter.class;
+		this.nativeDouble = doubleConverter.getClass() == DoubleConverter.class;
+
 	}
 
 	/**
@@ -309,6 +327,36 @@ public class ByteConverterContext {
 		return convertPelops(converter, value);
 	}
 
+	/**
+	 * Convert to bytes, writing into the arena. The returned bytes are only
+	 * valid until the arena is released. Falls back to allocating a buffer for
+	 * ByteAware objects, since they may rewind the buffer they write to.
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(Object value, ByteBufferArena arena) {
+		ByteConverter converter = converters.get(value.getClass());
+
+		if (converter == null) {
+
+			converter = determineConverter(value.getClass());
+
+			converters.put(value.getClass(), converter);
+		}
+
+		if (converter instanceof ByteAwareConverter) {
+			return convertPelops(converter, value);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		ByteBuffer written = converter.writeBytes(value, begun, this);
+
+		return Bytes.fromByteBuffer(arena.end(begun, written));
+	}
+
 	/**
 	 * Convert to bytes using the given buffer. Does not reset the buffer and
 	 * will return the buffer to be used for future operations
@@ -610,6 +658,270 @@ public class ByteConverterContext {
 		return (Character) convertToObject(this.charConverter, bytes);
 	}
 
+	/**
+	 * Returns true if the bytes written for values of the type sort in the
+	 * same order as the values. Only Strings written with the built in UTF-8
+	 * converter do, signed numbers and UUIDs don't
+	 * 
+	 * @param type
+	 * @return
+	 */
+	public boolean isOrderPreserving(Class<?> type) {
+		ByteConverter converter = converters.get(type);
+
+		return converter != null
+				&& converter.getClass() == StringConverter.class;
+	}
+
+	/**
+	 * Read a boolean without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public boolean readBoolean(Bytes bytes) {
+		if (nativeBoolean && hasRemaining(bytes, 1)) {
+			return BooleanConverter.readBoolean(bytes.getBytes());
+		}
+
+		return getBoolean(bytes);
+	}
+
+	/**
+	 * Write a boolean into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(boolean value, ByteBufferArena arena) {
+		if (!nativeBoolean) {
+			return getBytes((Object) Boolean.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				BooleanConverter.writeBoolean(value, begun)));
+	}
+
+	/**
+	 * Read a char without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public char readChar(Bytes bytes) {
+		if (nativeChar && hasRemaining(bytes, Character.SIZE / Byte.SIZE)) {
+			return CharacterConverter.readChar(bytes.getBytes());
+		}
+
+		return getCharacter(bytes);
+	}
+
+	/**
+	 * Write a char into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(char value, ByteBufferArena arena) {
+		if (!nativeChar) {
+			return getBytes((Object) Character.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				CharacterConverter.writeChar(value, begun)));
+	}
+
+	/**
+	 * Read a short without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public short readShort(Bytes bytes) {
+		if (nativeShort && hasRemaining(bytes, Short.SIZE / Byte.SIZE)) {
+			return ShortConverter.readShort(bytes.getBytes());
+		}
+
+		return getShort(bytes);
+	}
+
+	/**
+	 * Write a short into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(short value, ByteBufferArena arena) {
+		if (!nativeShort) {
+			return getBytes((Object) Short.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				ShortConverter.writeShort(value, begun)));
+	}
+
+	/**
+	 * Read a int without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public int readInt(Bytes bytes) {
+		if (nativeInt && hasRemaining(bytes, Integer.SIZE / Byte.SIZE)) {
+			return IntegerConverter.readInt(bytes.getBytes());
+		}
+
+		return getInteger(bytes);
+	}
+
+	/**
+	 * Write a int into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(int value, ByteBufferArena arena) {
+		if (!nativeInt) {
+			return getBytes((Object) Integer.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				IntegerConverter.writeInt(value, begun)));
+	}
+
+	/**
+	 * Read a long without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public long readLong(Bytes bytes) {
+		if (nativeLong && hasRemaining(bytes, Long.SIZE / Byte.SIZE)) {
+			return LongConverter.readLong(bytes.getBytes());
+		}
+
+		return getLong(bytes);
+	}
+
+	/**
+	 * Write a long into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(long value, ByteBufferArena arena) {
+		if (!nativeLong) {
+			return getBytes((Object) Long.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				LongConverter.writeLong(value, begun)));
+	}
+
+	/**
+	 * Read a float without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public float readFloat(Bytes bytes) {
+		if (nativeFloat && hasRemaining(bytes, Float.SIZE / Byte.SIZE)) {
+			return FloatConverter.readFloat(bytes.getBytes());
+		}
+
+		return getFloat(bytes);
+	}
+
+	/**
+	 * Write a float into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(float value, ByteBufferArena arena) {
+		if (!nativeFloat) {
+			return getBytes((Object) Float.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				FloatConverter.writeFloat(value, begun)));
+	}
+
+	/**
+	 * Read a double without boxing it if the built in converter is used
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public double readDouble(Bytes bytes) {
+		if (nativeDouble && hasRemaining(bytes, Double.SIZE / Byte.SIZE)) {
+			return DoubleConverter.readDouble(bytes.getBytes());
+		}
+
+		return getDouble(bytes);
+	}
+
+	/**
+	 * Write a double into the arena without boxing it if the built in
+	 * converter is used. The returned bytes are only valid until the arena is
+	 * released
+	 * 
+	 * @param value
+	 * @param arena
+	 * @return
+	 */
+	public Bytes getBytes(double value, ByteBufferArena arena) {
+		if (!nativeDouble) {
+			return getBytes((Object) Double.valueOf(value), arena);
+		}
+
+		ByteBuffer begun = arena.begin();
+
+		return Bytes.fromByteBuffer(arena.end(begun,
+				DoubleConverter.writeDouble(value, begun)));
+	}
+
+	/**
+	 * Returns true if the bytes hold at least the given number of bytes
+	 * 
+	 * @param bytes
+	 * @param size
+	 * @return
+	 */
+	private static boolean hasRemaining(Bytes bytes, int size) {
+		return bytes != null && bytes.getBytes().remaining() >= size;
+	}
+
 	/**
 	 * Wrap the buffer in pelops bytes
 	 * 
@@ -45,6 +45,31 @@ public class CharacterConverter implements ByteConverter {
 		return returned.putChar((Character) value);
 	}
 
+	/**
+	 * Read the value without boxing it. The position of the buffer isn't
+	 * changed. The buffer must hold the whole value
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public static char readChar(ByteBuffer buffer) {
+		return buffer.getChar(buffer.position());
+	}
+
+	/**
+	 * Write the value without boxing it
+	 * 
+	 * @param value
+	 * @param buffer
+	 *            The buffer to write to, allocated if null
+	 * @return The buffer to use for the next write
+	 */
+	public static ByteBuffer writeChar(char value, ByteBuffer buffer) {
+		ByteBuffer checked = check(buffer, SIZE);
+
+		return checked.putChar(value);
+	}
+
 	@Override
 	public String getComparatorType() {
 		return ColumnFamilyManager.CFDEF_COMPARATOR_BYTES;
@@ -50,7 +50,11 @@ public class ConverterUtils  {
 
 			buffer.reset();
 
-			newBuffer.put(Arrays.copyOfRange(buffer.array(), 0, position));
+			// the buffer may be a slice of a larger array, copy from its offset
+			int offset = buffer.arrayOffset();
+
+			newBuffer.put(Arrays.copyOfRange(buffer.array(), offset, offset
+					+ position));
 
 			return newBuffer;
 
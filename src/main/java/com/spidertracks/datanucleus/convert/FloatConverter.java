@@ -51,6 +51,31 @@ public class FloatConverter implements ByteConverter {
 	}
 
 
+	/**
+	 * Read the value without boxing it. The position of the buffer isn't
+	 * changed. The buffer must hold the whole value
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public static float readFloat(ByteBuffer buffer) {
+		return buffer.getFloat(buffer.position());
+	}
+
+	/**
+	 * Write the value without boxing it
+	 * 
+	 * @param value
+	 * @param buffer
+	 *            The buffer to write to, allocated if null
+	 * @return The buffer to use for the next write
+	 */
+	public static ByteBuffer writeFloat(float value, ByteBuffer buffer) {
+		ByteBuffer checked = check(buffer, SIZE);
+
+		return checked.putFloat(value);
+	}
+
 	@Override
 	public String getComparatorType() {
 		return ColumnFamilyManager.CFDEF_COMPARATOR_LONG;
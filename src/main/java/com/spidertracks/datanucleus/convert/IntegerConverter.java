@@ -50,6 +50,31 @@ public class IntegerConverter implements ByteConverter {
 	}
 
 
+	/**
+	 * Read the value without boxing it. The position of the buffer isn't
+	 * changed. The buffer must hold the whole value
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public static int readInt(ByteBuffer buffer) {
+		return buffer.getInt(buffer.position());
+	}
+
+	/**
+	 * Write the value without boxing it
+	 * 
+	 * @param value
+	 * @param buffer
+	 *            The buffer to write to, allocated if null
+	 * @return The buffer to use for the next write
+	 */
+	public static ByteBuffer writeInt(int value, ByteBuffer buffer) {
+		ByteBuffer checked = check(buffer, SIZE);
+
+		return checked.putInt(value);
+	}
+
 	@Override
 	public String getComparatorType() {
 		return ColumnFamilyManager.CFDEF_COMPARATOR_INTEGER;
@@ -50,6 +50,31 @@ public class LongConverter implements ByteConverter {
 		return returned.putLong((Long) value);
 	}
 
+	/**
+	 * Read the value without boxing it. The position of the buffer isn't
+	 * changed. The buffer must hold the whole value
+	 * 
+	 * @param buffer
+	 * @return
+	 */
+	public static long readLong(ByteBuffer buffer) {
+		return buffer.getLong(buffer.position());
+	}
+
+	/**
+	 * Write the value without boxing it
+	 * 
+	 * @param value
+	 * @param buffer
+	 *            The buffer to write to, allocated if null
+	 * @return The buffer to use for the next write
+	 */
+	public static ByteBuffer writeLong(long value, ByteBuffer buffer) {
+		ByteBuffer checked = check(buffer, SIZE);
+
+		return checked.putLong(value);
+	}
+
 	@Override
 	public String getComparatorType() {
 		return ColumnFamilyManager.CFDEF_COMPARATOR_LONG;
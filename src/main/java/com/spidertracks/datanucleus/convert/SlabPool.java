@@ -0,0 +1,91 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size heap buffers shared by every {@link ByteBufferArena} of
+ * the store manager. At most maxPooled slabs are kept, any returned beyond
+ * that are left for the garbage collector.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class SlabPool {
+
+	private final ConcurrentLinkedQueue<ByteBuffer> slabs = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final int slabSize;
+	private final int maxPooled;
+
+	/**
+	 * 
+	 * @param slabSize
+	 *            The size of each slab in bytes
+	 * @param maxPooled
+	 *            The maximum number of slabs to keep
+	 */
+	public SlabPool(int slabSize, int maxPooled) {
+		this.slabSize = slabSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Take a cleared slab from the pool, or allocate one if the pool is empty
+	 * 
+	 * @return
+	 */
+	public ByteBuffer take() {
+		ByteBuffer slab = slabs.poll();
+
+		if (slab == null) {
+			return ByteBuffer.allocate(slabSize);
+		}
+
+		pooled.decrementAndGet();
+		slab.clear();
+
+		return slab;
+	}
+
+	/**
+	 * Return the slab to the pool. Nothing may reference the slab once it has
+	 * been returned
+	 * 
+	 * @param slab
+	 */
+	public void give(ByteBuffer slab) {
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+
+		slabs.offer(slab);
+	}
+
+	/**
+	 * @return the size of each slab
+	 */
+	public int getSlabSize() {
+		return slabSize;
+	}
+
+}
@@ -43,8 +43,8 @@ public class StringConverter implements ByteConverter {
 			return null;
 		}
 
-		return new String(buffer.array(), buffer.position(),
-				buffer.remaining(), ENCODING);
+		return new String(buffer.array(), buffer.arrayOffset()
+				+ buffer.position(), buffer.remaining(), ENCODING);
 
 	}
 
@@ -54,9 +54,12 @@ public class StringConverter implements ByteConverter {
 			return buffer;
 		}
 
-		ByteBuffer returned = check(buffer, ((String) value).length());
+		// encode first, multi byte characters are longer than the string
+		byte[] bytes = ((String) value).getBytes(ENCODING);
 
-		return returned.put(((String) value).getBytes(ENCODING));
+		ByteBuffer returned = check(buffer, bytes.length);
+
+		return returned.put(bytes);
 
 	}
 
@@ -0,0 +1,562 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getColumnFamily;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDefaultFetchColumns;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDefaultFetchFields;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getFetchColumnList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
+import org.datanucleus.ClassLoaderResolver;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.store.ExecutionContext;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * Holds rows that were read in bulk before the objects they belong to are
+ * fetched. A query reads the rows of a page of candidates with a single
+ * multiget, then each fetch of a candidate consumes its row instead of reading
+ * it again. The elements of collections, maps and arrays are found in bulk the
+ * same way.
+ *
+ * Rows are only held while the page is loaded. The caller clears them once
+ * every candidate of the page was found, so at most a single page is held per
+ * execution context and nothing written afterwards can be hidden by a stale
+ * row.
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchFetchManager {
+
+	/**
+	 * The number of columns read at a time when the whole row is read
+	 */
+	private static final int ROW_PAGE_SIZE = 1000;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/**
+	 * The milliseconds a row read while resolving the class of an id is held
+	 * for the fetch that follows
+	 */
+	private static final long PENDING_EXPIRY = 1000;
+
+	private ConcurrentMap<ExecutionContext, Map<Bytes, FetchedRow>> contextRows = new ConcurrentHashMap<ExecutionContext, Map<Bytes, FetchedRow>>();
+
+	// the row read while resolving the class of an id, fetched next
+	private ConcurrentMap<ExecutionContext, PendingRow> pendingRows = new ConcurrentHashMap<ExecutionContext, PendingRow>();
+
+	// when the expired pending rows of closed contexts are dropped next
+	private final AtomicLong nextSweep = new AtomicLong();
+
+	private CassandraStoreManager manager;
+
+	public BatchFetchManager(CassandraStoreManager manager) {
+		this.manager = manager;
+	}
+
+	/**
+	 * Read every field of the class for all keys with a single multiget and
+	 * hold the rows until they are consumed or cleared
+	 *
+	 * @param context
+	 * @param metaData
+	 *            The class of every key
+	 * @param keys
+	 *            The row keys to read
+	 */
+	public void prefetch(ExecutionContext context,
+			AbstractClassMetaData metaData, List<Bytes> keys) {
+
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		String columnFamily = getColumnFamily(metaData);
+		int[] fieldNumbers = metaData.getAllMemberPositions();
+
+		Map<Bytes, List<Column>> rows;
+
+		try {
+			rows = Pelops.createSelector(manager.getPoolName())
+					.getColumnsFromRows(columnFamily, keys,
+							getFetchColumnList(metaData, fieldNumbers),
+							Consistency.get());
+		} catch (Exception e) {
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+
+		for (Entry<Bytes, List<Column>> row : rows.entrySet()) {
+			register(context, row.getKey(), new FetchedRow(columnFamily,
+					metaData.getFullClassName(), fieldNumbers, row.getValue()));
+		}
+	}
+
+	/**
+	 * Read every column of the row with a slice of a page of columns at a
+	 * time. Each page starts with the last column of the page before it.
+	 * Reading stops as soon as the row has more than the maximum number of
+	 * columns, so a large row is never held
+	 * 
+	 * @param selector
+	 * @param columnFamily
+	 * @param key
+	 * @param maxColumns
+	 *            The most columns the row may have
+	 * @return The columns of the row ordered by name, null if the row has more
+	 *         than the maximum number of columns
+	 */
+	public List<Column> readRow(Selector selector, String columnFamily,
+			Bytes key, int maxColumns) {
+
+		List<Column> columns = new ArrayList<Column>();
+
+		// one column more than the maximum tells if the row is too large
+		SliceRange range = new SliceRange(EMPTY, EMPTY, false, Math.min(
+				ROW_PAGE_SIZE, maxColumns) + 1);
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setSlice_range(range);
+
+		while (true) {
+			List<Column> page = selector.getColumnsFromRow(columnFamily, key,
+					predicate, Consistency.get());
+
+			// the first column was the last one of the previous page
+			int start = columns.isEmpty() || page.isEmpty() ? 0 : 1;
+
+			columns.addAll(page.subList(start, page.size()));
+
+			if (columns.size() > maxColumns) {
+				return null;
+			}
+
+			if (page.size() < range.getCount()) {
+				return columns;
+			}
+
+			range.setStart(page.get(page.size() - 1).name.duplicate());
+		}
+	}
+
+	/**
+	 * Find the related objects with the given ids. The rows of the objects
+	 * that aren't already in the cache of the execution context are read with
+	 * a multiget per page of the fetch batch size and each object is populated
+	 * with its default fetch group.
+	 * 
+	 * Returns the objects that were found by their id. Ids that are missing
+	 * could not be read in bulk and should be found individually
+	 * 
+	 * @param context
+	 * @param type
+	 *            The class the ids were created for
+	 * @param ids
+	 * @return
+	 */
+	public Map<Object, Object> findObjects(ExecutionContext context,
+			Class<?> type, List<Object> ids) {
+
+		Map<Object, Object> found = new HashMap<Object, Object>(ids.size());
+
+		if (ids.isEmpty()) {
+			return found;
+		}
+
+		ClassLoaderResolver clr = context.getClassLoaderResolver();
+
+		AbstractClassMetaData metaData = context.getMetaDataManager()
+				.getMetaDataForClass(type, clr);
+
+		if (metaData == null) {
+			return found;
+		}
+
+		String columnFamily = getColumnFamily(metaData);
+		Bytes discriminatorColumn = getDiscriminatorColumnName(metaData);
+
+		// without a discriminator the class of a row is only known if there
+		// are no subclasses to store it
+		if (columnFamily == null
+				|| (discriminatorColumn == null && hasSubclasses(context,
+						metaData))) {
+			return found;
+		}
+
+		Set<Bytes> columns = new LinkedHashSet<Bytes>();
+
+		if (discriminatorColumn != null) {
+			columns.add(discriminatorColumn);
+		}
+
+		columns.addAll(getDefaultFetchColumns(metaData, clr, context));
+
+		SlicePredicate predicate = Selector.newColumnsPredicate(columns
+				.toArray(new Bytes[columns.size()]));
+
+		int batchSize = manager.getFetchBatchSize();
+
+		Map<Bytes, Object> page = new LinkedHashMap<Bytes, Object>(batchSize);
+
+		for (Object id : ids) {
+
+			// already loaded, finding it won't read anything
+			if (context.getObjectFromCache(id) != null) {
+				continue;
+			}
+
+			page.put(manager.getByteConverterContext().getRowKeyForId(id), id);
+
+			if (page.size() == batchSize) {
+				findPage(context, metaData, columnFamily, discriminatorColumn,
+						columns, predicate, page, found);
+			}
+		}
+
+		findPage(context, metaData, columnFamily, discriminatorColumn,
+				columns, predicate, page, found);
+
+		return found;
+	}
+
+	/**
+	 * Find the related objects with the given ids in bulk. Objects that
+	 * couldn't be read in bulk are found individually. Returns the object of
+	 * each id at the same position, null if the object no longer exists
+	 * 
+	 * @param context
+	 * @param type
+	 *            The class the ids were created for
+	 * @param ids
+	 * @param typeName
+	 *            The type name of the field the objects are related by
+	 * @return
+	 */
+	public List<Object> findRelated(ExecutionContext context, Class<?> type,
+			List<Object> ids, String typeName) {
+
+		Map<Object, Object> found = findObjects(context, type, ids);
+
+		List<Object> related = new ArrayList<Object>(ids.size());
+
+		for (Object id : ids) {
+			Object object = found.get(id);
+
+			if (object == null) {
+				try {
+					object = context.findObject(id, false, true, typeName);
+				} catch (NucleusObjectNotFoundException nonfe) {
+					// swallow. TODO remove the lazy reference if record is
+					// over tombstone time
+				}
+			}
+
+			related.add(object);
+		}
+
+		return related;
+	}
+
+	/**
+	 * Read the rows of a page of ids with a single multiget and populate the
+	 * objects of every row that exists. The page is cleared once it has been
+	 * read
+	 * 
+	 * @param context
+	 * @param metaData
+	 * @param columnFamily
+	 * @param discriminatorColumn
+	 * @param columns
+	 *            The names of the columns that are read
+	 * @param predicate
+	 * @param page
+	 *            The ids by their row key
+	 * @param found
+	 */
+	private void findPage(ExecutionContext context,
+			AbstractClassMetaData metaData, String columnFamily,
+			Bytes discriminatorColumn, Set<Bytes> columns,
+			SlicePredicate predicate, Map<Bytes, Object> page,
+			Map<Object, Object> found) {
+
+		if (page.isEmpty()) {
+			return;
+		}
+
+		ClassLoaderResolver clr = context.getClassLoaderResolver();
+		ByteConverterContext byteContext = manager.getByteConverterContext();
+		Selector selector = Pelops.createSelector(manager.getPoolName());
+
+		Map<Bytes, List<Column>> rows;
+
+		try {
+			rows = selector.getColumnsFromRows(columnFamily,
+					new ArrayList<Bytes>(page.keySet()), predicate,
+					Consistency.get());
+		} catch (Exception e) {
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+
+		for (Entry<Bytes, List<Column>> entry : rows.entrySet()) {
+
+			// deleted or never written, leave it to be found individually
+			if (entry.getValue().size() == 0) {
+				continue;
+			}
+
+			Columns row = new Columns(entry.getKey());
+
+			for (Column column : entry.getValue()) {
+				row.addResult(column);
+			}
+
+			Object id = page.get(entry.getKey());
+			Object targetId = id;
+
+			Class<?> targetClass = clr.classForName(metaData
+					.getFullClassName());
+			AbstractClassMetaData targetMetaData = metaData;
+
+			if (discriminatorColumn != null) {
+
+				Bytes discriminatorValue = row
+						.getColumnValue(discriminatorColumn);
+
+				if (discriminatorValue == null) {
+					continue;
+				}
+
+				String className = org.datanucleus.metadata.MetaDataUtils
+						.getClassNameFromDiscriminatorValue(
+								byteContext.getString(discriminatorValue),
+								metaData.getDiscriminatorMetaData(), context);
+
+				targetClass = clr.classForName(className);
+				targetMetaData = context.getMetaDataManager()
+						.getMetaDataForClass(targetClass, clr);
+
+				if (targetMetaData != metaData) {
+					targetId = byteContext.getObjectIdentity(context,
+							targetClass, entry.getKey());
+				}
+			}
+
+			Object object = context.findObject(targetId, new RowFieldValues(
+					row, getDefaultFetchFields(targetMetaData, clr, columns),
+					getColumnFamily(targetMetaData), selector), targetClass,
+					false);
+
+			if (object != null) {
+				found.put(id, object);
+			}
+		}
+
+		page.clear();
+	}
+
+	/**
+	 * Returns true if any class extends the class of the meta data
+	 * 
+	 * @param context
+	 * @param metaData
+	 * @return
+	 */
+	private boolean hasSubclasses(ExecutionContext context,
+			AbstractClassMetaData metaData) {
+		String[] subclasses = context.getMetaDataManager()
+				.getSubclassesForClass(metaData.getFullClassName(), true);
+
+		return subclasses != null && subclasses.length > 0;
+	}
+
+	/**
+	 * Hold a row that has already been read for the execution context
+	 *
+	 * @param context
+	 * @param key
+	 * @param row
+	 */
+	public void register(ExecutionContext context, Bytes key, FetchedRow row) {
+		Map<Bytes, FetchedRow> rows = contextRows.get(context);
+
+		// an execution context is only used by a single thread at a time
+		if (rows == null) {
+			rows = new HashMap<Bytes, FetchedRow>();
+			contextRows.put(context, rows);
+		}
+
+		rows.put(key, row);
+	}
+
+	/**
+	 * Hold a row that was read while resolving the class of an id. The object
+	 * is fetched straight after, so only the last row read for each execution
+	 * context is held. It's dropped by the next fetch, by a write or delete of
+	 * the row, or once it has expired. At most once per expiry a single caller
+	 * also drops the expired rows of every other execution context, so a
+	 * closed context isn't held
+	 * 
+	 * @param context
+	 * @param key
+	 * @param row
+	 */
+	public void registerPending(ExecutionContext context, Bytes key,
+			FetchedRow row) {
+
+		long now = System.currentTimeMillis();
+
+		pendingRows.put(context, new PendingRow(key, row, now
+				+ PENDING_EXPIRY));
+
+		long sweep = nextSweep.get();
+
+		if (now < sweep
+				|| !nextSweep.compareAndSet(sweep, now + PENDING_EXPIRY)) {
+			return;
+		}
+
+		for (Iterator<PendingRow> it = pendingRows.values().iterator(); it
+				.hasNext();) {
+			if (it.next().isExpired(now)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop the row held for the fetch of the execution context if it has the
+	 * key. The row is being written or deleted, so it's stale
+	 * 
+	 * @param context
+	 * @param key
+	 */
+	public void invalidatePending(ExecutionContext context, Bytes key) {
+		PendingRow pending = pendingRows.get(context);
+
+		if (pending != null && pending.key.equals(key)) {
+			pendingRows.remove(context, pending);
+		}
+	}
+
+	/**
+	 * Remove the row with the key and return its columns if it was read for
+	 * all requested fields. Returns null if the row needs to be read
+	 *
+	 * @param context
+	 * @param columnFamily
+	 * @param className
+	 * @param key
+	 * @param fieldNumbers
+	 * @return
+	 */
+	public List<Column> consume(ExecutionContext context, String columnFamily,
+			String className, Bytes key, int[] fieldNumbers) {
+
+		PendingRow pending = pendingRows.remove(context);
+
+		if (pending != null
+				&& !pending.isExpired(System.currentTimeMillis())
+				&& pending.key.equals(key)
+				&& pending.row.covers(columnFamily, className, fieldNumbers)) {
+			return pending.row.getColumns();
+		}
+
+		Map<Bytes, FetchedRow> rows = contextRows.get(context);
+
+		if (rows == null) {
+			return null;
+		}
+
+		FetchedRow row = rows.remove(key);
+
+		if (row == null
+				|| !row.covers(columnFamily, className, fieldNumbers)) {
+			return null;
+		}
+
+		return row.getColumns();
+	}
+
+	/**
+	 * Drop every row held for the execution context
+	 *
+	 * @param context
+	 */
+	public void clear(ExecutionContext context) {
+		contextRows.remove(context);
+		pendingRows.remove(context);
+	}
+
+	/**
+	 * A row read for the next fetch of an execution context
+	 * 
+	 */
+	private static class PendingRow {
+
+		private final Bytes key;
+
+		private final FetchedRow row;
+
+		private final long expires;
+
+		private PendingRow(Bytes key, FetchedRow row, long expires) {
+			this.key = key;
+			this.row = row;
+			this.expires = expires;
+		}
+
+		/**
+		 * Returns true if the row is too old to be fetched
+		 * 
+		 * @param now
+		 * @return
+		 */
+		private boolean isExpired(long now) {
+			return now > expires;
+		}
+	}
+
+}
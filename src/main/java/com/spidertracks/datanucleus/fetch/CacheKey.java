@@ -0,0 +1,56 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * The key of a cached row. The name is the column family of the row or the
+ * class its key was created for
+ *
+ * @author Todd Nine
+ *
+ */
+class CacheKey {
+
+	private final String name;
+
+	private final Bytes key;
+
+	CacheKey(String name, Bytes key) {
+		this.name = name;
+		this.key = key;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * name.hashCode() + key.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof CacheKey)) {
+			return false;
+		}
+
+		CacheKey other = (CacheKey) obj;
+
+		return name.equals(other.name) && key.equals(other.key);
+	}
+
+}
@@ -0,0 +1,150 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Holds the concrete class of recently resolved row keys, so the class of an
+ * id doesn't need to be read from Cassandra every time it is looked up. The
+ * discriminator of a row is only written when it is inserted, so the class of
+ * a row never changes until it is deleted. Entries are evicted once the cache
+ * is over its maximum size, least recently used first, and expire after the
+ * time to live.
+ * 
+ * Deletes through the store manager invalidate the row. A row deleted and
+ * written again with another class by another client is only seen once the
+ * entry expires.
+ * 
+ * Keys are scoped by the base class of the inheritance tree, since the same
+ * key may be used by unrelated classes.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ClassNameCache {
+
+	private final int maxSize;
+
+	private final long ttl;
+
+	private final Map<CacheKey, CachedClass> classNames;
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of class names held
+	 * @param ttl
+	 *            The time in milliseconds a class name is held after it was
+	 *            read
+	 */
+	public ClassNameCache(int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+
+		this.classNames = new LinkedHashMap<CacheKey, CachedClass>(16, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Entry<CacheKey, CachedClass> eldest) {
+				return size() > ClassNameCache.this.maxSize;
+			}
+
+		};
+	}
+
+	/**
+	 * Get the concrete class of the row. Returns null if it isn't cached or
+	 * expired
+	 * 
+	 * @param baseClassName
+	 *            The base class of the inheritance tree
+	 * @param key
+	 * @return
+	 */
+	public String get(String baseClassName, Bytes key) {
+		CacheKey cacheKey = new CacheKey(baseClassName, key);
+
+		synchronized (classNames) {
+			CachedClass cached = classNames.get(cacheKey);
+
+			if (cached == null) {
+				return null;
+			}
+
+			if (cached.expires < System.currentTimeMillis()) {
+				classNames.remove(cacheKey);
+				return null;
+			}
+
+			return cached.className;
+		}
+	}
+
+	/**
+	 * Set the concrete class of the row
+	 * 
+	 * @param baseClassName
+	 *            The base class of the inheritance tree
+	 * @param key
+	 * @param className
+	 */
+	public void put(String baseClassName, Bytes key, String className) {
+		synchronized (classNames) {
+			classNames.put(new CacheKey(baseClassName, key), new CachedClass(
+					className, System.currentTimeMillis() + ttl));
+		}
+	}
+
+	/**
+	 * Remove the row, it was deleted and may be written again with another
+	 * class
+	 * 
+	 * @param baseClassName
+	 *            The base class of the inheritance tree
+	 * @param key
+	 */
+	public void invalidate(String baseClassName, Bytes key) {
+		synchronized (classNames) {
+			classNames.remove(new CacheKey(baseClassName, key));
+		}
+	}
+
+	/**
+	 * The class name of a row and when it expires
+	 * 
+	 */
+	private static class CachedClass {
+
+		private final String className;
+
+		private final long expires;
+
+		private CachedClass(String className, long expires) {
+			this.className = className;
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.cassandra.thrift.Column;
+
+/**
+ * The columns of a row that were read before the object was fetched, along
+ * with the class and fields they were read for
+ *
+ * @author Todd Nine
+ *
+ */
+public class FetchedRow {
+
+	private String columnFamily;
+	private String className;
+	private int[] fieldNumbers;
+	private List<Column> columns;
+
+	public FetchedRow(String columnFamily, String className,
+			int[] fieldNumbers, List<Column> columns) {
+		this.columnFamily = columnFamily;
+		this.className = className;
+		this.columns = columns;
+
+		this.fieldNumbers = fieldNumbers.clone();
+		Arrays.sort(this.fieldNumbers);
+	}
+
+	/**
+	 * Returns true if every requested field of the class was read with this
+	 * row
+	 *
+	 * @param columnFamily
+	 * @param className
+	 * @param requested
+	 * @return
+	 */
+	public boolean covers(String columnFamily, String className,
+			int[] requested) {
+		if (!this.columnFamily.equals(columnFamily)
+				|| !this.className.equals(className)) {
+			return false;
+		}
+
+		for (int fieldNumber : requested) {
+			if (Arrays.binarySearch(fieldNumbers, fieldNumber) < 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the columns that were read
+	 */
+	public List<Column> getColumns() {
+		return columns;
+	}
+
+}
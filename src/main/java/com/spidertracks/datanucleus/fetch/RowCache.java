@@ -0,0 +1,251 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.cassandra.thrift.Column;
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Holds the columns of recently read rows for every execution context of the
+ * store manager. Entries are evicted once the cache is over its maximum number
+ * of rows, least recently used first, and expire after the time to live.
+ *
+ * Every row written or deleted through the batch mutator of the store manager
+ * is invalidated before the mutation is sent and again once it has been sent.
+ * The rows of a mutation are invalidated together, taking the lock once.
+ * Writes by other clients are only seen once the entry expires.
+ *
+ * A read that started before any invalidation is never cached, so a read that
+ * races with a write can't put the old columns back. Under a heavy write load
+ * little is cached, this is intended for read mostly data.
+ *
+ * The cached values are copies and a new {@link Bytes} is created for every
+ * get, so nothing read from the cache can be changed by the caller.
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowCache {
+
+	private final int maxSize;
+
+	private final long ttl;
+
+	private final Map<CacheKey, CachedRow> rows;
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of rows held
+	 * @param ttl
+	 *            The time in milliseconds a row is held after it was read
+	 */
+	public RowCache(final int maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+
+		this.rows = new LinkedHashMap<CacheKey, CachedRow>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<CacheKey, CachedRow> eldest) {
+				return size() > RowCache.this.maxSize;
+			}
+
+		};
+	}
+
+	/**
+	 * Get the stamp of the cache before a row is read. Pass it to
+	 * {@link #put(String, Bytes, Bytes[], List, long)} once the row was read
+	 *
+	 * @return
+	 */
+	public long getStamp() {
+		return invalidations.get();
+	}
+
+	/**
+	 * Get the values of the columns if every column has been read. Columns
+	 * that don't exist are not returned. Returns null if any column hasn't
+	 * been read or the row expired
+	 *
+	 * @param columnFamily
+	 * @param key
+	 * @param names
+	 * @return
+	 */
+	public Map<Bytes, Bytes> get(String columnFamily, Bytes key, Bytes[] names) {
+
+		CachedRow row;
+
+		synchronized (rows) {
+			row = rows.get(new CacheKey(columnFamily, key));
+		}
+
+		if (row == null) {
+			return null;
+		}
+
+		if (row.expires < System.currentTimeMillis()) {
+			synchronized (rows) {
+				rows.remove(new CacheKey(columnFamily, key));
+			}
+
+			return null;
+		}
+
+		Map<Bytes, Bytes> values = new HashMap<Bytes, Bytes>(names.length);
+
+		synchronized (row) {
+			for (Bytes name : names) {
+				if (!row.values.containsKey(name)) {
+					return null;
+				}
+
+				byte[] value = row.values.get(name);
+
+				if (value != null) {
+					values.put(name, Bytes.fromByteArray(value));
+				}
+			}
+		}
+
+		return values;
+	}
+
+	/**
+	 * Add the columns read for the names to the row. Names without a column
+	 * are cached as not existing. Nothing is cached if the row was invalidated
+	 * since the stamp was taken
+	 *
+	 * @param columnFamily
+	 * @param key
+	 * @param names
+	 *            The names of the columns that were read
+	 * @param columns
+	 *            The columns that were returned
+	 * @param stamp
+	 *            The stamp taken before the columns were read
+	 */
+	public void put(String columnFamily, Bytes key, Bytes[] names,
+			List<Column> columns, long stamp) {
+
+		CacheKey rowKey = new CacheKey(columnFamily, copy(key.getBytes()));
+
+		CachedRow row;
+
+		synchronized (rows) {
+			if (invalidations.get() != stamp) {
+				return;
+			}
+
+			row = rows.get(rowKey);
+
+			if (row == null || row.expires < System.currentTimeMillis()) {
+				row = new CachedRow(System.currentTimeMillis() + ttl);
+				rows.put(rowKey, row);
+			}
+		}
+
+		synchronized (row) {
+			for (Bytes name : names) {
+				row.values.put(copy(name.getBytes()), null);
+			}
+
+			for (Column column : columns) {
+				byte[] value = new byte[column.value.remaining()];
+				column.value.duplicate().get(value);
+
+				row.values.put(copy(column.name), value);
+			}
+		}
+	}
+
+	/**
+	 * Remove the row from the cache
+	 *
+	 * @param columnFamily
+	 * @param key
+	 */
+	public void invalidate(String columnFamily, Bytes key) {
+		synchronized (rows) {
+			invalidations.incrementAndGet();
+			rows.remove(new CacheKey(columnFamily, key));
+		}
+	}
+
+	/**
+	 * Remove the rows from the cache. The lock is taken once and the stamp
+	 * only moves once for all of them
+	 *
+	 * @param rowKeys
+	 *            The keys of the rows by their column family
+	 */
+	public void invalidate(Map<String, Set<Bytes>> rowKeys) {
+		synchronized (rows) {
+			invalidations.incrementAndGet();
+
+			for (Entry<String, Set<Bytes>> columnFamily : rowKeys.entrySet()) {
+				for (Bytes key : columnFamily.getValue()) {
+					rows.remove(new CacheKey(columnFamily.getKey(), key));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the buffer so the cache never holds memory it doesn't own
+	 *
+	 * @param buffer
+	 * @return
+	 */
+	private static Bytes copy(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return Bytes.fromByteArray(bytes);
+	}
+
+	/**
+	 * The columns that have been read of a row. A null value means the column
+	 * doesn't exist
+	 *
+	 */
+	private static class CachedRow {
+
+		private final long expires;
+
+		private final Map<Bytes, byte[]> values = new HashMap<Bytes, byte[]>();
+
+		private CachedRow(long expires) {
+			this.expires = expires;
+		}
+	}
+
+}
@@ -0,0 +1,75 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import org.datanucleus.FetchPlan;
+import org.datanucleus.store.FieldValues;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Selector;
+
+import com.spidertracks.datanucleus.CassandraFetchFieldManager;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * Populates an object from columns of its row that were already read, so the
+ * row doesn't need to be read again
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowFieldValues implements FieldValues {
+
+	private Columns row;
+	private int[] fieldNumbers;
+	private String columnFamily;
+	private Selector selector;
+
+	/**
+	 * @param row
+	 *            The columns read for the object
+	 * @param fieldNumbers
+	 *            The fields that every column was read for
+	 * @param columnFamily
+	 * @param selector
+	 */
+	public RowFieldValues(Columns row, int[] fieldNumbers,
+			String columnFamily, Selector selector) {
+		this.row = row;
+		this.fieldNumbers = fieldNumbers;
+		this.columnFamily = columnFamily;
+		this.selector = selector;
+	}
+
+	public void fetchFields(ObjectProvider op) {
+		op.replaceFields(fieldNumbers, createFieldManager(op));
+	}
+
+	public void fetchNonLoadedFields(ObjectProvider op) {
+		op.replaceNonLoadedFields(fieldNumbers, createFieldManager(op));
+	}
+
+	public FetchPlan getFetchPlanForLoading() {
+		return null;
+	}
+
+	private CassandraFetchFieldManager createFieldManager(ObjectProvider op) {
+		return new CassandraFetchFieldManager(row.getColumns(), op,
+				columnFamily, row.getRowKey(), selector);
+	}
+
+}
@@ -16,28 +16,63 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Pelops;
 
 import com.spidertracks.datanucleus.CassandraStoreManager;
+import com.spidertracks.datanucleus.convert.ByteBufferArena;
 
 /**
- * Internalises all pending operations for a given Execution context.
+ * Internalises all pending operations for a given Execution context. A single
+ * instance is shared by every execution context of the store manager, so the
+ * pending operations are held in concurrent maps. These are lock striped, so
+ * flushes from independent execution contexts never contend with each other.
+ * An execution context is only ever used by a single thread at a time, so the
+ * operations themselves are not synchronized.
+ * 
+ * When the flush mode is {@link FlushMode#COMMIT} and the execution context
+ * has an active transaction, the operations are held until the transaction
+ * is about to commit and are then executed together. They are discarded on
+ * rollback. Once the deferred operations are executed the context is marked
+ * as committing, and any operation made before the transaction ends is
+ * executed immediately.
+ * 
+ * Every root write or delete takes a later timestamp than the one before it,
+ * even when several are held in the same mutator. Deferred writes and
+ * deletions are sent separately, so this keeps a row deleted and then written
+ * again in the same transaction from being hidden by its own deletion.
+ * 
+ * When the flush mode is {@link FlushMode#ASYNC} the operations are submitted
+ * to the asynchronous executor of the store manager instead of being executed
+ * by the calling thread. Within a transaction the futures are kept so commit
+ * can wait for them. Every operation has a later timestamp than the ones
+ * before it, so the order they reach Cassandra in does not matter.
  * 
  * @author Todd Nine
  * 
  */
 public class BatchMutationManager {
 
-	private Map<ExecutionContext, ExecutionContextMutate> contextMutations = new HashMap<ExecutionContext, ExecutionContextMutate>();
-	private Map<ExecutionContext, ExecutionContextDelete> contextDeletions = new HashMap<ExecutionContext, ExecutionContextDelete>();
+	private ConcurrentMap<ExecutionContext, ExecutionContextMutate> contextMutations = new ConcurrentHashMap<ExecutionContext, ExecutionContextMutate>();
+	private ConcurrentMap<ExecutionContext, ExecutionContextDelete> contextDeletions = new ConcurrentHashMap<ExecutionContext, ExecutionContextDelete>();
+	private ConcurrentMap<ExecutionContext, TransactionFlush> transactionFlushes = new ConcurrentHashMap<ExecutionContext, TransactionFlush>();
+	private ConcurrentMap<ExecutionContext, Queue<Future<Void>>> outstanding = new ConcurrentHashMap<ExecutionContext, Queue<Future<Void>>>();
+	private ConcurrentMap<ExecutionContext, Boolean> committing = new ConcurrentHashMap<ExecutionContext, Boolean>();
 
 	private CassandraStoreManager manager;
 
+	private final AtomicLong lastTimestamp = new AtomicLong();
+
 	public BatchMutationManager(CassandraStoreManager manager) {
 		this.manager = manager;
 	}
@@ -45,17 +80,45 @@ public class BatchMutationManager {
 	public ExecutionContextDelete beginDelete(ExecutionContext context,
 			ObjectProvider op) {
 		ExecutionContextDelete deleteContext = getDeletions(context);
-		deleteContext.pushInstance();
+		begin(deleteContext);
 		return deleteContext;
 
 	}
 
 	public ExecutionContextMutate beginWrite(ExecutionContext context) {
 		ExecutionContextMutate mutationContext = getMutations(context);
-		mutationContext.pushInstance();
+		begin(mutationContext);
 		return mutationContext;
 	}
 
+	/**
+	 * Push the instance, giving the operation a new timestamp if it's the root
+	 * instance so it's ordered after every operation before it
+	 * 
+	 * @param op
+	 */
+	private void begin(ExecutionContextOp op) {
+		if (op.pushInstance()) {
+			op.getMutator().setTimestamp(nextTimestamp());
+		}
+	}
+
+	/**
+	 * Get a timestamp later than any timestamp returned before
+	 * 
+	 * @return
+	 */
+	private long nextTimestamp() {
+		while (true) {
+			long last = lastTimestamp.get();
+			long next = Math.max(System.nanoTime() / 1000, last + 1);
+
+			if (lastTimestamp.compareAndSet(last, next)) {
+				return next;
+			}
+		}
+	}
+
 	/**
 	 * Returns true if this is the last object to end writing. This mean the
 	 * mutation for this context should be saved
@@ -67,15 +130,25 @@ public class BatchMutationManager {
 	 */
 	public void endDelete(ExecutionContext context)
 			throws Exception {
+		ExecutionContextDelete deletions = getDeletions(context);
+
 		// not our root instance, don't create a batch mutation
-		if (!getDeletions(context).popInstance()) {
+		if (!deletions.popInstance()) {
 			return;
 		}
 
-		// it is our root instance, create the batch mutation.
+		// leave it pending until the transaction commits
+		if (deferToCommit(context)) {
+			return;
+		}
 
-		getDeletions(context).execute();
-		contextDeletions.remove(context);
+		// it is our root instance, create the batch mutation. Always remove
+		// it so a failed execute can't leak into the next operation
+		try {
+			flush(context, deletions);
+		} finally {
+			contextDeletions.remove(context);
+		}
 
 	}
 
@@ -90,16 +163,222 @@ public class BatchMutationManager {
 	 */
 	public void endWrite(ExecutionContext context)
 			throws Exception {
+		ExecutionContextMutate mutations = getMutations(context);
+
 		// not our root instance, don't create a batch mutation
-		if (!getMutations(context).popInstance()) {
+		if (!mutations.popInstance()) {
+			return;
+		}
+
+		// leave it pending until the transaction commits
+		if (deferToCommit(context)) {
+			return;
+		}
+
+		// it is our root instance, create the batch mutation. Always remove
+		// it so a failed execute can't leak into the next operation
+		try {
+			flush(context, mutations);
+		} catch (Exception e) {
+			mutations.resetStoredColumns();
+			throw e;
+		} finally {
+			contextMutations.remove(context);
+		}
+
+	}
+
+	/**
+	 * Execute all mutations and deletions that were deferred until the
+	 * transaction of this execution context committed, then wait for any
+	 * asynchronous operations submitted during the transaction. Operations
+	 * made after this until the transaction ends are executed immediately
+	 * 
+	 * @param context
+	 * @throws Exception
+	 */
+	public void executeDeferred(ExecutionContext context) throws Exception {
+		committing.put(context, Boolean.TRUE);
+		transactionFlushes.remove(context);
+
+		ExecutionContextMutate mutations = contextMutations.remove(context);
+		ExecutionContextDelete deletions = contextDeletions.remove(context);
+		Queue<Future<Void>> futures = outstanding.remove(context);
+
+		if (mutations != null) {
+			try {
+				mutations.execute();
+			} catch (Exception e) {
+				mutations.resetStoredColumns();
+				throw e;
+			}
+		}
+
+		if (deletions != null) {
+			deletions.execute();
+		}
+
+		if (futures != null) {
+			await(futures);
+		}
+	}
+
+	/**
+	 * End the transaction of this execution context. If the transaction
+	 * committed, nothing can be left deferred, so any remaining operation was
+	 * never written and fails the call rather than being lost silently
+	 * 
+	 * @param context
+	 * @param committed
+	 */
+	public void endTransaction(ExecutionContext context, boolean committed) {
+		committing.remove(context);
+
+		boolean remaining = contextMutations.containsKey(context)
+				|| contextDeletions.containsKey(context)
+				|| outstanding.containsKey(context);
+
+		// nothing must leak into the next transaction
+		discardDeferred(context);
+
+		if (committed && remaining) {
+			throw new NucleusDataStoreException(
+					"The transaction committed with operations that were deferred to the commit and never written");
+		}
+	}
+
+	/**
+	 * Discard all mutations and deletions that were deferred for this execution
+	 * context without executing them
+	 * 
+	 * @param context
+	 */
+	public void discardDeferred(ExecutionContext context) {
+		transactionFlushes.remove(context);
+		contextDeletions.remove(context);
+		outstanding.remove(context);
+
+		ExecutionContextMutate mutations = contextMutations.remove(context);
+
+		// nothing was written, so the stored columns are wrong
+		if (mutations != null) {
+			mutations.resetStoredColumns();
+			mutations.discard();
+		}
+	}
+
+	/**
+	 * Execute the operation, or submit it to the asynchronous executor if the
+	 * flush mode is async
+	 * 
+	 * @param context
+	 * @param op
+	 * @throws Exception
+	 */
+	private void flush(ExecutionContext context, ExecutionContextOp op)
+			throws Exception {
+
+		// a committing transaction can't wait on anything submitted now
+		if (manager.getFlushMode() != FlushMode.ASYNC
+				|| committing.containsKey(context)) {
+			op.execute();
+			return;
+		}
+
+		Future<Void> future = op.submit(manager.getAsyncExecutor());
+
+		// fire and forget, nothing will wait on it
+		if (!manager.isAsyncWaitOnCommit()
+				|| !context.getTransaction().isActive()) {
+			return;
+		}
+
+		registerFlush(context);
+
+		Queue<Future<Void>> futures = outstanding.get(context);
+
+		if (futures == null) {
+			futures = new ConcurrentLinkedQueue<Future<Void>>();
+
+			Queue<Future<Void>> existing = outstanding.putIfAbsent(context,
+					futures);
+
+			if (existing != null) {
+				futures = existing;
+			}
+		}
+
+		futures.add(future);
+	}
+
+	/**
+	 * Wait for all futures to complete. If any failed, the first failure is
+	 * thrown once all have completed
+	 * 
+	 * @param futures
+	 * @throws Exception
+	 */
+	private void await(Queue<Future<Void>> futures) throws Exception {
+		Throwable failure = null;
+
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+
+		if (failure == null) {
 			return;
 		}
 
-		// it is our root instance, create the batch mutation.
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		}
+
+		throw new NucleusDataStoreException(failure.getMessage(), failure);
+	}
+
+	/**
+	 * Returns true if the pending operations should be held until the
+	 * transaction commits. Registers a listener on the transaction the first
+	 * time an operation is deferred
+	 * 
+	 * @param context
+	 * @return
+	 */
+	private boolean deferToCommit(ExecutionContext context) {
+		if (manager.getFlushMode() != FlushMode.COMMIT
+				|| !context.getTransaction().isActive()
+				|| committing.containsKey(context)) {
+			return false;
+		}
+
+		registerFlush(context);
+
+		return true;
+	}
+
+	/**
+	 * Register a listener on the transaction of the execution context so
+	 * pending operations are completed on commit. Only registers once per
+	 * transaction
+	 * 
+	 * @param context
+	 */
+	private void registerFlush(ExecutionContext context) {
+		if (transactionFlushes.containsKey(context)) {
+			return;
+		}
 
-		getMutations(context).execute();
-		contextMutations.remove(context);
+		TransactionFlush flush = new TransactionFlush(this, context);
 
+		if (transactionFlushes.putIfAbsent(context, flush) == null) {
+			context.getTransaction().addTransactionEventListener(flush);
+		}
 	}
 
 	/**
@@ -111,13 +390,17 @@ public class BatchMutationManager {
 	private ExecutionContextMutate getMutations(ExecutionContext context) {
 		ExecutionContextMutate operations = contextMutations.get(context);
 
-		if (operations == null) {
-			operations = new ExecutionContextMutate(context,
-					Pelops.createMutator(manager.getPoolName(), System.nanoTime()/1000));
-			contextMutations.put(context, operations);
+		if (operations != null) {
+			return operations;
 		}
 
-		return operations;
+		operations = new ExecutionContextMutate(context, createMutator(),
+				new ByteBufferArena(manager.getSlabPool()));
+
+		ExecutionContextMutate existing = contextMutations.putIfAbsent(
+				context, operations);
+
+		return existing == null ? operations : existing;
 	}
 
 	/**
@@ -129,13 +412,28 @@ public class BatchMutationManager {
 	private ExecutionContextDelete getDeletions(ExecutionContext context) {
 		ExecutionContextDelete operations = contextDeletions.get(context);
 
-		if (operations == null) {
-			operations = new ExecutionContextDelete(context, Pelops
-					.createRowDeletor(manager.getPoolName(), System.nanoTime()/1000));
-			contextDeletions.put(context, operations);
+		if (operations != null) {
+			return operations;
 		}
 
-		return operations;
+		operations = new ExecutionContextDelete(context, createMutator());
+
+		ExecutionContextDelete existing = contextDeletions.putIfAbsent(
+				context, operations);
+
+		return existing == null ? operations : existing;
+	}
+
+	/**
+	 * Create a new batch mutator with the limits of the store manager
+	 * 
+	 * @return
+	 */
+	private BatchMutator createMutator() {
+		return new BatchMutator(Pelops.getDbConnPool(manager.getPoolName()),
+				nextTimestamp(), manager.getBatchMaxBytes(),
+				manager.getBatchMaxColumns(), manager.getBatchMaxRows(),
+				manager.getBatchExecutor(), manager.getRowCache());
 	}
 
 }
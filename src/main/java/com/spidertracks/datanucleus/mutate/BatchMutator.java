@@ -0,0 +1,476 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors : Todd Nine
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ColumnOrSuperColumn;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Deletion;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+
+import com.spidertracks.datanucleus.fetch.RowCache;
+
+/**
+ * Replacement for the Pelops Mutator that keeps track of the size of the
+ * pending mutations. Once adding a mutation would take the current batch over
+ * the maximum bytes, columns or rows a new batch is started. Each batch is
+ * sent with its own batch_mutate call so a large flush can never exceed the
+ * thrift frame size or time out the coordinator. If an executor is provided
+ * the batches are sent in parallel.
+ * 
+ * A single row may be split over several batches. Every mutation added since
+ * the timestamp was last set uses the same timestamp, so the order in which
+ * batches are applied does not matter.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BatchMutator extends Operand {
+
+	/**
+	 * Rough overhead of a single mutation on the wire, timestamp and thrift
+	 * field headers
+	 */
+	private static final int MUTATION_OVERHEAD = 24;
+
+	private long timestamp;
+	private final int maxBytes;
+	private final int maxColumns;
+	private final int maxRows;
+	private final ExecutorService executor;
+	private final RowCache cache;
+
+	private List<Batch> batches = new ArrayList<Batch>();
+	private Batch current;
+
+	/**
+	 * 
+	 * @param pool
+	 *            The pool to execute against
+	 * @param timestamp
+	 *            The timestamp of every mutation
+	 * @param maxBytes
+	 *            The maximum estimated size of a single batch
+	 * @param maxColumns
+	 *            The maximum number of column mutations in a single batch
+	 * @param maxRows
+	 *            The maximum number of rows in a single batch
+	 * @param executor
+	 *            The executor to send batches in parallel. If null batches are
+	 *            sent sequentially from the calling thread
+	 */
+	public BatchMutator(IThriftPool pool, long timestamp, int maxBytes,
+			int maxColumns, int maxRows, ExecutorService executor) {
+		this(pool, timestamp, maxBytes, maxColumns, maxRows, executor, null);
+	}
+
+	/**
+	 * 
+	 * @param pool
+	 *            The pool to execute against
+	 * @param timestamp
+	 *            The timestamp of every mutation
+	 * @param maxBytes
+	 *            The maximum estimated size of a single batch
+	 * @param maxColumns
+	 *            The maximum number of column mutations in a single batch
+	 * @param maxRows
+	 *            The maximum number of rows in a single batch
+	 * @param executor
+	 *            The executor to send batches in parallel. If null batches are
+	 *            sent sequentially from the calling thread
+	 * @param cache
+	 *            The cache to invalidate every mutated row in. May be null
+	 */
+	public BatchMutator(IThriftPool pool, long timestamp, int maxBytes,
+			int maxColumns, int maxRows, ExecutorService executor,
+			RowCache cache) {
+		super(pool);
+		this.timestamp = timestamp;
+		this.maxBytes = maxBytes;
+		this.maxColumns = maxColumns;
+		this.maxRows = maxRows;
+		this.executor = executor;
+		this.cache = cache;
+		this.current = new Batch();
+		this.batches.add(current);
+	}
+
+	/**
+	 * Set the timestamp of every mutation added from now on. Mutations that
+	 * were already added keep their timestamp
+	 * 
+	 * @param timestamp
+	 */
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Create a new column with the timestamp of this mutator
+	 * 
+	 * @param name
+	 * @param value
+	 * @return
+	 */
+	public Column newColumn(Bytes name, Bytes value) {
+		Column column = new Column();
+		column.setName(name.getBytes());
+		column.setValue(value == null ? null : value.getBytes());
+		column.setTimestamp(timestamp);
+		return column;
+	}
+
+	/**
+	 * Write the column to the row
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param column
+	 */
+	public void writeColumn(String columnFamily, Bytes rowKey, Column column) {
+		writeColumn(columnFamily, rowKey, column, false);
+	}
+
+	/**
+	 * Write the column to the row
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param column
+	 * @param deleteIfNull
+	 *            If true and the value of the column is null, the column is
+	 *            deleted instead
+	 */
+	public void writeColumn(String columnFamily, Bytes rowKey, Column column,
+			boolean deleteIfNull) {
+
+		if (column.value == null) {
+			if (deleteIfNull) {
+				deleteColumn(columnFamily, rowKey, Bytes.fromByteBuffer(column.name));
+				return;
+			}
+
+			throw new NucleusDataStoreException(
+					"Column values cannot be null");
+		}
+
+		ColumnOrSuperColumn cosc = new ColumnOrSuperColumn();
+		cosc.setColumn(column);
+
+		Mutation mutation = new Mutation();
+		mutation.setColumn_or_supercolumn(cosc);
+
+		addMutation(columnFamily, rowKey, mutation, column.name.remaining()
+				+ column.value.remaining());
+	}
+
+	/**
+	 * Delete the column from the row
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param columnName
+	 */
+	public void deleteColumn(String columnFamily, Bytes rowKey,
+			Bytes columnName) {
+
+		List<ByteBuffer> names = new ArrayList<ByteBuffer>(1);
+		names.add(columnName.getBytes());
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setColumn_names(names);
+
+		Deletion deletion = new Deletion();
+		deletion.setTimestamp(timestamp);
+		deletion.setPredicate(predicate);
+
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(deletion);
+
+		addMutation(columnFamily, rowKey, mutation, columnName.length());
+	}
+
+	/**
+	 * Delete the entire row. The deletion has no predicate, so every column
+	 * written before the timestamp of this mutator is removed
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 */
+	public void deleteRow(String columnFamily, Bytes rowKey) {
+
+		Deletion deletion = new Deletion();
+		deletion.setTimestamp(timestamp);
+
+		Mutation mutation = new Mutation();
+		mutation.setDeletion(deletion);
+
+		addMutation(columnFamily, rowKey, mutation, 0);
+	}
+
+	/**
+	 * Send all pending batches to cassandra. Waits for every batch to complete
+	 * before returning. If any batch fails the first failure is thrown once
+	 * all batches have completed.
+	 * 
+	 * @param consistency
+	 * @throws Exception
+	 */
+	public void execute(final ConsistencyLevel consistency) throws Exception {
+		Map<String, Set<Bytes>> rows = getRows();
+
+		// moves the stamp, so reads in flight can't cache the old columns
+		invalidate(rows);
+
+		try {
+			sendAll(consistency);
+		} finally {
+			// a read may have cached a row while the mutation was sent
+			invalidate(rows);
+		}
+	}
+
+	/**
+	 * Send every batch, in parallel if we have an executor
+	 * 
+	 * @param consistency
+	 * @throws Exception
+	 */
+	private void sendAll(final ConsistencyLevel consistency) throws Exception {
+
+		if (executor == null || batches.size() == 1) {
+			for (Batch batch : batches) {
+				send(batch, consistency);
+			}
+
+			return;
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(
+				batches.size());
+
+		for (final Batch batch : batches) {
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					send(batch, consistency);
+					return null;
+				}
+
+			}));
+		}
+
+		Throwable failure = null;
+
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+
+		if (failure == null) {
+			return;
+		}
+
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		}
+
+		throw new NucleusDataStoreException(failure.getMessage(), failure);
+	}
+
+	/**
+	 * Remove the rows from the cache, if there is one
+	 * 
+	 * @param rows
+	 */
+	private void invalidate(Map<String, Set<Bytes>> rows) {
+		if (cache != null && !rows.isEmpty()) {
+			cache.invalidate(rows);
+		}
+	}
+
+	/**
+	 * Get the key of every row mutated by any batch by its column family. A
+	 * row split over several batches is only included once
+	 * 
+	 * @return
+	 */
+	private Map<String, Set<Bytes>> getRows() {
+		Map<String, Set<Bytes>> rows = new HashMap<String, Set<Bytes>>();
+
+		if (cache == null) {
+			return rows;
+		}
+
+		for (Batch batch : batches) {
+			for (Entry<ByteBuffer, Map<String, List<Mutation>>> row : batch.mutations
+					.entrySet()) {
+				for (String columnFamily : row.getValue().keySet()) {
+					Set<Bytes> keys = rows.get(columnFamily);
+
+					if (keys == null) {
+						keys = new HashSet<Bytes>();
+						rows.put(columnFamily, keys);
+					}
+
+					keys.add(Bytes.fromByteBuffer(row.getKey()));
+				}
+			}
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Get the number of batch_mutate calls this mutator will perform on
+	 * execute
+	 * 
+	 * @return
+	 */
+	public int getBatchCount() {
+		return current.isEmpty() ? batches.size() - 1 : batches.size();
+	}
+
+	/**
+	 * Add the mutation to the current batch, starting a new one if it would
+	 * take the current batch over any of our limits
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param mutation
+	 * @param size
+	 *            The size of the column name and value
+	 */
+	private void addMutation(String columnFamily, Bytes rowKey,
+			Mutation mutation, int size) {
+
+		ByteBuffer key = rowKey.getBytes();
+
+		int bytes = size + MUTATION_OVERHEAD;
+
+		boolean newRow = !current.mutations.containsKey(key);
+
+		if (newRow) {
+			bytes += key.remaining() + columnFamily.length();
+		}
+
+		if (!current.isEmpty()
+				&& (current.columns + 1 > maxColumns
+						|| current.bytes + bytes > maxBytes || (newRow && current.mutations
+						.size() + 1 > maxRows))) {
+
+			current = new Batch();
+			batches.add(current);
+
+			if (!newRow) {
+				bytes += key.remaining() + columnFamily.length();
+			}
+		}
+
+		current.add(columnFamily, key, mutation, bytes);
+	}
+
+	/**
+	 * Send the batch in a single batch_mutate call
+	 * 
+	 * @param batch
+	 * @param consistency
+	 * @throws Exception
+	 */
+	private void send(final Batch batch, final ConsistencyLevel consistency)
+			throws Exception {
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		tryOperation(new IOperation<Void>() {
+
+			@Override
+			public Void execute(IPooledConnection conn) throws Exception {
+				conn.getAPI().batch_mutate(batch.mutations, consistency);
+				return null;
+			}
+
+		});
+	}
+
+	/**
+	 * A single set of mutations sent in one call
+	 * 
+	 */
+	private static class Batch {
+
+		private Map<ByteBuffer, Map<String, List<Mutation>>> mutations = new HashMap<ByteBuffer, Map<String, List<Mutation>>>();
+		private int bytes;
+		private int columns;
+
+		private void add(String columnFamily, ByteBuffer key,
+				Mutation mutation, int size) {
+
+			Map<String, List<Mutation>> row = mutations.get(key);
+
+			if (row == null) {
+				row = new HashMap<String, List<Mutation>>();
+				mutations.put(key, row);
+			}
+
+			List<Mutation> cfMutations = row.get(columnFamily);
+
+			if (cfMutations == null) {
+				cfMutations = new ArrayList<Mutation>();
+				row.put(columnFamily, cfMutations);
+			}
+
+			cfMutations.add(mutation);
+
+			bytes += size;
+			columns++;
+		}
+
+		private boolean isEmpty() {
+			return columns == 0;
+		}
+	}
+
+}
@@ -17,36 +17,30 @@ Contributors : Todd Nine
 package com.spidertracks.datanucleus.mutate;
 
 import java.util.IdentityHashMap;
-import java.util.List;
-import java.util.Stack;
 
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.ObjectProvider;
 import org.scale7.cassandra.pelops.Bytes;
-import org.scale7.cassandra.pelops.RowDeletor;
-
-import com.spidertracks.datanucleus.client.Consistency;
 
 /**
- * Holds all mutations for the current execution context
+ * Holds all row deletions for the current execution context. Every row of the
+ * delete graph is removed with a row level deletion in the same batch mutation,
+ * so they all share a single timestamp
  * 
  * @author Todd Nine
  * 
  */
 public class ExecutionContextDelete extends ExecutionContextOp {
 
-
-
-	//operations of mutations to perform
 	//our reference to visited objects so we don't get stuck in a recursive delete
 	private IdentityHashMap<ObjectProvider, Object> visited = new IdentityHashMap<ObjectProvider, Object>();
-	private List<Deletion> mutations = new Stack<Deletion>();
-	private RowDeletor deletor;
+	private BatchMutator mutator;
 
 	
-	public ExecutionContextDelete(ExecutionContext ctx, RowDeletor deletor) {
+	public ExecutionContextDelete(ExecutionContext ctx, BatchMutator mutator) {
 		super(ctx);
-		this.deletor = deletor;
+		this.mutator = mutator;
 	}
 
 
@@ -67,29 +61,21 @@ public class ExecutionContextDelete extends ExecutionContextOp {
 		
 		visited.put(op, null);
 		
-		mutations.add(new Deletion(key, columnFamily));
+		mutator.deleteRow(columnFamily, key);
 		
 		return true;
 	}
 
 
 
-	public void execute() throws Exception {
-		for (Deletion deletion : mutations) {
-			deletor.deleteRow(deletion.columnFamily, deletion.rowKey, Consistency.get());
-		}
+	@Override
+	public BatchMutator getMutator() {
+		return mutator;
 	}
-	
-	private class Deletion{
-		
-		public Deletion(Bytes rowKey, String columnFamily) {
-			super();
-			this.rowKey = rowKey;
-			this.columnFamily = columnFamily;
-		}
-		
-		private Bytes rowKey;
-		private String columnFamily;
+
+	@Override
+	public void execute(ConsistencyLevel consistency) throws Exception {
+		mutator.execute(consistency);
 	}
 
 }
@@ -16,10 +16,18 @@ Contributors : Todd Nine
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.datanucleus.store.ExecutionContext;
-import org.scale7.cassandra.pelops.Mutator;
+import org.datanucleus.store.ObjectProvider;
+import org.scale7.cassandra.pelops.Bytes;
 
-import com.spidertracks.datanucleus.client.Consistency;
+import com.spidertracks.datanucleus.collection.LazyLoader;
+import com.spidertracks.datanucleus.collection.StoredColumns;
+import com.spidertracks.datanucleus.convert.ByteBufferArena;
 
 /**
  * Holds all mutations for the current execution context
@@ -30,22 +38,102 @@ import com.spidertracks.datanucleus.client.Consistency;
 public class ExecutionContextMutate extends ExecutionContextOp {
 
 	// operations of mutations to perform
-	private Mutator mutator;
+	private BatchMutator mutator;
+
+	// holds the column names and values until the mutation has executed
+	private ByteBufferArena arena;
+
+	// stored columns set by this mutation
+	private List<StoredColumns> storedColumns = new ArrayList<StoredColumns>();
+
+	// lazy fields whose changes are written by this mutation, and the version
+	// of the changes written
+	private List<LazyLoader<?>> changedLoaders = new ArrayList<LazyLoader<?>>();
+	private List<Integer> changedVersions = new ArrayList<Integer>();
 
-	public ExecutionContextMutate(ExecutionContext ctx, Mutator mutator) {
+	public ExecutionContextMutate(ExecutionContext ctx, BatchMutator mutator,
+			ByteBufferArena arena) {
 		super(ctx);
 		this.mutator = mutator;
+		this.arena = arena;
 	}
 
-	public void execute() throws Exception {
-		mutator.execute(Consistency.get());
+	@Override
+	public void execute(ConsistencyLevel consistency) throws Exception {
+		try {
+			mutator.execute(consistency);
+		} finally {
+			// nothing references the mutation once executed
+			arena.release();
+		}
+
+		// only forget the changes once they are stored, a failure keeps them.
+		// This can run on another thread, the loader resets on its own thread
+		for (int i = 0; i < changedLoaders.size(); i++) {
+			changedLoaders.get(i).written(changedVersions.get(i));
+		}
+	}
+
+	/**
+	 * Release the arena without executing the mutation
+	 */
+	public void discard() {
+		arena.release();
 	}
 
 	/**
 	 * @return the mutator
 	 */
-	public Mutator getMutator() {
+	@Override
+	public BatchMutator getMutator() {
 		return mutator;
 	}
 
+	/**
+	 * @return the arena column names and values are written into
+	 */
+	public ByteBufferArena getArena() {
+		return arena;
+	}
+
+	/**
+	 * Set the columns that will be stored for the field once this mutation has
+	 * executed
+	 * 
+	 * @param op
+	 * @param fieldNumber
+	 * @param columns
+	 */
+	public void setStoredColumns(ObjectProvider op, int fieldNumber,
+			Map<Bytes, Bytes> columns) {
+		StoredColumns stored = StoredColumns.set(op, fieldNumber, columns);
+
+		if (stored != null) {
+			storedColumns.add(stored);
+		}
+	}
+
+	/**
+	 * Forget the changes of the lazy field once this mutation has executed
+	 * 
+	 * @param lazy
+	 */
+	public void resetChangesOnExecute(LazyLoader<?> lazy) {
+		changedLoaders.add(lazy);
+		changedVersions.add(lazy.getVersion());
+	}
+
+	/**
+	 * Invalidate every stored column set by this mutation. Used when the
+	 * mutation failed or was discarded, since the columns were never stored.
+	 * Safe to call from the thread of an asynchronous execute, the owner of
+	 * each field forgets them the next time they are read
+	 */
+	@Override
+	public void resetStoredColumns() {
+		for (StoredColumns stored : storedColumns) {
+			stored.invalidate();
+		}
+	}
+
 }
@@ -17,7 +17,16 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.mutate;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.datanucleus.store.ExecutionContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.spidertracks.datanucleus.client.Consistency;
 
 /**
  * @author Todd Nine
@@ -25,6 +34,8 @@ import org.datanucleus.store.ExecutionContext;
  */
 public abstract class ExecutionContextOp {
 	
+	private static final Logger logger = LoggerFactory.getLogger(ExecutionContextOp.class);
+	
 	private ExecutionContext ctx;
 	private int count;
 
@@ -44,12 +55,20 @@ public abstract class ExecutionContextOp {
 	/**
 	 * Push the current on to our stack for this execution context
 	 * 
-	 * @param instance
+	 * @return true if this is the root instance of the operation
 	 */
-	public void pushInstance() {
+	public boolean pushInstance() {
 		count++;
+		return count == 1;
 	}
 
+	/**
+	 * Get the mutator the operations are added to
+	 * 
+	 * @return
+	 */
+	public abstract BatchMutator getMutator();
+
 	/**
 	 * Pop the current instance from our execution context
 	 * 
@@ -61,4 +80,64 @@ public abstract class ExecutionContextOp {
 		return count == 0;
 
 	}
+
+	/**
+	 * Execute all pending operations with the consistency level of the
+	 * current thread
+	 * 
+	 * @throws Exception
+	 */
+	public void execute() throws Exception {
+		execute(Consistency.get());
+	}
+
+	/**
+	 * Execute all pending operations
+	 * 
+	 * @param consistency
+	 * @throws Exception
+	 */
+	public abstract void execute(ConsistencyLevel consistency)
+			throws Exception;
+
+	/**
+	 * Forget the stored columns set by the operations, since they were never
+	 * stored. Only marks them, so it can be called from the thread of an
+	 * asynchronous execute. Nothing is set by default
+	 */
+	public void resetStoredColumns() {
+	}
+
+	/**
+	 * Execute all pending operations on the executor. The consistency level of
+	 * the current thread is used. Blocks only if the executor can't accept the
+	 * operation
+	 * 
+	 * @param executor
+	 * @return
+	 */
+	public Future<Void> submit(ExecutorService executor) {
+		final ConsistencyLevel consistency = Consistency.get();
+
+		return executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				try {
+					execute(consistency);
+				} catch (Exception e) {
+					// the next write of the fields must read what's stored.
+					// Only recorded here, the owning thread forgets them
+					resetStoredColumns();
+
+					// there may be no one waiting on the result, so always log
+					logger.error("Unable to execute asynchronous operation", e);
+					throw e;
+				}
+
+				return null;
+			}
+
+		});
+	}
 }
@@ -0,0 +1,80 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+
+/**
+ * When pending mutations are sent to Cassandra. Set with the
+ * com.spidertracks.cassandra.flushMode property.
+ *
+ * @author Todd Nine
+ *
+ */
+public enum FlushMode {
+
+	/**
+	 * Execute the mutation as soon as the root object of a persist or delete
+	 * has been written. This is the default
+	 */
+	IMMEDIATE("immediate"),
+
+	/**
+	 * Hold all mutations and deletions until the transaction commits, then
+	 * send them as a single batch. Discarded on rollback. Writes outside of a
+	 * transaction are executed immediately
+	 */
+	COMMIT("commit"),
+
+	/**
+	 * Hand the mutation to an executor as soon as the root object of a
+	 * persist or delete has been written and return without waiting for it.
+	 * Submitting blocks once the executor queue is full. Within a transaction
+	 * commit waits for all outstanding mutations unless disabled
+	 */
+	ASYNC("async");
+
+	private String value;
+
+	private FlushMode(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * Get the flush mode for the property value. If the value is null the
+	 * default of IMMEDIATE is returned
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static FlushMode fromValue(String value) {
+		if (value == null) {
+			return IMMEDIATE;
+		}
+
+		for (FlushMode mode : values()) {
+			if (mode.value.equalsIgnoreCase(value.trim())) {
+				return mode;
+			}
+		}
+
+		throw new NucleusDataStoreException(String.format(
+				"Unknown flush mode %s", value));
+	}
+
+}
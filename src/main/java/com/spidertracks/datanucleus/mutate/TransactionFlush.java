@@ -0,0 +1,93 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import org.datanucleus.TransactionEventListener;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.store.ExecutionContext;
+
+/**
+ * Listener registered on the transaction of an execution context that has
+ * deferred or asynchronous mutations. Executes or waits for them before the
+ * transaction commits, so a failure rolls the transaction back, and discards
+ * them on a rollback. Ending a committed transaction with operations still
+ * deferred fails instead of discarding them.
+ *
+ * @author Todd Nine
+ *
+ */
+public class TransactionFlush implements TransactionEventListener {
+
+	private BatchMutationManager manager;
+	private ExecutionContext context;
+	private boolean committed;
+
+	public TransactionFlush(BatchMutationManager manager,
+			ExecutionContext context) {
+		this.manager = manager;
+		this.context = context;
+	}
+
+	public void transactionCommitted() {
+		committed = true;
+	}
+
+	public void transactionRolledBack() {
+		manager.discardDeferred(context);
+	}
+
+	public void transactionEnded() {
+		// should already be removed by commit or rollback, this ensures
+		// nothing can leak if neither was called
+		manager.endTransaction(context, committed);
+	}
+
+	public void transactionStarted() {
+	}
+
+	public void transactionFlushed() {
+	}
+
+	public void transactionPreCommit() {
+		try {
+			// anything still pending in the execution context is written
+			// first, so it's part of the deferred mutation
+			context.flushInternal(true);
+
+			manager.executeDeferred(context);
+		} catch (NucleusException ne) {
+			throw ne;
+		} catch (Exception e) {
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+	}
+
+	public void transactionPreRollBack() {
+	}
+
+	public void transactionSetSavepoint(String name) {
+	}
+
+	public void transactionReleaseSavepoint(String name) {
+	}
+
+	public void transactionRollbackToSavepoint(String name) {
+	}
+
+}
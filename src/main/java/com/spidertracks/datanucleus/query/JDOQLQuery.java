@@ -17,11 +17,14 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query;
 
+import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDefaultFetchFields;
 import static com.spidertracks.datanucleus.utils.MetaDataUtils.getDiscriminatorColumnName;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -29,30 +32,38 @@ import java.util.Set;
 
 import javax.jdo.identity.SingleFieldIdentity;
 
-import org.apache.cassandra.thrift.Column;
-import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.datanucleus.ClassLoaderResolver;
 import org.datanucleus.exceptions.NucleusDataStoreException;
-import org.datanucleus.exceptions.NucleusException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.datanucleus.metadata.AbstractClassMetaData;
+import org.datanucleus.metadata.AbstractMemberMetaData;
 import org.datanucleus.metadata.DiscriminatorMetaData;
 import org.datanucleus.query.evaluator.JDOQLEvaluator;
 import org.datanucleus.query.evaluator.JavaQueryEvaluator;
 import org.datanucleus.query.expression.Expression;
+import org.datanucleus.query.expression.OrderExpression;
+import org.datanucleus.query.expression.PrimaryExpression;
 import org.datanucleus.store.ExecutionContext;
 import org.datanucleus.store.query.AbstractJDOQLQuery;
 import org.datanucleus.util.ClassUtils;
 import org.datanucleus.util.NucleusLogger;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
-import org.scale7.cassandra.pelops.Selector;
 
 import com.spidertracks.datanucleus.CassandraStoreManager;
 import com.spidertracks.datanucleus.client.Consistency;
 import com.spidertracks.datanucleus.convert.ByteConverterContext;
+import com.spidertracks.datanucleus.fetch.BatchFetchManager;
+import com.spidertracks.datanucleus.fetch.RowFieldValues;
+import com.spidertracks.datanucleus.query.runtime.CandidatePages;
 import com.spidertracks.datanucleus.query.runtime.Columns;
+import com.spidertracks.datanucleus.query.runtime.EqualityOperand;
 import com.spidertracks.datanucleus.query.runtime.Operand;
+import com.spidertracks.datanucleus.query.runtime.RangePages;
+import com.spidertracks.datanucleus.query.runtime.TokenRangeScan;
 import com.spidertracks.datanucleus.utils.MetaDataUtils;
+import com.spidertracks.datanucleus.utils.PartitionerReader;
 
 /**
  * @author Todd Nine
@@ -60,7 +71,27 @@ import com.spidertracks.datanucleus.utils.MetaDataUtils;
  */
 public class JDOQLQuery extends AbstractJDOQLQuery {
 
-	private static int DEFAULT_MAX = 1000;
+	/**
+	 * The number of candidates read with each page if the page size isn't set
+	 */
+	private static final int INDEX_PAGE_SIZE = 1000;
+
+	/**
+	 * Extension to read the default fetch group columns with the query.
+	 * Overrides the property of the same name for a single query
+	 */
+	public static final String FETCH_DEFAULT_GROUP = "com.spidertracks.cassandra.query.fetchDefaultGroup";
+
+	/**
+	 * Extension to return the results lazily, loading the objects a page at a
+	 * time as they're iterated. Ignored if the query has an ordering
+	 */
+	public static final String LAZY = "com.spidertracks.cassandra.query.lazy";
+
+	/**
+	 * Extension for the number of candidates read with each page of a query
+	 */
+	public static final String PAGE_SIZE = "com.spidertracks.cassandra.query.pageSize";
 
 	/**
 	 * 
@@ -136,7 +167,6 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 
 		String columnFamily = MetaDataUtils.getColumnFamily(acmd);
 
-		Set<Columns> candidateKeys = null;
 
 		Bytes idColumnBytes = MetaDataUtils.getIdentityColumn(acmd);
 		DiscriminatorMetaData discriminator = null;
@@ -157,23 +187,59 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 			selectColumns = new Bytes[] { idColumnBytes };
 		}
 
-		int range = DEFAULT_MAX;
+		// read the values with the keys, then every candidate can be
+		// populated without reading it again
+		Set<Bytes> fetchedColumns = null;
 
-		if (this.getRange() != null) {
-			range = (int) this.getRangeToExcl();
+		if (getBooleanExtensionProperty(FETCH_DEFAULT_GROUP,
+				((CassandraStoreManager) ec.getStoreManager())
+						.isQueryFetchDefaultGroup())) {
+			fetchedColumns = getDefaultFetchColumns(acmd, clr, selectColumns);
+			selectColumns = fetchedColumns.toArray(new Bytes[fetchedColumns
+					.size()]);
+		}
 
-			if (this.getOrdering() == null) {
-				throw new NucleusDataStoreException(
-						"You cannot invoke a without an ordering expression against Cassandra. Results will be randomly ordered from Cassnadra and need order to page");
+		if (this.getRange() != null && this.getOrdering() == null) {
+			throw new NucleusDataStoreException(
+					"You cannot invoke a without an ordering expression against Cassandra. Results will be randomly ordered from Cassnadra and need order to page");
+		}
 
+		// the candidates are loaded a page at a time
+		int pageSize = getIntExtension(PAGE_SIZE, INDEX_PAGE_SIZE);
+
+		// the rows are scanned in key order, so only the rows up to the end of
+		// the range are read and they don't need to be sorted
+		if (filter == null && this.getGrouping() == null && isOrderedByKey(acmd)) {
+
+			long rangeEnd = this.getRange() != null ? this.getRangeToExcl()
+					: Long.MAX_VALUE;
+
+			if (rangeEnd < pageSize) {
+				pageSize = (int) Math.max(rangeEnd, 1);
 			}
+
+			Collection<Object> results = getKeyOrderedRange(new RangePages(
+					Pelops.createSelector(poolName), columnFamily,
+					selectColumns, pageSize, Consistency.get()), acmd, clr,
+					idColumnBytes, descriminiatorCol, byteContext,
+					fetchedColumns);
+
+			if (this.getResult() != null) {
+				results = new JDOQLEvaluator(this, results, compilation,
+						parameters, clr).execute(false, false, false, true,
+						false);
+			}
+
+			return results;
 		}
 
+		CandidatePages candidates;
+
 		// a query was specified, perform a filter with secondary cassandra
 		// indexes
 		if (filter != null) {
 
-			CassandraQueryExpressionEvaluator evaluator = new CassandraQueryExpressionEvaluator(acmd, range, byteContext, parameters);
+			CassandraQueryExpressionEvaluator evaluator = new CassandraQueryExpressionEvaluator(acmd, pageSize, byteContext, parameters);
 
 			Operand opTree = (Operand) filter.evaluate(evaluator);
 
@@ -186,16 +252,41 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 				opTree = opTree.optimizeDescriminator(descriminiatorCol,
 						descriminatorValues);
 			}
-			// perform a query rewrite to take into account descriminator values
-			opTree.performQuery(poolName, columnFamily, selectColumns);
 
-			candidateKeys = opTree.getCandidateKeys();
+			// a single index search is loaded a page at a time, the keys of
+			// every page don't need to be held
+			if (opTree instanceof EqualityOperand) {
+				candidates = CandidatePages.fromIndex((EqualityOperand) opTree,
+						poolName, columnFamily, selectColumns);
+			} else {
+				// perform a query rewrite to take into account descriminator
+				// values
+				opTree.performQuery(poolName, columnFamily, selectColumns,
+						((CassandraStoreManager) ec.getStoreManager())
+								.getQueryExecutor());
+
+				candidates = CandidatePages.fromKeys(
+						opTree.getCandidateKeys(), pageSize);
+			}
 		} else {
-			candidateKeys = getAll(poolName, columnFamily, selectColumns, range);
+			candidates = getAll(poolName, columnFamily, selectColumns,
+					pageSize);
+		}
+
+		// ordered results are all held to be sorted, so they can't be lazy
+		if (this.getOrdering() == null && this.getGrouping() == null
+				&& getBooleanExtensionProperty(LAZY, false)) {
+			return createLazyResult(candidates, acmd, clr, idColumnBytes,
+					descriminiatorCol, byteContext, fetchedColumns);
 		}
 
-		Collection<?> results = getObjectsOfCandidateType(candidateKeys, acmd,
-				clr, subclasses, idColumnBytes, descriminiatorCol, byteContext);
+		Collection<Object> results = new ArrayList<Object>();
+
+		while (candidates.hasNext()) {
+			results.addAll(getObjectsOfCandidateType(candidates.next(), acmd,
+					clr, subclasses, idColumnBytes, descriminiatorCol,
+					byteContext, fetchedColumns));
+		}
 
 		if (this.getOrdering() != null || this.getGrouping() != null) {
 
@@ -217,7 +308,193 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 	}
 
 	/**
-	 * Used to load specific keys
+	 * Returns true if the store scans rows in key order and the query is only
+	 * ordered by the identity ascending. The partitioner must keep the keys in
+	 * the order of their bytes and the bytes of the identity must sort like
+	 * its value, otherwise the results are sorted in memory
+	 * 
+	 * @param acmd
+	 * @return
+	 */
+	private boolean isOrderedByKey(AbstractClassMetaData acmd) {
+		CassandraStoreManager manager = (CassandraStoreManager) ec
+				.getStoreManager();
+
+		if (!manager.isQueryOrderedKeys()
+				|| !PartitionerReader.isOrderPreserving(manager
+						.getPartitioner())) {
+			return false;
+		}
+
+		Expression[] ordering = getCompilation().getExprOrdering();
+
+		if (ordering == null || ordering.length != 1) {
+			return false;
+		}
+
+		OrderExpression order = (OrderExpression) ordering[0];
+
+		if ("descending".equals(order.getSortOrder())
+				|| !(order.getLeft() instanceof PrimaryExpression)) {
+			return false;
+		}
+
+		int[] pks = acmd.getPKMemberPositions();
+
+		if (pks == null || pks.length != 1) {
+			return false;
+		}
+
+		AbstractMemberMetaData pk = acmd
+				.getMetaDataForManagedMemberAtAbsolutePosition(pks[0]);
+
+		if (!manager.getByteConverterContext().isOrderPreserving(
+				pk.getType())) {
+			return false;
+		}
+
+		String pkName = pk.getName();
+
+		String orderedName = ((PrimaryExpression) order.getLeft()).getId();
+
+		return pkName.equals(orderedName)
+				|| ("this." + pkName).equals(orderedName);
+	}
+
+	/**
+	 * Load the results in the range of the query from candidates in key order.
+	 * The candidates after the range are never read. If every candidate is of
+	 * the candidate class the candidates before the range are skipped without
+	 * being loaded, otherwise they are loaded to find which are of the class
+	 * 
+	 * @param candidates
+	 * @param acmd
+	 * @param clr
+	 * @param identityColumn
+	 * @param descriminatorColumn
+	 * @param byteConverter
+	 * @param fetchedColumns
+	 * @return
+	 */
+	private List<Object> getKeyOrderedRange(CandidatePages candidates,
+			AbstractClassMetaData acmd, ClassLoaderResolver clr,
+			Bytes identityColumn, Bytes descriminatorColumn,
+			ByteConverterContext byteConverter, Set<Bytes> fetchedColumns) {
+
+		long from = 0;
+		long to = Long.MAX_VALUE;
+
+		if (this.getRange() != null) {
+			from = this.getRangeFromIncl();
+			to = this.getRangeToExcl();
+		}
+
+		List<Object> results = new ArrayList<Object>();
+
+		long position = 0;
+
+		while (position < to && candidates.hasNext()) {
+
+			Set<Columns> page = candidates.next();
+
+			if (descriminatorColumn == null) {
+				Set<Columns> inRange = new LinkedHashSet<Columns>(page.size());
+
+				for (Columns key : page) {
+					if (position >= from && position < to) {
+						inRange.add(key);
+					}
+
+					position++;
+				}
+
+				results.addAll(getObjectsOfCandidateType(inRange, acmd, clr,
+						subclasses, identityColumn, descriminatorColumn,
+						byteConverter, fetchedColumns));
+
+				continue;
+			}
+
+			for (Object result : getObjectsOfCandidateType(page, acmd, clr,
+					subclasses, identityColumn, descriminatorColumn,
+					byteConverter, fetchedColumns)) {
+
+				if (position >= from && position < to) {
+					results.add(result);
+				}
+
+				position++;
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Create a read only result that loads the candidates a page at a time as
+	 * it's iterated
+	 * 
+	 * @param candidates
+	 * @param acmd
+	 * @param clr
+	 * @param identityColumn
+	 * @param descriminatorColumn
+	 * @param byteConverter
+	 * @param fetchedColumns
+	 * @return
+	 */
+	private LazyQueryResult createLazyResult(CandidatePages candidates,
+			final AbstractClassMetaData acmd, final ClassLoaderResolver clr,
+			final Bytes identityColumn, final Bytes descriminatorColumn,
+			final ByteConverterContext byteConverter,
+			final Set<Bytes> fetchedColumns) {
+
+		return new LazyQueryResult(candidates) {
+
+			@Override
+			protected List<Object> load(Set<Columns> page) {
+				return getObjectsOfCandidateType(page, acmd, clr, subclasses,
+						identityColumn, descriminatorColumn, byteConverter,
+						fetchedColumns);
+			}
+
+		};
+	}
+
+	/**
+	 * Get the value of an integer extension of the query
+	 * 
+	 * @param name
+	 * @param defaultValue
+	 *            The value if the extension isn't set
+	 * @return
+	 */
+	private int getIntExtension(String name, int defaultValue) {
+		Object value = getExtension(name);
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		int intValue;
+
+		try {
+			intValue = value instanceof Number ? ((Number) value).intValue()
+					: Integer.parseInt(value.toString().trim());
+		} catch (NumberFormatException e) {
+			throw new NucleusUserException("The extension " + name
+					+ " must be an integer, not " + value, e);
+		}
+
+		return intValue > 0 ? intValue : defaultValue;
+	}
+
+	/**
+	 * Used to load specific keys. If the columns of the default fetch group
+	 * were read with the keys, every candidate is populated from them.
+	 * Otherwise the rows of the candidates are read with a multiget per page of
+	 * the fetch batch size, then each candidate is found from the rows that
+	 * were read
 	 * 
 	 * @param ec
 	 * @param candidateClass
@@ -226,23 +503,35 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 	 * @param ignoreCache
 	 * @param limit
 	 * @param startKey
+	 * @param fetchedColumns
+	 *            The names of the columns read with the keys. Null if only
+	 *            the identity and discriminator were read
 	 * @return
 	 */
-	public List<?> getObjectsOfCandidateType(Set<Columns> keys,
+	public List<Object> getObjectsOfCandidateType(Set<Columns> keys,
 			AbstractClassMetaData acmd, ClassLoaderResolver clr,
 			boolean subclasses, Bytes identityColumn,
-			Bytes descriminatorColumn, ByteConverterContext byteConverter) {
+			Bytes descriminatorColumn, ByteConverterContext byteConverter,
+			Set<Bytes> fetchedColumns) {
 
 		// final ClassLoaderResolver clr = ec.getClassLoaderResolver();
 		// final AbstractClassMetaData acmd =
 		// ec.getMetaDataManager().getMetaDataForClass(candidateClass, clr);
 
+		int batchSize = ((CassandraStoreManager) ec.getStoreManager())
+				.getFetchBatchSize();
+
 		List<Object> results = new ArrayList<Object>(keys.size());
 		// String tempKey = null;
 
+		List<Object> identities = new ArrayList<Object>(batchSize);
+		Map<AbstractClassMetaData, List<Bytes>> rowKeys = new HashMap<AbstractClassMetaData, List<Bytes>>();
+		Map<AbstractClassMetaData, int[]> fetchedFields = new HashMap<AbstractClassMetaData, int[]>();
+
 		for (Columns idBytes : keys) {
 
 			Class<?> targetClass = candidateClass;
+			AbstractClassMetaData targetMetaData = acmd;
 
 			if (descriminatorColumn != null) {
 
@@ -254,6 +543,8 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 								acmd.getDiscriminatorMetaData(), ec);
 
 				targetClass = clr.classForName(className);
+				targetMetaData = ec.getMetaDataManager().getMetaDataForClass(
+						targetClass, clr);
 
 			}
 
@@ -271,66 +562,191 @@ public class JDOQLQuery extends AbstractJDOQLQuery {
 				continue;
 			}
 
-			Object returned = ec.findObject(identity, true, subclasses,
-					candidateClass.getName());
+			if (fetchedColumns != null) {
+				Object returned = ec.findObject(identity,
+						createFieldValues(idBytes, targetMetaData, clr,
+								fetchedColumns, fetchedFields), targetClass,
+						getIgnoreCache());
+
+				if (returned != null) {
+					results.add(returned);
+				}
 
-			if (returned != null) {
-				results.add(returned);
+				continue;
+			}
+
+			identities.add(identity);
+
+			List<Bytes> classKeys = rowKeys.get(targetMetaData);
+
+			if (classKeys == null) {
+				classKeys = new ArrayList<Bytes>(batchSize);
+				rowKeys.put(targetMetaData, classKeys);
+			}
+
+			classKeys.add(idBytes.getRowKey());
+
+			if (identities.size() == batchSize) {
+				loadPage(identities, rowKeys, subclasses,
+						descriminatorColumn != null, results);
 			}
 		}
 
+		loadPage(identities, rowKeys, subclasses, descriminatorColumn != null,
+				results);
+
 		return results;
 
 	}
 
 	/**
-	 * Get all keys from a given column family. Used ranges to set the max
-	 * amount
+	 * Read the rows of a page of candidates with a multiget for each class,
+	 * then find every candidate from the rows that were read. The page is
+	 * cleared once it has been loaded
 	 * 
-	 * @param poolName
-	 * @param cfName
-	 * @param selectColumns
-	 * @return
-	 * @throws Exception
+	 * @param identities
+	 *            The identities of the candidates in the page
+	 * @param rowKeys
+	 *            The row keys of the candidates by their class
+	 * @param subclasses
+	 * @param discriminated
+	 *            True if the class of every identity was read from its
+	 *            discriminator, so it doesn't need to be looked up again
+	 * @param results
 	 */
-	private Set<Columns> getAll(String poolName, String cfName,
-			Bytes[] selectColumns, int maxSize) {
-
-		Set<Columns> candidateKeys = new HashSet<Columns>();
+	private void loadPage(List<Object> identities,
+			Map<AbstractClassMetaData, List<Bytes>> rowKeys,
+			boolean subclasses, boolean discriminated, List<Object> results) {
 
-		KeyRange range = new KeyRange();
-		range.setStart_key(new byte[] {});
-		range.setEnd_key(new byte[] {});
-		range.setCount(maxSize);
+		if (identities.isEmpty()) {
+			return;
+		}
 
-		Map<Bytes, List<Column>> results;
+		BatchFetchManager fetchManager = ((CassandraStoreManager) ec
+				.getStoreManager()).getFetchManager();
 
 		try {
-			results = Pelops.createSelector(poolName).getColumnsFromRows(
-					cfName, range, Selector.newColumnsPredicate(selectColumns),
-					Consistency.get());
-		} catch (Exception e) {
-			throw new NucleusException("Error scanning rows", e);
-		}
+			for (Entry<AbstractClassMetaData, List<Bytes>> entry : rowKeys
+					.entrySet()) {
+				fetchManager.prefetch(ec, entry.getKey(), entry.getValue());
+			}
 
-		Columns cols;
+			for (Object identity : identities) {
 
-		for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+				Object returned = null;
 
-			if (entry.getValue().size() == 0) {
-				continue;
+				if (discriminated) {
+					returned = ec.findObject(identity, true, false,
+							((SingleFieldIdentity) identity)
+									.getTargetClassName());
+				} else {
+					returned = ec.findObject(identity, true, subclasses,
+							candidateClass.getName());
+				}
+
+				if (returned != null) {
+					results.add(returned);
+				}
 			}
+		} finally {
+			// anything not consumed was already in the cache, drop it
+			fetchManager.clear(ec);
+
+			identities.clear();
+			rowKeys.clear();
+		}
+	}
+
+	/**
+	 * Create the field values that populate a candidate from the columns read
+	 * with its key
+	 * 
+	 * @param row
+	 * @param metaData
+	 *            The class of the candidate
+	 * @param clr
+	 * @param fetchedColumns
+	 * @param fetchedFields
+	 *            The fields that were read for each class of this query
+	 * @return
+	 */
+	private RowFieldValues createFieldValues(Columns row,
+			AbstractClassMetaData metaData, ClassLoaderResolver clr,
+			Set<Bytes> fetchedColumns,
+			Map<AbstractClassMetaData, int[]> fetchedFields) {
+
+		int[] fieldNumbers = fetchedFields.get(metaData);
+
+		// a subclass that wasn't known when the query was built may have
+		// fields that weren't read, leave them to be loaded later
+		if (fieldNumbers == null) {
+			fieldNumbers = getDefaultFetchFields(metaData, clr, fetchedColumns);
+			fetchedFields.put(metaData, fieldNumbers);
+		}
+
+		return new RowFieldValues(row, fieldNumbers,
+				MetaDataUtils.getColumnFamily(metaData),
+				Pelops.createSelector(((CassandraStoreManager) ec
+						.getStoreManager()).getPoolName()));
+	}
 
-			cols = new Columns(entry.getKey());
+	/**
+	 * Get the names of the columns to read with the keys so every candidate
+	 * can be populated from them. This is the default fetch group of the
+	 * candidate class and every subclass, as well as the columns already
+	 * selected
+	 * 
+	 * @param acmd
+	 * @param clr
+	 * @param selectColumns
+	 * @return
+	 */
+	private Set<Bytes> getDefaultFetchColumns(AbstractClassMetaData acmd,
+			ClassLoaderResolver clr, Bytes[] selectColumns) {
 
-			for (Column currentCol : entry.getValue()) {
+		Set<Bytes> columns = new LinkedHashSet<Bytes>(
+				Arrays.asList(selectColumns));
 
-				cols.addResult(currentCol);
+		columns.addAll(MetaDataUtils.getDefaultFetchColumns(acmd, clr, ec));
+
+		return columns;
+	}
+
+	/**
+	 * Page every key of the column family. The ring is split into token ranges
+	 * that are scanned in parallel if the store is configured to, otherwise
+	 * the keys are paged in order
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param selectColumns
+	 * @param pageSize
+	 * @return
+	 */
+	private CandidatePages getAll(String poolName, String cfName,
+			Bytes[] selectColumns, int pageSize) {
+
+		CassandraStoreManager manager = (CassandraStoreManager) ec
+				.getStoreManager();
+
+		// the consistency is only set on this thread
+		ConsistencyLevel consistency = Consistency.get();
+
+		if (manager.getScanSplits() > 1) {
+			// the ranges are split by the tokens of the random partitioner
+			if (!PartitionerReader.RANDOM_PARTITIONER.equals(manager
+					.getPartitioner())) {
+				throw new NucleusDataStoreException(
+						"Scans can only be split with the RandomPartitioner, the cluster uses "
+								+ manager.getPartitioner());
 			}
 
-			candidateKeys.add(cols);
+			return new TokenRangeScan(poolName, cfName, selectColumns,
+					pageSize, consistency, manager.getScanSplits(),
+					manager.getScanExecutor());
 		}
 
-		return candidateKeys;
+		return new RangePages(Pelops.createSelector(poolName), cfName,
+				selectColumns, pageSize, consistency);
 	}
 }
@@ -0,0 +1,191 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.datanucleus.exceptions.NucleusUserException;
+import org.datanucleus.store.query.QueryResult;
+
+import com.spidertracks.datanucleus.query.runtime.CandidatePages;
+import com.spidertracks.datanucleus.query.runtime.Columns;
+
+/**
+ * A read only list of query results that loads the objects a page of
+ * candidates at a time. A page is only read once an element of it is needed,
+ * so iterating the first results or reading {@link #isEmpty()} doesn't read
+ * the pages after them.
+ * 
+ * Every page that has been read is kept, so the results can be iterated any
+ * number of times and {@link #size()} or {@link #get(int)} can be read before
+ * or after iterating. {@link #size()} reads every page that hasn't been read.
+ * Closing the query with Query.close or Query.closeAll releases the pages and
+ * the results can't be read afterwards.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public abstract class LazyQueryResult extends AbstractList<Object> implements
+		QueryResult {
+
+	private final CandidatePages pages;
+
+	private final List<Object> loaded = new ArrayList<Object>();
+
+	private boolean closed;
+
+	/**
+	 * @param pages
+	 *            The pages of candidates of the query
+	 */
+	public LazyQueryResult(CandidatePages pages) {
+		this.pages = pages;
+	}
+
+	/**
+	 * Load the objects of a page of candidates
+	 * 
+	 * @param page
+	 * @return
+	 */
+	protected abstract List<Object> load(Set<Columns> page);
+
+	@Override
+	public Iterator<Object> iterator() {
+		checkOpen();
+
+		return new Iterator<Object>() {
+
+			private int next;
+
+			@Override
+			public boolean hasNext() {
+				return loadTo(next);
+			}
+
+			@Override
+			public Object next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException("No results left");
+				}
+
+				return loaded.get(next++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException(
+						"Query results are read only");
+			}
+
+		};
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < 0 || !loadTo(index)) {
+			throw new IndexOutOfBoundsException("Index: " + index);
+		}
+
+		return loaded.get(index);
+	}
+
+	@Override
+	public int size() {
+		loadTo(Integer.MAX_VALUE);
+
+		return loaded.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return !loadTo(0);
+	}
+
+	/**
+	 * Read every page that hasn't been read, then release the candidates. The
+	 * results can still be read afterwards
+	 */
+	@Override
+	public void disconnect() {
+		if (closed) {
+			return;
+		}
+
+		loadTo(Integer.MAX_VALUE);
+
+		pages.close();
+	}
+
+	/**
+	 * Release the candidates and every result that was read
+	 */
+	@Override
+	public void close() {
+		closed = true;
+
+		pages.close();
+		loaded.clear();
+	}
+
+	/**
+	 * Read pages until the result at the index has been loaded
+	 * 
+	 * @param index
+	 * @return True if there's a result at the index
+	 */
+	private boolean loadTo(int index) {
+		checkOpen();
+
+		while (loaded.size() <= index && pages.hasNext()) {
+			loaded.addAll(load(pages.next()));
+		}
+
+		return index < loaded.size();
+	}
+
+	/**
+	 * Ensure the results haven't been closed
+	 */
+	private void checkOpen() {
+		if (closed) {
+			throw new NucleusUserException(
+					"The query results have been closed and can't be read");
+		}
+	}
+
+	/**
+	 * The query holds its results in a hash set, so the results are compared
+	 * by identity rather than by reading every page
+	 */
+	@Override
+	public boolean equals(Object o) {
+		return o == this;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(this);
+	}
+
+}
@@ -0,0 +1,142 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.scale7.cassandra.pelops.Bytes;
+
+/**
+ * Iterates the candidate rows of a query a page at a time. The next page is
+ * only read once the current one has been returned
+ * 
+ * @author Todd Nine
+ * 
+ */
+public abstract class CandidatePages implements Iterator<Set<Columns>> {
+
+	private Set<Columns> next;
+
+	private boolean done;
+
+	/**
+	 * Read the next page of candidates
+	 * 
+	 * @return The page, or null once every candidate has been read
+	 */
+	protected abstract Set<Columns> readPage();
+
+	@Override
+	public boolean hasNext() {
+		while (next == null && !done) {
+			next = readPage();
+
+			if (next == null) {
+				done = true;
+			} else if (next.isEmpty()) {
+				// every row of the page was a tombstone
+				next = null;
+			}
+		}
+
+		return next != null;
+	}
+
+	@Override
+	public Set<Columns> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException("No pages left");
+		}
+
+		Set<Columns> page = next;
+		next = null;
+
+		return page;
+	}
+
+	/**
+	 * Stop reading pages and release anything held to read them. Nothing is
+	 * returned after the pages are closed
+	 */
+	public void close() {
+		done = true;
+		next = null;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException("remove isn't supported");
+	}
+
+	/**
+	 * Page the candidates of the index search a page of the index at a time
+	 * 
+	 * @param operand
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 * @return
+	 */
+	public static CandidatePages fromIndex(final EqualityOperand operand,
+			final String poolName, final String cfName, final Bytes[] columns) {
+		return new CandidatePages() {
+
+			@Override
+			protected Set<Columns> readPage() {
+				return operand.nextPage(poolName, cfName, columns);
+			}
+
+		};
+	}
+
+	/**
+	 * Page candidates that have already been read
+	 * 
+	 * @param candidates
+	 * @param pageSize
+	 * @return
+	 */
+	public static CandidatePages fromKeys(Set<Columns> candidates,
+			final int pageSize) {
+
+		final Iterator<Columns> keys = candidates.iterator();
+
+		return new CandidatePages() {
+
+			@Override
+			protected Set<Columns> readPage() {
+				if (!keys.hasNext()) {
+					return null;
+				}
+
+				Set<Columns> page = new LinkedHashSet<Columns>(pageSize);
+
+				while (keys.hasNext() && page.size() < pageSize) {
+					page.add(keys.next());
+				}
+
+				return page;
+			}
+
+		};
+	}
+
+}
@@ -24,7 +24,8 @@ import org.apache.cassandra.thrift.Column;
 import org.scale7.cassandra.pelops.Bytes;
 
 /**
- * Class that holds the serialized bytes of the key and the descriminator value if present
+ * Class that holds the serialized bytes of the key and the descriminator value if present,
+ * as well as the default fetch group columns if they were requested by the query
  * 
  * @author Todd Nine
  *
@@ -40,6 +41,10 @@ public class Columns {
 		values = new LinkedHashMap<Bytes,Bytes>();
 	}
 	
+	public Bytes getRowKey() {
+		return rowKey;
+	}
+	
 	public Bytes getColumnValue(Bytes key) {
 		return values.get(key);
 	}
@@ -52,12 +57,22 @@ public class Columns {
 		values.put(new Bytes(column.getName()), new Bytes(column.getValue()));
 	}
 
+	/**
+	 * @return the values of every column that was read by their names
+	 */
+	public Map<Bytes, Bytes> getColumns() {
+		return values;
+	}
+
+	/**
+	 * Rows are equal if they have the same key. The values are not compared
+	 * since they may hold every column of the default fetch group
+	 */
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + ((rowKey == null) ? 0 : rowKey.hashCode());
-		result = prime * result + ((values == null) ? 0 : values.hashCode());
 		return result;
 	}
 
@@ -75,16 +90,7 @@ public class Columns {
 				return false;
 		} else if (!rowKey.equals(other.rowKey))
 			return false;
-		if (values == null) {
-			if (other.values != null)
-				return false;
-		} else if (!values.equals(other.values))
-			return false;
 		return true;
 	}
 
-
-
-	
-	
 }
@@ -22,6 +22,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Stack;
 
 import org.apache.cassandra.thrift.Column;
@@ -47,7 +48,18 @@ public class EqualityOperand extends Operand implements CompressableOperand {
 	
 	private IndexClause clause;
 
+	private int pageSize;
+
+	private Bytes lastKey;
+
+	private boolean exhausted;
+
+	/**
+	 * @param count
+	 *            The number of rows read from the index with each page
+	 */
 	public EqualityOperand(int count) {
+		pageSize = count;
 		clause = new IndexClause();
 		clause.setStart_key(new byte[] {});
 		clause.setCount(count);
@@ -105,38 +117,83 @@ public class EqualityOperand extends Operand implements CompressableOperand {
 	@Override
 	public void performQuery(String poolName, String cfName, Bytes[] columns) {
 
-		try {
-			Map<Bytes, List<Column>> results = Pelops.createSelector(poolName)
-					.getIndexedColumns(cfName, clause,
-							Selector.newColumnsPredicate(columns),
-							ConsistencyLevel.QUORUM);
-			Columns cols;
+		Set<Columns> page;
 
-			for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+		while ((page = nextPage(poolName, cfName, columns)) != null) {
+			super.candidateKeys.addAll(page);
+		}
 
-				if (entry.getValue().size() == 0) {
-					continue;
-				}
+		// signal to the parent node the query completed
+		if (parent != null) {
+			parent.complete(this);
+		}
 
-				cols = new Columns(entry.getKey());
+	}
 
-				for (Column currentCol : entry.getValue()) {
+	/**
+	 * Read the next page of rows from the index. Each page starts at the last
+	 * key of the previous page, which is read with an extra row and skipped.
+	 * Returns null once every row in the index has been read
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 * @return
+	 */
+	public Set<Columns> nextPage(String poolName, String cfName,
+			Bytes[] columns) {
 
-					cols.addResult(currentCol);
-				}
+		if (exhausted) {
+			return null;
+		}
 
-				super.candidateKeys.add(cols);
-			}
+		Map<Bytes, List<Column>> results;
 
+		try {
+			results = Pelops.createSelector(poolName).getIndexedColumns(
+					cfName, clause, Selector.newColumnsPredicate(columns),
+					ConsistencyLevel.QUORUM);
 		} catch (Exception e) {
 			throw new NucleusException("Error processing secondary index", e);
 		}
 
-		// signal to the parent node the query completed
-		if (parent != null) {
-			parent.complete(this);
+		// a short page is the end of the index
+		exhausted = results.size() < clause.getCount();
+
+		Set<Columns> page = new LinkedHashSet<Columns>(results.size());
+
+		Bytes startKey = lastKey;
+
+		Columns cols;
+
+		for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+
+			// rows are returned in key order, the last one starts the next
+			// page
+			lastKey = entry.getKey();
+
+			if (entry.getValue().size() == 0 || entry.getKey().equals(startKey)) {
+				continue;
+			}
+
+			cols = new Columns(entry.getKey());
+
+			for (Column currentCol : entry.getValue()) {
+
+				cols.addResult(currentCol);
+			}
+
+			page.add(cols);
+		}
+
+		if (lastKey == null || lastKey.equals(startKey)) {
+			exhausted = true;
+		} else {
+			clause.setStart_key(lastKey.getBytes());
+			clause.setCount(pageSize + 1);
 		}
 
+		return page;
 	}
 
 	@Override
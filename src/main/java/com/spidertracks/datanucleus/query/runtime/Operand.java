@@ -17,9 +17,15 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus.query.runtime;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.scale7.cassandra.pelops.Bytes;
 
 /**
@@ -54,6 +60,82 @@ public abstract class Operand {
 	public abstract void performQuery(String poolName, String cfName,
 			Bytes[] columns);
 
+	/**
+	 * Will run the query, performing the index search of every leaf in
+	 * parallel on the executor. The results are merged as each leaf completes
+	 * and this returns once every leaf has completed. Only the leaves are run
+	 * on the executor so a bounded pool can't deadlock waiting on itself
+	 * 
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 * @param executor
+	 */
+	public void performQuery(final String poolName, final String cfName,
+			final Bytes[] columns, ExecutorService executor) {
+
+		List<Operand> leaves = new ArrayList<Operand>();
+
+		addLeaves(leaves);
+
+		if (executor == null || leaves.size() < 2) {
+			performQuery(poolName, cfName, columns);
+			return;
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(leaves.size());
+
+		try {
+			for (final Operand leaf : leaves) {
+				futures.add(executor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						leaf.performQuery(poolName, cfName, columns);
+						return null;
+					}
+
+				}));
+			}
+
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+		} catch (ExecutionException e) {
+			throw new NucleusDataStoreException(e.getCause().getMessage(),
+					e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		} finally {
+			// the query failed, the other searches are no longer needed
+			for (Future<?> future : futures) {
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Add the leaves of the tree, the operands that perform the index searches
+	 * 
+	 * @param leaves
+	 */
+	protected void addLeaves(List<Operand> leaves) {
+		if (left == null && right == null) {
+			leaves.add(this);
+			return;
+		}
+
+		if (left != null) {
+			left.addLeaves(leaves);
+		}
+
+		if (right != null) {
+			right.addLeaves(leaves);
+		}
+	}
+
 	/**
 	 * Optimize the query tree for CFS that have descriminators
 	 * 
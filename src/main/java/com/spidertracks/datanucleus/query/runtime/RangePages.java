@@ -0,0 +1,230 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.KeyRange;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.datanucleus.exceptions.NucleusException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Selector;
+
+/**
+ * Pages the rows of a column family with range slices. A key range starts
+ * each page at the last key of the previous page, which is read with an extra
+ * row and skipped. A token range starts each page after the token of the last
+ * key of the previous page, which is only supported for the RandomPartitioner.
+ * 
+ * The last key read is the cursor of the scan, so a scan can be resumed from
+ * it with {@link #RangePages(Selector, String, Bytes[], int, ConsistencyLevel, Bytes)}
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class RangePages extends CandidatePages {
+
+	private final Selector selector;
+
+	private final String cfName;
+
+	private final SlicePredicate predicate;
+
+	private final int pageSize;
+
+	private final ConsistencyLevel consistency;
+
+	private final boolean tokens;
+
+	private final KeyRange range;
+
+	private Bytes lastKey;
+
+	private boolean exhausted;
+
+	/**
+	 * Page every row of the column family in key order
+	 * 
+	 * @param selector
+	 * @param cfName
+	 * @param columns
+	 *            The columns read with each key
+	 * @param pageSize
+	 * @param consistency
+	 */
+	public RangePages(Selector selector, String cfName, Bytes[] columns,
+			int pageSize, ConsistencyLevel consistency) {
+		this(selector, cfName, columns, pageSize, consistency, null);
+	}
+
+	/**
+	 * Page the rows of the column family starting at the key
+	 * 
+	 * @param selector
+	 * @param cfName
+	 * @param columns
+	 *            The columns read with each key
+	 * @param pageSize
+	 * @param consistency
+	 * @param startKey
+	 *            The last key that was read, it's skipped. Null to start at the
+	 *            first row
+	 */
+	public RangePages(Selector selector, String cfName, Bytes[] columns,
+			int pageSize, ConsistencyLevel consistency, Bytes startKey) {
+		this.selector = selector;
+		this.cfName = cfName;
+		this.predicate = Selector.newColumnsPredicate(columns);
+		this.pageSize = pageSize;
+		this.consistency = consistency;
+		this.tokens = false;
+
+		range = new KeyRange();
+		range.setEnd_key(new byte[] {});
+
+		if (startKey == null) {
+			range.setStart_key(new byte[] {});
+			range.setCount(pageSize);
+		} else {
+			lastKey = startKey;
+			range.setStart_key(startKey.getBytes());
+			range.setCount(pageSize + 1);
+		}
+	}
+
+	/**
+	 * Page the rows in the token range
+	 * 
+	 * @param selector
+	 * @param cfName
+	 * @param columns
+	 *            The columns read with each key
+	 * @param pageSize
+	 * @param consistency
+	 * @param startToken
+	 *            The start of the range (exclusive)
+	 * @param endToken
+	 *            The end of the range (inclusive)
+	 */
+	public RangePages(Selector selector, String cfName, Bytes[] columns,
+			int pageSize, ConsistencyLevel consistency, String startToken,
+			String endToken) {
+		this.selector = selector;
+		this.cfName = cfName;
+		this.predicate = Selector.newColumnsPredicate(columns);
+		this.pageSize = pageSize;
+		this.consistency = consistency;
+		this.tokens = true;
+
+		range = new KeyRange();
+		range.setStart_token(startToken);
+		range.setEnd_token(endToken);
+		range.setCount(pageSize);
+	}
+
+	/**
+	 * @return the last key read, null if nothing has been read
+	 */
+	public Bytes getLastKey() {
+		return lastKey;
+	}
+
+	@Override
+	protected Set<Columns> readPage() {
+
+		if (exhausted) {
+			return null;
+		}
+
+		Map<Bytes, List<Column>> results;
+
+		try {
+			results = selector.getColumnsFromRows(cfName, range, predicate,
+					consistency);
+		} catch (Exception e) {
+			throw new NucleusException("Error scanning rows", e);
+		}
+
+		// a short page is the end of the range
+		exhausted = results.size() < range.getCount();
+
+		Set<Columns> page = new LinkedHashSet<Columns>(results.size());
+
+		Bytes startKey = lastKey;
+
+		Columns cols;
+
+		for (Entry<Bytes, List<Column>> entry : results.entrySet()) {
+
+			// rows are returned in token order, the last one starts the next
+			// page
+			lastKey = entry.getKey();
+
+			// deleted rows are returned without columns
+			if (entry.getValue().size() == 0 || entry.getKey().equals(startKey)) {
+				continue;
+			}
+
+			cols = new Columns(entry.getKey());
+
+			for (Column currentCol : entry.getValue()) {
+
+				cols.addResult(currentCol);
+			}
+
+			page.add(cols);
+		}
+
+		if (lastKey == null || lastKey.equals(startKey)) {
+			exhausted = true;
+		} else if (tokens) {
+			range.setStart_token(getToken(lastKey).toString());
+		} else {
+			range.setStart_key(lastKey.getBytes());
+			range.setCount(pageSize + 1);
+		}
+
+		return page;
+	}
+
+	/**
+	 * Get the token of the key with the RandomPartitioner
+	 * 
+	 * @param key
+	 * @return
+	 */
+	public static BigInteger getToken(Bytes key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			digest.update(key.getBytes().duplicate());
+			return new BigInteger(digest.digest()).abs();
+		} catch (NoSuchAlgorithmException e) {
+			throw new NucleusException("MD5 isn't available", e);
+		}
+	}
+
+}
@@ -0,0 +1,273 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+
+/**
+ * Scans every row of a column family by splitting the token ring of the
+ * RandomPartitioner into even ranges that are scanned in parallel. Each range
+ * is paged with {@link RangePages} and the pages are returned as they arrive,
+ * so the order of the rows is undefined.
+ * 
+ * At most two pages per range are held before they are returned. A range
+ * that can't hand over its page within the timeout stops and the scan fails
+ * once its pages have been read, rows are never silently dropped. Every range
+ * always signals when it has finished, so reading the pages can't block once
+ * every range has stopped. Closing the scan stops every range.
+ * 
+ * The ranges should be scanned by their own executor. Sharing it with work
+ * the reader waits on can starve the reader.
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class TokenRangeScan extends CandidatePages {
+
+	/**
+	 * The token before the first token of the ring
+	 */
+	static final BigInteger MIN_TOKEN = BigInteger.ONE.negate();
+
+	/**
+	 * The last token of the ring
+	 */
+	static final BigInteger MAX_TOKEN = BigInteger.ONE.shiftLeft(127);
+
+	/**
+	 * How long a range waits for its page to be read by default, in seconds
+	 */
+	private static final int DEFAULT_TIMEOUT = 60;
+
+	/**
+	 * Marks a range has been scanned
+	 */
+	private final Set<Columns> done = new LinkedHashSet<Columns>(0);
+
+	private final String poolName;
+
+	private final String cfName;
+
+	private final Bytes[] columns;
+
+	private final int pageSize;
+
+	private final ConsistencyLevel consistency;
+
+	private final int splits;
+
+	private final ExecutorService executor;
+
+	private final long timeout;
+
+	private final BlockingQueue<Set<Columns>> pages = new LinkedBlockingQueue<Set<Columns>>();
+
+	// the number of pages the ranges may hold before they're read
+	private final Semaphore capacity;
+
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+	private final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+	private int running = -1;
+
+	/**
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 *            The columns read with each key
+	 * @param pageSize
+	 * @param consistency
+	 * @param splits
+	 *            The number of ranges scanned in parallel
+	 * @param executor
+	 */
+	public TokenRangeScan(String poolName, String cfName, Bytes[] columns,
+			int pageSize, ConsistencyLevel consistency, int splits,
+			ExecutorService executor) {
+		this(poolName, cfName, columns, pageSize, consistency, splits,
+				executor, TimeUnit.SECONDS.toMillis(DEFAULT_TIMEOUT));
+	}
+
+	/**
+	 * @param poolName
+	 * @param cfName
+	 * @param columns
+	 *            The columns read with each key
+	 * @param pageSize
+	 * @param consistency
+	 * @param splits
+	 *            The number of ranges scanned in parallel
+	 * @param executor
+	 * @param timeout
+	 *            How long a range waits for its pages to be read, in
+	 *            milliseconds
+	 */
+	public TokenRangeScan(String poolName, String cfName, Bytes[] columns,
+			int pageSize, ConsistencyLevel consistency, int splits,
+			ExecutorService executor, long timeout) {
+		this.poolName = poolName;
+		this.cfName = cfName;
+		this.columns = columns;
+		this.pageSize = pageSize;
+		this.consistency = consistency;
+		this.splits = splits;
+		this.executor = executor;
+		this.timeout = timeout;
+		this.capacity = new Semaphore(splits * 2);
+	}
+
+	@Override
+	protected Set<Columns> readPage() {
+
+		// the ranges are only scanned once the first page is read
+		if (running < 0) {
+			start();
+		}
+
+		try {
+			while (running > 0) {
+				Set<Columns> page = pages.take();
+
+				if (page == done) {
+					running--;
+					checkFailure();
+					continue;
+				}
+
+				capacity.release();
+
+				return page;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+
+		return null;
+	}
+
+	@Override
+	public void close() {
+		super.close();
+
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Create the pages of a single range
+	 * 
+	 * @param startToken
+	 *            The start of the range (exclusive)
+	 * @param endToken
+	 *            The end of the range (inclusive)
+	 * @return
+	 */
+	protected CandidatePages createRange(String startToken, String endToken) {
+		return new RangePages(Pelops.createSelector(poolName), cfName,
+				columns, pageSize, consistency, startToken, endToken);
+	}
+
+	/**
+	 * Scan every range on the executor
+	 */
+	private void start() {
+		BigInteger step = MAX_TOKEN.divide(BigInteger.valueOf(splits));
+
+		running = splits;
+
+		for (int i = 0; i < splits; i++) {
+			BigInteger start = i == 0 ? MIN_TOKEN : step.multiply(BigInteger
+					.valueOf(i));
+			BigInteger end = i == splits - 1 ? MAX_TOKEN : step
+					.multiply(BigInteger.valueOf(i + 1));
+
+			final CandidatePages range = createRange(start.toString(),
+					end.toString());
+
+			futures.add(executor.submit(new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					try {
+						while (range.hasNext()) {
+							Set<Columns> page = range.next();
+
+							if (!capacity.tryAcquire(timeout,
+									TimeUnit.MILLISECONDS)) {
+								throw new NucleusDataStoreException(
+										"The pages of the scan of "
+												+ cfName
+												+ " weren't read in time, the scan was stopped");
+							}
+
+							pages.put(page);
+						}
+					} catch (InterruptedException e) {
+						// the scan was closed
+						failure.compareAndSet(null,
+								new NucleusDataStoreException(
+										"The scan of " + cfName
+												+ " was interrupted", e));
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						// never bounded, so the reader is always told
+						pages.add(done);
+					}
+
+					return null;
+				}
+
+			}));
+		}
+	}
+
+	/**
+	 * Throw the failure of any range
+	 */
+	private void checkFailure() {
+		RuntimeException e = failure.get();
+
+		if (e != null) {
+			close();
+			throw new NucleusDataStoreException(e.getMessage(), e);
+		}
+	}
+
+}
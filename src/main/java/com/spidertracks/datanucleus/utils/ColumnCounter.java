@@ -0,0 +1,65 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+
+/**
+ * Counts the columns of a slice of a row. Cassandra counts them, so they are
+ * never sent to the client
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ColumnCounter extends Operand {
+
+	public ColumnCounter(IThriftPool pool) {
+		super(pool);
+	}
+
+	/**
+	 * Count the columns of the row matching the predicate
+	 * 
+	 * @param columnFamily
+	 * @param rowKey
+	 * @param predicate
+	 * @param consistency
+	 * @return
+	 * @throws Exception
+	 */
+	public int countColumns(final String columnFamily, final Bytes rowKey,
+			final SlicePredicate predicate, final ConsistencyLevel consistency)
+			throws Exception {
+		return tryOperation(new IOperation<Integer>() {
+
+			@Override
+			public Integer execute(IPooledConnection conn) throws Exception {
+				return conn.getAPI().get_count(rowKey.getBytes(),
+						new ColumnParent(columnFamily), predicate, consistency);
+			}
+
+		});
+	}
+
+}
@@ -0,0 +1,146 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.datanucleus.metadata.AbstractClassMetaData;
+
+/**
+ * The column names of every field of a class, sorted the way Cassandra sorts
+ * them. The columns of a row are located with a binary search of their name
+ * and each field is then found by its position in an array, so populating an
+ * object needs no hashing.
+ *
+ * @author Todd Nine
+ *
+ */
+public class ColumnLayout {
+
+	private static final Comparator<ByteBuffer> NAME_ORDER = new Comparator<ByteBuffer>() {
+
+		@Override
+		public int compare(ByteBuffer o1, ByteBuffer o2) {
+			return ColumnLayout.compare(o1, o2);
+		}
+
+	};
+
+	private final ByteBuffer[] names;
+
+	private final int[] fieldIndexes;
+
+	public ColumnLayout(AbstractClassMetaData metaData) {
+
+		int[] fieldNumbers = metaData.getAllMemberPositions();
+
+		ByteBuffer[] sorted = new ByteBuffer[fieldNumbers.length];
+		int max = -1;
+
+		for (int i = 0; i < fieldNumbers.length; i++) {
+			sorted[i] = MetaDataUtils.getColumnName(metaData, fieldNumbers[i])
+					.getBytes().duplicate();
+			max = Math.max(max, fieldNumbers[i]);
+		}
+
+		Arrays.sort(sorted, NAME_ORDER);
+
+		this.names = sorted;
+		this.fieldIndexes = new int[max + 1];
+
+		Arrays.fill(fieldIndexes, -1);
+
+		for (int fieldNumber : fieldNumbers) {
+			fieldIndexes[fieldNumber] = indexOf(MetaDataUtils.getColumnName(
+					metaData, fieldNumber).getBytes());
+		}
+	}
+
+	/**
+	 * @return the number of columns of the class
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Get the index of the column of the field
+	 *
+	 * @param fieldNumber
+	 *            The absolute field number
+	 * @return
+	 */
+	public int getIndex(int fieldNumber) {
+		return fieldIndexes[fieldNumber];
+	}
+
+	/**
+	 * Get the index of the column with the name. Returns -1 if the name isn't
+	 * a column of the class
+	 *
+	 * @param name
+	 * @return
+	 */
+	public int indexOf(ByteBuffer name) {
+		int low = 0;
+		int high = names.length - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int result = compare(names[mid], name);
+
+			if (result < 0) {
+				low = mid + 1;
+			} else if (result > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Compare the remaining bytes as unsigned values, the same as the bytes
+	 * comparator of Cassandra
+	 *
+	 * @param o1
+	 * @param o2
+	 * @return
+	 */
+	public static int compare(ByteBuffer o1, ByteBuffer o2) {
+		int length1 = o1.remaining();
+		int length2 = o2.remaining();
+		int length = Math.min(length1, length2);
+
+		for (int i = 0; i < length; i++) {
+			int b1 = o1.get(o1.position() + i) & 0xff;
+			int b2 = o2.get(o2.position() + i) & 0xff;
+
+			if (b1 != b2) {
+				return b1 - b2;
+			}
+		}
+
+		return length1 - length2;
+	}
+
+}
@@ -19,7 +19,11 @@ package com.spidertracks.datanucleus.utils;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -36,6 +40,7 @@ import org.datanucleus.metadata.IndexMetaData;
 import org.datanucleus.metadata.InheritanceMetaData;
 import org.datanucleus.metadata.InheritanceStrategy;
 import org.datanucleus.metadata.MetaDataManager;
+import org.datanucleus.metadata.Relation;
 import org.datanucleus.store.ExecutionContext;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Selector;
@@ -65,6 +70,12 @@ public class MetaDataUtils {
 
 	private static ConcurrentMap<String, List<Bytes>> classToSubclasses = new ConcurrentHashMap<String, List<Bytes>>();
 
+	private static ConcurrentMap<String, int[]> classToDefaultFetchFields = new ConcurrentHashMap<String, int[]>();
+
+	private static ConcurrentMap<String, Set<Bytes>> classToDefaultFetchColumns = new ConcurrentHashMap<String, Set<Bytes>>();
+
+	private static ConcurrentMap<String, ColumnLayout> classToColumnLayouts = new ConcurrentHashMap<String, ColumnLayout>();
+
 
 	/**
 	 * Get the column metadata for the class and fieldname
@@ -132,6 +143,35 @@ public class MetaDataUtils {
 
 	}
 
+	/**
+	 * Returns true if the identity of every new object of the class is
+	 * generated when it's persisted, so no row can exist for a new object. An
+	 * identity assigned by the application may belong to a row that is already
+	 * stored
+	 * 
+	 * @param metaData
+	 * @return
+	 */
+	public static boolean isIdentityGenerated(AbstractClassMetaData metaData) {
+
+		int[] pks = metaData.getPKMemberPositions();
+
+		if (pks == null || pks.length != 1) {
+			return false;
+		}
+
+		AbstractMemberMetaData memberMetaData = metaData
+				.getMetaDataForManagedMemberAtAbsolutePosition(pks[0]);
+
+		if (memberMetaData.getValueStrategy() == null) {
+			return false;
+		}
+
+		// the generator can be told to keep a value set by the application
+		return !"false".equalsIgnoreCase(memberMetaData
+				.getValueForExtension("strategy-when-notnull"));
+	}
+
 	/**
 	 * Get the column name from the meta data, if it's not specified the default
 	 * name of "classtype" is returned
@@ -376,6 +416,40 @@ public class MetaDataUtils {
 	 */
 	public static SlicePredicate getFetchColumnList(
 			AbstractClassMetaData metaData, int[] fieldNumbers) {
+		return Selector.newColumnsPredicate(getColumnNames(metaData,
+				fieldNumbers));
+	}
+
+	/**
+	 * Get the layout of the columns of every field of the class
+	 * 
+	 * @param metaData
+	 * @return
+	 */
+	public static ColumnLayout getColumnLayout(AbstractClassMetaData metaData) {
+		ColumnLayout layout = classToColumnLayouts.get(metaData
+				.getFullClassName());
+
+		if (layout != null) {
+			return layout;
+		}
+
+		layout = new ColumnLayout(metaData);
+
+		classToColumnLayouts.putIfAbsent(metaData.getFullClassName(), layout);
+
+		return layout;
+	}
+
+	/**
+	 * Get the column names of the fields
+	 * 
+	 * @param metaData
+	 * @param fieldNumbers
+	 * @return
+	 */
+	public static Bytes[] getColumnNames(AbstractClassMetaData metaData,
+			int[] fieldNumbers) {
 
 		Bytes[] fieldNames = new Bytes[fieldNumbers.length];
 
@@ -383,7 +457,165 @@ public class MetaDataUtils {
 			fieldNames[i] = getColumnName(metaData, fieldNumbers[i]);
 		}
 
-		return Selector.newColumnsPredicate(fieldNames);
+		return fieldNames;
+	}
+
+	/**
+	 * Get the fields of the default fetch group that are stored in a single
+	 * column. Collections, maps and arrays of related objects are stored in a
+	 * column per element, so they are not returned
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @return
+	 */
+	public static int[] getDefaultFetchFields(AbstractClassMetaData metaData,
+			ClassLoaderResolver clr) {
+
+		int[] cached = classToDefaultFetchFields.get(metaData
+				.getFullClassName());
+
+		if (cached != null) {
+			return cached;
+		}
+
+		int[] dfg = metaData.getDFGMemberPositions();
+		int[] fields = new int[dfg.length];
+		int size = 0;
+
+		for (int fieldNumber : dfg) {
+			int relationType = metaData
+					.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber)
+					.getRelationType(clr);
+
+			if (relationType == Relation.MANY_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_UNI) {
+				continue;
+			}
+
+			fields[size++] = fieldNumber;
+		}
+
+		cached = Arrays.copyOf(fields, size);
+
+		classToDefaultFetchFields.putIfAbsent(metaData.getFullClassName(),
+				cached);
+
+		return cached;
+	}
+
+	/**
+	 * Get the fields of the default fetch group that are stored in a single
+	 * column and whose column is one of the given columns
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @param columns
+	 *            The names of the columns that were read
+	 * @return
+	 */
+	public static int[] getDefaultFetchFields(AbstractClassMetaData metaData,
+			ClassLoaderResolver clr, Set<Bytes> columns) {
+
+		int[] defaultFields = getDefaultFetchFields(metaData, clr);
+		int[] fields = new int[defaultFields.length];
+		int size = 0;
+
+		for (int fieldNumber : defaultFields) {
+			if (columns.contains(getColumnName(metaData, fieldNumber))) {
+				fields[size++] = fieldNumber;
+			}
+		}
+
+		return Arrays.copyOf(fields, size);
+	}
+
+	/**
+	 * Returns true if any of the fields is a collection, map or array of
+	 * related objects. These are stored in a column per element rather than
+	 * a single column
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @param fieldNumbers
+	 * @return
+	 */
+	public static boolean hasContainerFields(AbstractClassMetaData metaData,
+			ClassLoaderResolver clr, int[] fieldNumbers) {
+
+		for (int fieldNumber : fieldNumbers) {
+			int relationType = metaData
+					.getMetaDataForManagedMemberAtAbsolutePosition(fieldNumber)
+					.getRelationType(clr);
+
+			if (relationType == Relation.MANY_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_BI
+					|| relationType == Relation.ONE_TO_MANY_UNI) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the column names of the default fetch group of the class and every
+	 * subclass. Reading these columns is enough to populate the default fetch
+	 * group of any object stored in the column family of the class
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @param ec
+	 * @return
+	 */
+	public static Set<Bytes> getDefaultFetchColumns(
+			AbstractClassMetaData metaData, ClassLoaderResolver clr,
+			ExecutionContext ec) {
+
+		String className = metaData.getFullClassName();
+
+		Set<Bytes> columns = classToDefaultFetchColumns.get(className);
+
+		if (columns != null) {
+			return columns;
+		}
+
+		columns = new LinkedHashSet<Bytes>();
+
+		addDefaultFetchColumns(metaData, clr, columns);
+
+		MetaDataManager mdm = ec.getMetaDataManager();
+
+		String[] subClasses = mdm.getSubclassesForClass(className, true);
+
+		if (subClasses != null) {
+			for (String subclassName : subClasses) {
+				addDefaultFetchColumns(
+						mdm.getMetaDataForClass(subclassName, clr), clr,
+						columns);
+			}
+		}
+
+		columns = Collections.unmodifiableSet(columns);
+
+		classToDefaultFetchColumns.putIfAbsent(className, columns);
+
+		return columns;
+	}
+
+	/**
+	 * Add the column names of the default fetch group of the class
+	 * 
+	 * @param metaData
+	 * @param clr
+	 * @param columns
+	 */
+	private static void addDefaultFetchColumns(AbstractClassMetaData metaData,
+			ClassLoaderResolver clr, Set<Bytes> columns) {
+		for (int fieldNumber : getDefaultFetchFields(metaData, clr)) {
+			columns.add(getColumnName(metaData, fieldNumber));
+		}
 	}
 
 	/**
@@ -0,0 +1,79 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.utils;
+
+import org.scale7.cassandra.pelops.Operand;
+import org.scale7.cassandra.pelops.pool.IThriftPool;
+import org.scale7.cassandra.pelops.pool.IThriftPool.IPooledConnection;
+
+/**
+ * Reads the class name of the partitioner of the cluster
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class PartitionerReader extends Operand {
+
+	/**
+	 * The partitioner that hashes keys into MD5 tokens
+	 */
+	public static final String RANDOM_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+
+	/**
+	 * The partitioner that orders keys by their bytes
+	 */
+	public static final String BYTE_ORDERED_PARTITIONER = "org.apache.cassandra.dht.ByteOrderedPartitioner";
+
+	/**
+	 * The partitioner that orders keys by their UTF-8 bytes
+	 */
+	public static final String ORDER_PRESERVING_PARTITIONER = "org.apache.cassandra.dht.OrderPreservingPartitioner";
+
+	public PartitionerReader(IThriftPool pool) {
+		super(pool);
+	}
+
+	/**
+	 * Returns true if the partitioner returns the rows of a range scan in the
+	 * order of the bytes of their keys
+	 * 
+	 * @param partitioner
+	 *            The class name of the partitioner
+	 * @return
+	 */
+	public static boolean isOrderPreserving(String partitioner) {
+		return BYTE_ORDERED_PARTITIONER.equals(partitioner)
+				|| ORDER_PRESERVING_PARTITIONER.equals(partitioner);
+	}
+
+	/**
+	 * @return the class name of the partitioner
+	 * @throws Exception
+	 */
+	public String getPartitioner() throws Exception {
+		return tryOperation(new IOperation<String>() {
+
+			@Override
+			public String execute(IPooledConnection conn) throws Exception {
+				return conn.getAPI().describe_partitioner();
+			}
+
+		});
+	}
+
+}
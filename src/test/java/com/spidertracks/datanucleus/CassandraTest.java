@@ -17,17 +17,21 @@ Contributors :
  ***********************************************************************/
 package com.spidertracks.datanucleus;
 
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
 
 import javax.jdo.JDOHelper;
 import javax.jdo.PersistenceManagerFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.cassandra.thrift.Column;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.thrift.KeyRange;
 import org.apache.cassandra.thrift.SlicePredicate;
 import org.apache.commons.codec.binary.Hex;
+import org.datanucleus.jdo.JDOPersistenceManagerFactory;
 import org.junit.BeforeClass;
 import org.scale7.cassandra.pelops.Bytes;
 import org.scale7.cassandra.pelops.Pelops;
@@ -129,6 +133,42 @@ public abstract class CassandraTest {
 
 	}
 	
+	/**
+	 * Get the number of reads the embedded server has served. Includes single
+	 * row reads and range scans
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	protected long getReadCount() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName proxy = new ObjectName(
+				"org.apache.cassandra.db:type=StorageProxy");
+
+		return (Long) server.getAttribute(proxy, "ReadOperations")
+				+ (Long) server.getAttribute(proxy, "RangeOperations");
+	}
+
+	/**
+	 * Get the store manager of the factory
+	 * 
+	 * @return
+	 */
+	protected CassandraStoreManager getStoreManager() {
+		return (CassandraStoreManager) ((JDOPersistenceManagerFactory) pmf)
+				.getOMFContext().getStoreManager();
+	}
+
+	/**
+	 * Get the row key the store manager writes for the id
+	 * 
+	 * @param id
+	 * @return
+	 */
+	protected Bytes getRowKey(Object id) {
+		return getStoreManager().getByteConverterContext().getRowKeyForId(id);
+	}
+
 	/**
 	 * Print all rows as hex in the cf name
 	 * @param cfName
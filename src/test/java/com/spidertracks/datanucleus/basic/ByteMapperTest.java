@@ -20,6 +20,7 @@ package com.spidertracks.datanucleus.basic;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 
 import java.util.UUID;
 
@@ -72,7 +73,43 @@ public class ByteMapperTest extends CassandraTest {
 
 	}
 
-	
+	/**
+	 * A new object with an assigned identity replaces the row stored for it
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLongEntityInsertOverStoredRow() throws Exception {
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		LongEntity object = new LongEntity();
+		object.setTestVal("testVal");
+		object.setId(101l);
+
+		pm.makePersistent(object);
+		pm.close();
+
+		// a new object for the same row, the stored value must be removed
+		pm = pmf.getPersistenceManager();
+
+		LongEntity replacement = new LongEntity();
+		replacement.setId(101l);
+
+		pm.makePersistent(replacement);
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+
+		LongEntity stored = (LongEntity) pm.getObjectById(LongEntity.class,
+				101l);
+
+		assertEquals(replacement.getId(), stored.getId());
+		assertNull(stored.getTestVal());
+
+		pm.close();
+	}
+
 	@Test
 	public void testLexicalUUIDEntityLoad() throws Exception {
 
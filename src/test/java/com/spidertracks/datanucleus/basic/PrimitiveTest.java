@@ -30,6 +30,7 @@ import java.util.Date;
 import javax.jdo.JDODataStoreException;
 import javax.jdo.JDOException;
 import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
 
 import org.datanucleus.exceptions.NucleusDataStoreException;
 import org.junit.Ignore;
@@ -109,6 +110,50 @@ public class PrimitiveTest extends CassandraTest {
 
 	}
 
+	/**
+	 * Tests that an update only writes the fields that were changed, so two
+	 * persistence managers changing different fields don't overwrite each
+	 * other's values
+	 */
+	@Test
+	public void testUpdateOnlyWritesDirtyFields() throws Exception {
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestInt(40);
+		object.setTestLong(200);
+		object.setTestString("foobar");
+
+		pmf.getPersistenceManager().makePersistent(object);
+
+		PersistenceManager pm1 = pmf.getPersistenceManager();
+		Transaction tx1 = pm1.currentTransaction();
+		tx1.begin();
+
+		PrimitiveObject first = pm1.getObjectById(PrimitiveObject.class,
+				object.getId());
+
+		PersistenceManager pm2 = pmf.getPersistenceManager();
+		Transaction tx2 = pm2.currentTransaction();
+		tx2.begin();
+
+		PrimitiveObject second = pm2.getObjectById(PrimitiveObject.class,
+				object.getId());
+
+		first.setTestInt(41);
+		tx1.commit();
+
+		second.setTestLong(201);
+		tx2.commit();
+
+		PrimitiveObject stored = pmf.getPersistenceManager().getObjectById(
+				PrimitiveObject.class, object.getId());
+
+		assertEquals(41, stored.getTestInt());
+		assertEquals(201, stored.getTestLong());
+		assertEquals("foobar", stored.getTestString());
+
+	}
+
 	/**
 	 * Tests an object is serialized as bytes properly
 	 */
@@ -19,15 +19,20 @@ package com.spidertracks.datanucleus.basic.inheritance;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.List;
 
+import javax.jdo.JDOObjectNotFoundException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Query;
 import javax.jdo.Transaction;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
 
 import com.spidertracks.datanucleus.CassandraTest;
 import com.spidertracks.datanucleus.basic.inheritance.caseone.Child;
@@ -40,6 +45,8 @@ import com.spidertracks.datanucleus.basic.inheritance.casethree.ParentThree;
 import com.spidertracks.datanucleus.basic.inheritance.casetwo.ChildTwo;
 import com.spidertracks.datanucleus.basic.inheritance.casetwo.GrandChildTwoOne;
 import com.spidertracks.datanucleus.basic.inheritance.casetwo.GrandChildTwoTwo;
+import com.spidertracks.datanucleus.fetch.ClassNameCache;
+import com.spidertracks.datanucleus.model.BaseEntity;
 
 /**
  * Tests for 2 objects that are bi-directionally dependent and default fetch
@@ -139,6 +146,116 @@ public class InheritanceTest extends CassandraTest {
 
 	}
 	
+	/**
+	 * The class of a row stored in the column family of a descendant is found
+	 * by probing every descendant, then it is cached
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testSubclassOwnCFProbeIsCached() throws Exception {
+
+		GrandChildTwoOne first = new GrandChildTwoOne();
+		first.setChildField("cf-probe1");
+		first.setGrandChildOneField("gcf-probe1");
+		first.setParentField("pf-probe1");
+
+		GrandChildTwoTwo second = new GrandChildTwoTwo();
+		second.setChildField("cf-probe2");
+		second.setGrandChildOneField("gcf-probe2");
+		second.setParentField("pf-probe2");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(first);
+		pm.makePersistent(second);
+		pm.close();
+
+		ClassNameCache cache = getStoreManager().getClassNameCache();
+		Bytes key = getRowKey(first.getId());
+
+		assertNull(cache.get(BaseEntity.class.getName(), key));
+
+		pm = pmf.getPersistenceManager();
+
+		long reads = getReadCount();
+
+		ChildTwo savedFirst = pm.getObjectById(ChildTwo.class, first.getId());
+
+		long missReads = getReadCount() - reads;
+
+		assertTrue(savedFirst instanceof GrandChildTwoOne);
+		assertEquals("gcf-probe1",
+				((GrandChildTwoOne) savedFirst).getGrandChildOneField());
+		assertEquals("cf-probe1", savedFirst.getChildField());
+
+		ChildTwo savedSecond = pm.getObjectById(ChildTwo.class, second.getId());
+
+		assertTrue(savedSecond instanceof GrandChildTwoTwo);
+		assertEquals("gcf-probe2",
+				((GrandChildTwoTwo) savedSecond).getGrandChildOneField());
+
+		pm.close();
+
+		assertEquals(GrandChildTwoOne.class.getName(),
+				cache.get(BaseEntity.class.getName(), key));
+
+		// the class is cached, so the column families aren't probed again
+		pm = pmf.getPersistenceManager();
+
+		reads = getReadCount();
+
+		savedFirst = pm.getObjectById(ChildTwo.class, first.getId());
+
+		assertTrue(getReadCount() - reads < missReads);
+		assertEquals(first, savedFirst);
+
+		pm.close();
+	}
+
+	/**
+	 * Deleting an object removes the cached class of its row
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testDeleteInvalidatesClassName() throws Exception {
+
+		GrandChildTwoOne first = new GrandChildTwoOne();
+		first.setChildField("cf-delete");
+		first.setGrandChildOneField("gcf-delete");
+		first.setParentField("pf-delete");
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(first);
+		pm.close();
+
+		ClassNameCache cache = getStoreManager().getClassNameCache();
+		Bytes key = getRowKey(first.getId());
+
+		pm = pmf.getPersistenceManager();
+
+		ChildTwo saved = pm.getObjectById(ChildTwo.class, first.getId());
+
+		assertEquals(GrandChildTwoOne.class.getName(),
+				cache.get(BaseEntity.class.getName(), key));
+
+		pm.deletePersistent(saved);
+		pm.close();
+
+		assertNull(cache.get(BaseEntity.class.getName(), key));
+
+		pm = pmf.getPersistenceManager();
+
+		try {
+			pm.getObjectById(ChildTwo.class, first.getId());
+			fail("A deleted object was found");
+		} catch (JDOObjectNotFoundException e) {
+			// expected
+		}
+
+		pm.close();
+	}
+
 	/**
 	 * Test retrieval works when everything is stored in abstract parent class cf
 	 * 
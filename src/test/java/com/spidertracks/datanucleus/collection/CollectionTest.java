@@ -23,6 +23,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.util.List;
 
@@ -31,6 +32,7 @@ import javax.jdo.PersistenceManager;
 import javax.jdo.Transaction;
 
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -175,6 +177,273 @@ public class CollectionTest extends CassandraTest {
 
 	}
 
+	/**
+	 * Tests every element is loaded when the elements are read in bulk
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLoadManyElements() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 90; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(pack, saved);
+
+		assertEquals(90, saved.getCards().size());
+
+		for (Card card : pack.getCards()) {
+			Card savedCard = saved.getCards().get(
+					saved.getCards().indexOf(card));
+
+			assertEquals(card.getName(), savedCard.getName());
+			assertEquals(pack, savedCard.getPack());
+		}
+
+		trans.commit();
+
+	}
+
+	@Test
+	public void testLoadPagedElements() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 250; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setFetchSize(50);
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		int count = 0;
+
+		for (Card card : saved.getCards()) {
+			assertTrue(pack.getCards().contains(card));
+			assertEquals(saved, card.getPack());
+			count++;
+		}
+
+		assertEquals(250, count);
+
+		Card added = new Card();
+		added.setName("Card 250");
+		saved.addCard(added);
+
+		trans.commit();
+
+		pm = pmf.getPersistenceManager();
+		trans = pm.currentTransaction();
+		trans.begin();
+
+		saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(251, saved.getCards().size());
+		assertTrue(saved.getCards().contains(added));
+
+		trans.commit();
+
+	}
+
+	@Test
+	public void testInsertWithoutReads() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 20; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		long reads = getReadCount();
+
+		pm.makePersistent(pack);
+
+		trans.commit();
+
+		// the identities are generated, so nothing can be stored for the rows
+		assertEquals(reads, getReadCount());
+
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(20, saved.getCards().size());
+
+		pm.close();
+	}
+
+	@Test
+	public void testChangePagedElementsWithoutReads() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 250; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setFetchSize(50);
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		// only the first page is read
+		Card removed = saved.getCards().get(0);
+
+		long reads = getReadCount();
+
+		saved.getCards().remove(removed);
+
+		Card added = new Card();
+		added.setName("Card 250");
+		saved.addCard(added);
+
+		pm.flush();
+
+		// neither change reads the other pages of the collection
+		assertEquals(reads, getReadCount());
+
+		trans.commit();
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+		trans = pm.currentTransaction();
+		trans.begin();
+
+		saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(250, saved.getCards().size());
+		assertTrue(saved.getCards().contains(added));
+		assertFalse(saved.getCards().contains(removed));
+
+		trans.commit();
+		pm.close();
+
+	}
+
+	@Test
+	public void testPagedSizeWithoutLoading() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 250; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setFetchSize(50);
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		List<Card> cards = saved.getCards();
+
+		long reads = getReadCount();
+
+		// a single count instead of every page
+		assertEquals(250, cards.size());
+		assertEquals(reads + 1, getReadCount());
+
+		Card removed = cards.get(0);
+		cards.remove(removed);
+
+		Card added = new Card();
+		added.setName("Card 250");
+		saved.addCard(added);
+
+		// the count and a single read of the changed columns
+		reads = getReadCount();
+
+		assertEquals(250, cards.size());
+		assertEquals(reads + 2, getReadCount());
+
+		trans.commit();
+		pm.close();
+
+	}
+
+	@Test
+	public void testPagedElementsAfterClose() throws Exception {
+
+		Pack pack = new Pack();
+
+		for (int i = 0; i < 250; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.getFetchPlan().setFetchSize(50);
+
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		List<Card> cards = saved.getCards();
+
+		assertNotNull(cards.get(0));
+
+		trans.commit();
+		pm.close();
+
+		// the first page is still loaded, the rest can't be read
+		assertNotNull(cards.get(0));
+
+		try {
+			cards.get(100);
+			fail("The closed persistence manager should have been detected");
+		} catch (NucleusUserException nue) {
+			// expected
+		}
+
+	}
+
 	@Test
 	public void testSaveAndLoadSamePmf() throws Exception {
 
@@ -420,4 +689,59 @@ public class CollectionTest extends CassandraTest {
 
 	}
 
+
+	@Test
+	public void testAddAndRemoveLoadedCollectionEntries() throws Exception {
+
+		User user = new User();
+		user.setName("diff");
+
+		for (int i = 0; i < 50; i++) {
+			Vehicle vehicle = new Vehicle();
+			vehicle.setName("vehicle" + i);
+
+			user.addVehicle(vehicle);
+		}
+
+		pmf.getPersistenceManager().makePersistent(user);
+
+		// load the full collection, then change it without re-reading
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		User saved = pm.getObjectById(User.class, user.getId());
+
+		assertEquals(50, saved.getVehicles().size());
+
+		Vehicle removed = saved.getVehicles().remove(0);
+
+		Vehicle added = new Vehicle();
+		added.setName("added");
+
+		saved.addVehicle(added);
+
+		pm.makePersistent(saved);
+
+		saved = pmf.getPersistenceManager().getObjectById(User.class,
+				user.getId());
+
+		assertEquals(50, saved.getVehicles().size());
+		assertFalse(saved.getVehicles().contains(removed));
+		assertTrue(saved.getVehicles().contains(added));
+
+		// a second change with the collection written, not read
+		pm = pmf.getPersistenceManager();
+
+		User second = pm.getObjectById(User.class, user.getId());
+
+		second.getVehicles().remove(added);
+
+		pm.makePersistent(second);
+
+		saved = pmf.getPersistenceManager().getObjectById(User.class,
+				user.getId());
+
+		assertEquals(49, saved.getVehicles().size());
+		assertFalse(saved.getVehicles().contains(added));
+	}
+
 }
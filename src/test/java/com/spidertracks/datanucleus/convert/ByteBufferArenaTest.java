@@ -0,0 +1,92 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+package com.spidertracks.datanucleus.convert;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author Todd Nine
+ * 
+ */
+public class ByteBufferArenaTest {
+
+	@Test
+	public void testWritesShareSlab() {
+		ByteBufferArena arena = new ByteBufferArena(new SlabPool(1024, 1));
+
+		StringConverter converter = new StringConverter();
+
+		ByteBuffer begun = arena.begin();
+		ByteBuffer first = arena.end(begun,
+				converter.writeBytes("first", begun, null));
+
+		begun = arena.begin();
+		ByteBuffer second = arena.end(begun,
+				converter.writeBytes("second", begun, null));
+
+		// both are slices of the same slab, one after the other
+		assertSame(first.array(), second.array());
+		assertEquals(first.arrayOffset() + 5, second.arrayOffset());
+
+		assertEquals("first", converter.getObject(first, null));
+		assertEquals("second", converter.getObject(second, null));
+	}
+
+	@Test
+	public void testLargeValueReallocates() {
+		ByteBufferArena arena = new ByteBufferArena(new SlabPool(512, 1));
+
+		ByteArrayConverter converter = new ByteArrayConverter();
+
+		byte[] large = new byte[2048];
+		large[2047] = 1;
+
+		ByteBuffer begun = arena.begin();
+		ByteBuffer written = arena.end(begun,
+				converter.writeBytes(large, begun, null));
+
+		assertNotSame(begun.array(), written.array());
+		assertEquals(2048, written.remaining());
+		assertEquals(1, written.get(2047));
+
+		// nothing was claimed, the next write starts at the same place
+		ByteBuffer next = arena.begin();
+		assertEquals(begun.arrayOffset(), next.arrayOffset());
+	}
+
+	@Test
+	public void testReleaseReusesSlab() {
+		SlabPool pool = new SlabPool(1024, 1);
+
+		ByteBufferArena arena = new ByteBufferArena(pool);
+
+		ByteBuffer first = arena.begin();
+
+		arena.release();
+
+		ByteBuffer second = arena.begin();
+
+		assertSame(first.array(), second.array());
+		assertEquals(0, second.arrayOffset());
+	}
+}
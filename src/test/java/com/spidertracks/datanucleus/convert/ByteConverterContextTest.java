@@ -0,0 +1,275 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.convert;
+
+import static com.spidertracks.datanucleus.convert.ConverterUtils.check;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.ColumnFamilyManager;
+
+/**
+ * Tests the primitives read and written without boxing round trip to the
+ * same bytes as the boxed converters, and that a replaced converter is still
+ * used for them
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class ByteConverterContextTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ByteConverterContext context = new ByteConverterContext(null,
+			null, null, null);
+
+	private ByteBufferArena arena = new ByteBufferArena(new SlabPool(1024, 1));
+
+	@Test
+	public void testBoolean() {
+		for (boolean value : new boolean[] { true, false }) {
+			byte[] boxed = context.getBytes((Object) Boolean.valueOf(value))
+					.toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(value, context.readBoolean(Bytes.fromByteArray(boxed)));
+			assertEquals(value, context.getBoolean(Bytes.fromByteArray(boxed)));
+		}
+	}
+
+	@Test
+	public void testChar() {
+		for (char value : new char[] { Character.MIN_VALUE, 'a', '\u00e9',
+				'\ud800', Character.MAX_VALUE }) {
+			byte[] boxed = context.getBytes(
+					(Object) Character.valueOf(value)).toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(value, context.readChar(Bytes.fromByteArray(boxed)));
+			assertEquals(Character.valueOf(value), context.getCharacter(Bytes
+					.fromByteArray(boxed)));
+		}
+	}
+
+	@Test
+	public void testShort() {
+		for (short value : new short[] { Short.MIN_VALUE, -1, 0, 1,
+				Short.MAX_VALUE }) {
+			byte[] boxed = context.getBytes((Object) Short.valueOf(value))
+					.toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(value, context.readShort(Bytes.fromByteArray(boxed)));
+			assertEquals(Short.valueOf(value), context.getShort(Bytes
+					.fromByteArray(boxed)));
+		}
+	}
+
+	@Test
+	public void testInt() {
+		for (int value : new int[] { Integer.MIN_VALUE, -1, 0, 1,
+				Integer.MAX_VALUE }) {
+			byte[] boxed = context.getBytes((Object) Integer.valueOf(value))
+					.toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(value, context.readInt(Bytes.fromByteArray(boxed)));
+			assertEquals(Integer.valueOf(value), context.getInteger(Bytes
+					.fromByteArray(boxed)));
+		}
+	}
+
+	@Test
+	public void testLong() {
+		for (long value : new long[] { Long.MIN_VALUE, -1, 0, 1,
+				Long.MAX_VALUE }) {
+			byte[] boxed = context.getBytes((Object) Long.valueOf(value))
+					.toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(value, context.readLong(Bytes.fromByteArray(boxed)));
+			assertEquals(Long.valueOf(value), context.getLong(Bytes
+					.fromByteArray(boxed)));
+		}
+	}
+
+	@Test
+	public void testFloat() {
+		for (float value : new float[] { -Float.MAX_VALUE, -1, -0f, 0,
+				Float.MIN_VALUE, Float.MAX_VALUE, Float.NaN,
+				Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY }) {
+			byte[] boxed = context.getBytes((Object) Float.valueOf(value))
+					.toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(Float.floatToRawIntBits(value), Float
+					.floatToRawIntBits(context.readFloat(Bytes
+							.fromByteArray(boxed))));
+			assertEquals(Float.valueOf(value), context.getFloat(Bytes
+					.fromByteArray(boxed)));
+		}
+	}
+
+	@Test
+	public void testDouble() {
+		for (double value : new double[] { -Double.MAX_VALUE, -1, -0d, 0,
+				Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN,
+				Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY }) {
+			byte[] boxed = context.getBytes((Object) Double.valueOf(value))
+					.toByteArray();
+
+			assertArrayEquals(boxed, context.getBytes(value, arena)
+					.toByteArray());
+			assertEquals(Double.doubleToRawLongBits(value), Double
+					.doubleToRawLongBits(context.readDouble(Bytes
+							.fromByteArray(boxed))));
+			assertEquals(Double.valueOf(value), context.getDouble(Bytes
+					.fromByteArray(boxed)));
+		}
+	}
+
+	/**
+	 * Every primitive mapped to another converter is written and read by that
+	 * converter rather than the built in encoding
+	 */
+	@Test
+	public void testReplacedConverters() {
+		ByteConverterContext replaced = new ByteConverterContext(
+				"textPrimitiveConverters.properties", null, null, null);
+
+		assertText("Ztrue", replaced.getBytes(true, arena));
+		assertText("Cx", replaced.getBytes('x', arena));
+		assertText("S-3", replaced.getBytes((short) -3, arena));
+		assertText("I42", replaced.getBytes(42, arena));
+		assertText("J-42", replaced.getBytes(-42l, arena));
+		assertText("F1.5", replaced.getBytes(1.5f, arena));
+		assertText("D-2.5", replaced.getBytes(-2.5d, arena));
+
+		assertEquals(true, replaced.readBoolean(text("Ztrue")));
+		assertEquals('x', replaced.readChar(text("Cx")));
+		assertEquals((short) -3, replaced.readShort(text("S-3")));
+		assertEquals(42, replaced.readInt(text("I42")));
+		assertEquals(-42l, replaced.readLong(text("J-42")));
+		assertEquals(1.5f, replaced.readFloat(text("F1.5")), 0);
+		assertEquals(-2.5d, replaced.readDouble(text("D-2.5")), 0);
+	}
+
+	/**
+	 * Assert the bytes hold the text
+	 * 
+	 * @param expected
+	 * @param bytes
+	 */
+	private static void assertText(String expected, Bytes bytes) {
+		assertEquals(expected, new String(bytes.toByteArray(), UTF8));
+	}
+
+	/**
+	 * Create bytes holding the text
+	 * 
+	 * @param value
+	 * @return
+	 */
+	private static Bytes text(String value) {
+		return Bytes.fromByteArray(value.getBytes(UTF8));
+	}
+
+	/**
+	 * Writes a primitive as a type character followed by its text, so it can't
+	 * be read with the built in encodings
+	 * 
+	 */
+	public static class TextConverter implements ByteConverter {
+
+		@Override
+		public Object getObject(ByteBuffer buffer, ByteConverterContext context) {
+			if (buffer == null) {
+				return null;
+			}
+
+			byte[] data = new byte[buffer.remaining()];
+			buffer.get(data);
+
+			String value = new String(data, 1, data.length - 1, UTF8);
+
+			switch (data[0]) {
+			case 'Z':
+				return Boolean.valueOf(value);
+			case 'C':
+				return Character.valueOf(value.charAt(0));
+			case 'S':
+				return Short.valueOf(value);
+			case 'I':
+				return Integer.valueOf(value);
+			case 'J':
+				return Long.valueOf(value);
+			case 'F':
+				return Float.valueOf(value);
+			case 'D':
+				return Double.valueOf(value);
+			default:
+				throw new IllegalArgumentException("Unknown type " + data[0]);
+			}
+		}
+
+		@Override
+		public ByteBuffer writeBytes(Object value, ByteBuffer buffer,
+				ByteConverterContext context) {
+
+			String type;
+
+			if (value instanceof Boolean) {
+				type = "Z";
+			} else if (value instanceof Character) {
+				type = "C";
+			} else if (value instanceof Short) {
+				type = "S";
+			} else if (value instanceof Integer) {
+				type = "I";
+			} else if (value instanceof Long) {
+				type = "J";
+			} else if (value instanceof Float) {
+				type = "F";
+			} else {
+				type = "D";
+			}
+
+			byte[] data = (type + value).getBytes(UTF8);
+
+			return check(buffer, data.length).put(data);
+		}
+
+		@Override
+		public String getComparatorType() {
+			return ColumnFamilyManager.CFDEF_COMPARATOR_BYTES;
+		}
+
+	}
+
+}
@@ -0,0 +1,119 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.JDOObjectNotFoundException;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Tests cached rows are never returned once they have been written or
+ * deleted through the same store manager
+ *
+ * @author Todd Nine
+ *
+ */
+public class RowCacheTest extends CassandraTest {
+
+	private static PersistenceManagerFactory cachePmf;
+
+	@BeforeClass
+	public static void setupRowCache() {
+		cachePmf = JDOHelper.getPersistenceManagerFactory("TestRowCache");
+	}
+
+	@Test
+	public void testUpdateInvalidates() throws Exception {
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("before");
+		object.setTestInt(1);
+
+		cachePmf.getPersistenceManager().makePersistent(object);
+
+		UUID id = object.getId();
+
+		// read twice so the second read is served by the cache
+		for (int i = 0; i < 2; i++) {
+			PersistenceManager pm = cachePmf.getPersistenceManager();
+
+			PrimitiveObject saved = pm.getObjectById(PrimitiveObject.class,
+					id);
+
+			assertEquals("before", saved.getTestString());
+			assertEquals(1, saved.getTestInt());
+
+			pm.close();
+		}
+
+		PersistenceManager pm = cachePmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		PrimitiveObject saved = pm.getObjectById(PrimitiveObject.class, id);
+		saved.setTestString("after");
+
+		tx.commit();
+		pm.close();
+
+		pm = cachePmf.getPersistenceManager();
+
+		saved = pm.getObjectById(PrimitiveObject.class, id);
+
+		assertEquals("after", saved.getTestString());
+		assertEquals(1, saved.getTestInt());
+
+		pm.close();
+	}
+
+	@Test(expected = JDOObjectNotFoundException.class)
+	public void testDeleteInvalidates() throws Exception {
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("deleted");
+
+		cachePmf.getPersistenceManager().makePersistent(object);
+
+		UUID id = object.getId();
+
+		PersistenceManager pm = cachePmf.getPersistenceManager();
+
+		PrimitiveObject saved = pm.getObjectById(PrimitiveObject.class, id);
+
+		assertEquals("deleted", saved.getTestString());
+
+		pm.deletePersistent(saved);
+		pm.close();
+
+		pm = cachePmf.getPersistenceManager();
+
+		pm.getObjectById(PrimitiveObject.class, id);
+	}
+
+}
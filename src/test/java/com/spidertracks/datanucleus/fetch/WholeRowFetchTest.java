@@ -0,0 +1,159 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.fetch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.collection.model.Card;
+import com.spidertracks.datanucleus.collection.model.Pack;
+import com.spidertracks.datanucleus.map.model.CardMap;
+import com.spidertracks.datanucleus.map.model.PackMap;
+
+/**
+ * Tests objects with collections and maps are populated correctly when the
+ * whole row is read with a single slice
+ *
+ * @author Todd Nine
+ *
+ */
+public class WholeRowFetchTest extends CassandraTest {
+
+	private static PersistenceManagerFactory wholeRowPmf;
+
+	@BeforeClass
+	public static void setupWholeRow() {
+		wholeRowPmf = JDOHelper.getPersistenceManagerFactory("TestWholeRow");
+	}
+
+	@Test
+	public void testCollectionOverSeveralPages() throws Exception {
+
+		Pack pack = new Pack();
+
+		// more columns than a single slice of the row
+		for (int i = 0; i < 1200; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = wholeRowPmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(pack, saved);
+
+		int count = 0;
+
+		for (Card card : saved.getCards()) {
+			assertTrue(pack.getCards().contains(card));
+			assertEquals(saved, card.getPack());
+			count++;
+		}
+
+		assertEquals(1200, count);
+
+		trans.commit();
+
+	}
+
+	@Test
+	public void testCollectionOverMaxColumns() throws Exception {
+
+		Pack pack = new Pack();
+
+		// more columns than the row may have to be read whole
+		for (int i = 0; i < 1600; i++) {
+			Card card = new Card();
+			card.setName("Card " + i);
+			pack.addCard(card);
+		}
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = wholeRowPmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		// the fields are read with their own slices instead
+		Pack saved = pm.getObjectById(Pack.class, pack.getId());
+
+		assertEquals(pack, saved);
+
+		int count = 0;
+
+		for (Card card : saved.getCards()) {
+			assertTrue(pack.getCards().contains(card));
+			assertEquals(saved, card.getPack());
+			count++;
+		}
+
+		assertEquals(1600, count);
+
+		trans.commit();
+		pm.close();
+
+	}
+
+	@Test
+	public void testMap() throws Exception {
+
+		PackMap pack = new PackMap();
+
+		CardMap aceSpades = new CardMap();
+		aceSpades.setName("Ace of Spades");
+		pack.AddCard(aceSpades);
+
+		CardMap jackHearts = new CardMap();
+		jackHearts.setName("Jack of Hearts");
+		pack.AddCard(jackHearts);
+
+		pmf.getPersistenceManager().makePersistent(pack);
+
+		PersistenceManager pm = wholeRowPmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+		assertEquals(pack, saved);
+
+		assertEquals(2, saved.getCards().size());
+
+		assertEquals(aceSpades, saved.getCards().get(aceSpades.getName()));
+		assertEquals(jackHearts, saved.getCards().get(jackHearts.getName()));
+
+		trans.commit();
+
+	}
+
+}
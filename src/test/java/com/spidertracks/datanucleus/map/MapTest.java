@@ -23,13 +23,23 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import javax.jdo.JDODataStoreException;
 import javax.jdo.PersistenceManager;
 import javax.jdo.Transaction;
 
+import org.apache.cassandra.thrift.Column;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.SlicePredicate;
+import org.apache.cassandra.thrift.SliceRange;
 import org.datanucleus.exceptions.NucleusObjectNotFoundException;
 import org.junit.Ignore;
 import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
 
 import com.eaio.uuid.UUID;
 import com.spidertracks.datanucleus.CassandraTest;
@@ -220,4 +230,79 @@ public class MapTest extends CassandraTest {
 
 	}
 
+
+	/**
+	 * Writing a map must read its stored columns once regardless of its size.
+	 * Previously every entry re-read the whole map, so this was quadratic
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testLargeMapLinearCost() throws Exception {
+
+		long small = replaceMap(100);
+		long large = replaceMap(2000);
+
+		// 20 times the entries, but the same reads
+		assertEquals(small, large);
+	}
+
+	/**
+	 * Replace the empty map of a stored pack with a map of the given size,
+	 * verify every entry was stored and return the reads made to write it
+	 * 
+	 * @param size
+	 * @return
+	 * @throws Exception
+	 */
+	private long replaceMap(int size) throws Exception {
+		PackMap pack = new PackMap();
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		pm.makePersistent(pack);
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		PackMap saved = pm.getObjectById(PackMap.class, pack.getId());
+
+		Map<String, CardMap> cards = new HashMap<String, CardMap>();
+
+		for (int i = 0; i < size; i++) {
+			CardMap card = new CardMap();
+			card.setName("card" + i);
+			card.setPack(saved);
+			cards.put(card.getName(), card);
+		}
+
+		saved.setCards(cards);
+
+		long reads = getReadCount();
+
+		trans.commit();
+
+		reads = getReadCount() - reads;
+
+		pm.close();
+
+		// read the raw columns, a read through the pm only loads a page
+		SliceRange range = new SliceRange();
+		range.setStart(Bytes.fromUTF8("cards\u0000").getBytes());
+		range.setFinish(Bytes.fromUTF8("cards\u0001").getBytes());
+		range.setCount(Integer.MAX_VALUE);
+
+		SlicePredicate predicate = new SlicePredicate();
+		predicate.setSlice_range(range);
+
+		List<Column> columns = Pelops.createSelector("TestPool")
+				.getColumnsFromRow("PackMap", getRowKey(pack.getId()),
+						predicate, ConsistencyLevel.QUORUM);
+
+		assertEquals(size, columns.size());
+
+		return reads;
+	}
+
 }
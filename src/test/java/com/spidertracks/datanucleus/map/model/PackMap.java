@@ -52,6 +52,14 @@ public class PackMap extends BaseEntity {
 	public Map<String, CardMap> getCards() {
 		return cards;
 	}
+
+	/**
+	 * @param cards
+	 *            the cards to set
+	 */
+	public void setCards(Map<String, CardMap> cards) {
+		this.cards = cards;
+	}
 	
 
 	public void AddCard(CardMap card){
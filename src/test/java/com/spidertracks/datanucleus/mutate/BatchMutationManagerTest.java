@@ -0,0 +1,174 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.jdo.PersistenceManager;
+import javax.jdo.Transaction;
+
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Drives the batch mutation manager from many persistence managers at once to
+ * ensure concurrent flushes don't corrupt or lose each other's mutations
+ *
+ * @author Todd Nine
+ *
+ */
+public class BatchMutationManagerTest extends CassandraTest {
+
+	private static final int THREADS = 20;
+
+	private static final int OBJECTS = 50;
+
+	@Test
+	public void testConcurrentWritesAndDeletes() throws Exception {
+
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(THREADS);
+
+		List<UUID> saved = Collections.synchronizedList(new ArrayList<UUID>());
+		List<UUID> deleted = Collections
+				.synchronizedList(new ArrayList<UUID>());
+		List<Throwable> errors = Collections
+				.synchronizedList(new ArrayList<Throwable>());
+
+		for (int i = 0; i < THREADS; i++) {
+			new Thread(new Writer(i, start, done, saved, deleted, errors))
+					.start();
+		}
+
+		// release every thread at once to maximize contention
+		start.countDown();
+		done.await();
+
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		assertEquals(THREADS * OBJECTS / 2, saved.size());
+		assertEquals(THREADS * OBJECTS / 2, deleted.size());
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (UUID id : saved) {
+			PrimitiveObject stored = pm.getObjectById(PrimitiveObject.class,
+					id);
+
+			assertNotNull(stored);
+			assertEquals(id.toString(), stored.getTestString());
+		}
+
+		for (UUID id : deleted) {
+			boolean found = true;
+
+			try {
+				pmf.getPersistenceManager().getObjectById(
+						PrimitiveObject.class, id);
+			} catch (Exception e) {
+				found = false;
+			}
+
+			assertFalse(found);
+		}
+
+	}
+
+	/**
+	 * Persists objects with its own persistence manager, deleting every second
+	 * one
+	 *
+	 */
+	private class Writer implements Runnable {
+
+		private int thread;
+		private CountDownLatch start;
+		private CountDownLatch done;
+		private List<UUID> saved;
+		private List<UUID> deleted;
+		private List<Throwable> errors;
+
+		public Writer(int thread, CountDownLatch start, CountDownLatch done,
+				List<UUID> saved, List<UUID> deleted, List<Throwable> errors) {
+			this.thread = thread;
+			this.start = start;
+			this.done = done;
+			this.saved = saved;
+			this.deleted = deleted;
+			this.errors = errors;
+		}
+
+		@Override
+		public void run() {
+			try {
+				start.await();
+
+				PersistenceManager pm = pmf.getPersistenceManager();
+
+				for (int i = 0; i < OBJECTS; i++) {
+
+					Transaction tx = pm.currentTransaction();
+					tx.begin();
+
+					PrimitiveObject object = new PrimitiveObject();
+					object.setTestInt(thread);
+					object.setTestLong(i);
+
+					pm.makePersistent(object);
+
+					object.setTestString(object.getId().toString());
+
+					tx.commit();
+
+					if (i % 2 == 0) {
+						saved.add(object.getId());
+						continue;
+					}
+
+					tx = pm.currentTransaction();
+					tx.begin();
+
+					pm.deletePersistent(object);
+
+					tx.commit();
+
+					deleted.add(object.getId());
+				}
+
+				pm.close();
+
+			} catch (Throwable t) {
+				errors.add(t);
+			} finally {
+				done.countDown();
+			}
+		}
+
+	}
+}
@@ -0,0 +1,152 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+import org.scale7.cassandra.pelops.Pelops;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Tests large mutations are split into bounded batches
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class BatchMutatorTest extends CassandraTest {
+
+	private static PersistenceManagerFactory commitPmf;
+
+	@BeforeClass
+	public static void setupCommitFlush() {
+		commitPmf = JDOHelper.getPersistenceManagerFactory("TestCommitFlush");
+	}
+
+	@Test
+	public void testSplitByColumns() {
+		BatchMutator mutator = new BatchMutator(
+				Pelops.getDbConnPool("TestPool"), 0, Integer.MAX_VALUE, 10,
+				Integer.MAX_VALUE, null);
+
+		Bytes key = Bytes.fromUTF8("row");
+
+		for (int i = 0; i < 95; i++) {
+			mutator.writeColumn("cf", key,
+					mutator.newColumn(Bytes.fromInt(i), Bytes.fromInt(i)));
+		}
+
+		assertEquals(10, mutator.getBatchCount());
+	}
+
+	@Test
+	public void testSplitByRows() {
+		BatchMutator mutator = new BatchMutator(
+				Pelops.getDbConnPool("TestPool"), 0, Integer.MAX_VALUE,
+				Integer.MAX_VALUE, 3, null);
+
+		for (int i = 0; i < 10; i++) {
+			Bytes key = Bytes.fromInt(i);
+
+			mutator.writeColumn("cf", key,
+					mutator.newColumn(Bytes.fromUTF8("a"), Bytes.fromInt(i)));
+			mutator.deleteColumn("cf", key, Bytes.fromUTF8("b"));
+		}
+
+		assertEquals(4, mutator.getBatchCount());
+	}
+
+	@Test
+	public void testRowDeletionsBatched() {
+		BatchMutator mutator = new BatchMutator(
+				Pelops.getDbConnPool("TestPool"), 0, Integer.MAX_VALUE,
+				Integer.MAX_VALUE, 100, null);
+
+		// a delete graph of 301 rows needs 4 calls, not 301
+		for (int i = 0; i < 301; i++) {
+			mutator.deleteRow("cf", Bytes.fromInt(i));
+		}
+
+		assertEquals(4, mutator.getBatchCount());
+	}
+
+	@Test
+	public void testSplitByBytes() {
+		BatchMutator mutator = new BatchMutator(
+				Pelops.getDbConnPool("TestPool"), 0, 1024, Integer.MAX_VALUE,
+				Integer.MAX_VALUE, null);
+
+		Bytes key = Bytes.fromUTF8("row");
+
+		// each column is over half the limit, so every column needs a batch
+		for (int i = 0; i < 5; i++) {
+			mutator.writeColumn("cf", key, mutator.newColumn(
+					Bytes.fromInt(i), Bytes.fromByteArray(new byte[600])));
+		}
+
+		assertEquals(5, mutator.getBatchCount());
+	}
+
+	@Test
+	public void testLargeCommitSplit() throws Exception {
+
+		PersistenceManager pm = commitPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		List<UUID> ids = new ArrayList<UUID>();
+
+		// far more rows and columns than a single batch allows
+		for (int i = 0; i < 200; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+			object.setTestString("split" + i);
+
+			pm.makePersistent(object);
+
+			ids.add(object.getId());
+		}
+
+		tx.commit();
+
+		PersistenceManager reader = pmf.getPersistenceManager();
+
+		for (int i = 0; i < ids.size(); i++) {
+			PrimitiveObject stored = reader.getObjectById(
+					PrimitiveObject.class, ids.get(i));
+
+			assertEquals(i, stored.getTestInt());
+			assertEquals("split" + i, stored.getTestString());
+		}
+
+		pm.close();
+	}
+}
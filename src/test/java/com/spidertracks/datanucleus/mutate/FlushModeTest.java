@@ -0,0 +1,267 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.mutate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Transaction;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.eaio.uuid.UUID;
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.InvitationToken;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Tests the commit flush mode holds all writes until the transaction commits,
+ * and the async flush mode has completed all writes once commit returns
+ *
+ * @author Todd Nine
+ *
+ */
+public class FlushModeTest extends CassandraTest {
+
+	private static PersistenceManagerFactory commitPmf;
+
+	private static PersistenceManagerFactory asyncPmf;
+
+	@BeforeClass
+	public static void setupFlushModes() {
+		commitPmf = JDOHelper.getPersistenceManagerFactory("TestCommitFlush");
+		asyncPmf = JDOHelper.getPersistenceManagerFactory("TestAsyncFlush");
+	}
+
+	@Test
+	public void testWritesDeferredToCommit() throws Exception {
+
+		PersistenceManager pm = commitPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		List<UUID> ids = new ArrayList<UUID>();
+
+		for (int i = 0; i < 10; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+			object.setTestString("deferred" + i);
+
+			pm.makePersistent(object);
+
+			ids.add(object.getId());
+		}
+
+		// nothing should be visible until we commit
+		for (UUID id : ids) {
+			assertFalse(exists(id));
+		}
+
+		tx.commit();
+
+		PersistenceManager reader = pmf.getPersistenceManager();
+
+		for (int i = 0; i < ids.size(); i++) {
+			PrimitiveObject stored = reader.getObjectById(
+					PrimitiveObject.class, ids.get(i));
+
+			assertEquals(i, stored.getTestInt());
+			assertEquals("deferred" + i, stored.getTestString());
+		}
+
+		pm.close();
+
+	}
+
+	@Test
+	public void testWritesDiscardedOnRollback() throws Exception {
+
+		PersistenceManager pm = commitPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("rolledback");
+
+		pm.makePersistent(object);
+
+		UUID id = object.getId();
+
+		tx.rollback();
+
+		assertFalse(exists(id));
+
+		// the next transaction shouldn't send anything left from the rollback
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		PrimitiveObject second = new PrimitiveObject();
+		second.setTestString("committed");
+
+		pm.makePersistent(second);
+
+		UUID secondId = second.getId();
+
+		tx.commit();
+
+		assertFalse(exists(id));
+		assertTrue(exists(secondId));
+
+		pm.close();
+	}
+
+	@Test
+	public void testDeleteDeferredToCommit() throws Exception {
+
+		PersistenceManager pm = commitPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		PrimitiveObject object = new PrimitiveObject();
+		object.setTestString("todelete");
+
+		pm.makePersistent(object);
+
+		UUID id = object.getId();
+
+		tx.commit();
+
+		assertTrue(exists(id));
+
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		pm.deletePersistent(object);
+
+		assertTrue(exists(id));
+
+		tx.commit();
+
+		assertFalse(exists(id));
+
+		pm.close();
+	}
+
+	@Test
+	public void testDeleteAndPersistSameKey() throws Exception {
+
+		String key = "reinsert" + new UUID().toString();
+
+		PersistenceManager pm = commitPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		InvitationToken token = new InvitationToken();
+		token.setToken(key);
+		token.setTestString("first");
+
+		pm.makePersistent(token);
+
+		tx.commit();
+
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		// a write before the delete, so the deferred mutation already exists
+		PrimitiveObject other = new PrimitiveObject();
+		other.setTestString("other");
+
+		pm.makePersistent(other);
+
+		pm.deletePersistent(token);
+
+		InvitationToken replacement = new InvitationToken();
+		replacement.setToken(key);
+		replacement.setTestString("second");
+
+		pm.makePersistent(replacement);
+
+		tx.commit();
+
+		pm.close();
+
+		PersistenceManager reader = pmf.getPersistenceManager();
+
+		InvitationToken stored = reader.getObjectById(InvitationToken.class,
+				key);
+
+		assertEquals("second", stored.getTestString());
+
+		reader.close();
+	}
+
+	@Test
+	public void testAsyncWritesCompleteOnCommit() throws Exception {
+
+		PersistenceManager pm = asyncPmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		List<UUID> ids = new ArrayList<UUID>();
+
+		// more writes than the queue holds, so submitting must block
+		for (int i = 0; i < 50; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestInt(i);
+			object.setTestString("async" + i);
+
+			pm.makePersistent(object);
+
+			ids.add(object.getId());
+		}
+
+		tx.commit();
+
+		PersistenceManager reader = pmf.getPersistenceManager();
+
+		for (int i = 0; i < ids.size(); i++) {
+			PrimitiveObject stored = reader.getObjectById(
+					PrimitiveObject.class, ids.get(i));
+
+			assertEquals(i, stored.getTestInt());
+			assertEquals("async" + i, stored.getTestString());
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * Check for the object with a fresh persistence manager from the immediate
+	 * flush factory
+	 *
+	 * @param id
+	 * @return
+	 */
+	private boolean exists(UUID id) {
+		try {
+			pmf.getPersistenceManager().getObjectById(PrimitiveObject.class,
+					id);
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -34,6 +34,7 @@ import javax.jdo.Transaction;
 
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.datanucleus.exceptions.NucleusUserException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -234,6 +235,29 @@ public class JDOQLBasicTest extends CassandraTest {
 		}
 	}
 
+	/**
+	 * Query without a filter scanning the rows a page at a time
+	 */
+	@SuppressWarnings("rawtypes")
+	@Test
+	public void testScanOverSeveralPages() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Collection all = (Collection) pm.newQuery(PrimitiveObject.class)
+				.execute();
+
+		Query query = pm.newQuery(PrimitiveObject.class);
+		query.addExtension(JDOQLQuery.PAGE_SIZE, "1");
+
+		Collection paged = (Collection) query.execute();
+
+		assertTrue(all.size() >= 3);
+		assertEquals(all.size(), paged.size());
+		assertTrue(paged.containsAll(all));
+
+		pm.close();
+	}
+
 	/**
 	 * ordering
 	 */
@@ -347,6 +371,152 @@ public class JDOQLBasicTest extends CassandraTest {
 
 	}
 
+	/**
+	 * Query returning lazy results read a page at a time
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testEqualLazy() {
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(Person.class);
+		query.setFilter("firstName == :fN");
+		query.addExtension(JDOQLQuery.LAZY, "true");
+		query.addExtension(JDOQLQuery.PAGE_SIZE, "2");
+
+		List<Person> results = (List<Person>) query.execute(p1.getFirstName());
+
+		int count = 0;
+
+		for (Person person : results) {
+			assertTrue(person.equals(p1) || person.equals(p2)
+					|| person.equals(p3));
+			count++;
+		}
+
+		assertEquals(3, count);
+
+		pm.close();
+	}
+
+	/**
+	 * Lazy results can be sized and iterated again after they're iterated
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testEqualLazySizeAfterIterating() {
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(Person.class);
+		query.setFilter("firstName == :fN");
+		query.addExtension(JDOQLQuery.LAZY, "true");
+		query.addExtension(JDOQLQuery.PAGE_SIZE, "2");
+
+		List<Person> results = (List<Person>) query.execute(p1.getFirstName());
+
+		int count = 0;
+
+		for (Iterator<Person> it = results.iterator(); it.hasNext(); it.next()) {
+			count++;
+		}
+
+		assertEquals(3, count);
+		assertEquals(3, results.size());
+
+		count = 0;
+
+		for (Person person : results) {
+			assertTrue(person.equals(p1) || person.equals(p2)
+					|| person.equals(p3));
+			assertEquals(person, results.get(count));
+			count++;
+		}
+
+		assertEquals(3, count);
+
+		pm.close();
+	}
+
+	/**
+	 * Lazy results can't be read once the query has closed them
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testEqualLazyClosed() {
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(Person.class);
+		query.setFilter("firstName == :fN");
+		query.addExtension(JDOQLQuery.LAZY, "true");
+		query.addExtension(JDOQLQuery.PAGE_SIZE, "2");
+
+		List<Person> results = (List<Person>) query.execute(p1.getFirstName());
+
+		assertTrue(results.get(0) != null);
+
+		query.close(results);
+
+		try {
+			results.size();
+			fail("Closed results were read");
+		} catch (NucleusUserException e) {
+			// expected
+		}
+
+		pm.close();
+	}
+
+	/**
+	 * Query matching more rows than a single page of the index
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testEqualOverSeveralPages() {
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction trans = pm.currentTransaction();
+		trans.begin();
+
+		for (int i = 0; i < 2500; i++) {
+			Person person = new Person();
+			person.setFirstName("paged");
+			person.setLastName("lastName" + i);
+			person.setEmail("paged" + i + "@test.com");
+
+			pm.makePersistent(person);
+		}
+
+		trans.commit();
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+		trans = pm.currentTransaction();
+
+		try {
+			Query query = pm.newQuery(Person.class);
+			query.setFilter("firstName == :fN");
+
+			List<Person> results = (List<Person>) query.execute("paged");
+
+			assertEquals(2500, results.size());
+		} finally {
+			// the other tests of Person don't expect these rows
+			trans.begin();
+
+			Query cleanup = pm.newQuery(Person.class);
+			cleanup.setFilter("firstName == :fN");
+
+			pm.deletePersistentAll((Collection<Person>) cleanup
+					.execute("paged"));
+
+			trans.commit();
+			pm.close();
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	@Test
 	public void testEqualStringId() throws Exception {
@@ -836,4 +1006,87 @@ public class JDOQLBasicTest extends CassandraTest {
 
 	}
 
+	/**
+	 * Tests more results than are read with a single multiget are all loaded
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testQueryMultiplePages() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		int size = 250;
+
+		for (int i = 0; i < size; i++) {
+			PrimitiveObject object = new PrimitiveObject();
+			object.setTestString("paged");
+			object.setTestLong(i);
+
+			pm.makePersistent(object);
+		}
+
+		tx.commit();
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+		tx = pm.currentTransaction();
+		tx.begin();
+
+		Query query = pm.newQuery(PrimitiveObject.class);
+		query.setFilter("testString == :value");
+		query.setOrdering("testLong");
+
+		List<PrimitiveObject> results = (List<PrimitiveObject>) query
+				.execute("paged");
+
+		assertEquals(size, results.size());
+
+		for (int i = 0; i < size; i++) {
+			assertEquals(i, results.get(i).getTestLong());
+		}
+
+		pm.deletePersistentAll(results);
+
+		tx.commit();
+		pm.close();
+	}
+
+	/**
+	 * Tests results are populated from the default fetch group columns read
+	 * with the query
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testFetchDefaultGroup() {
+		PersistenceManager pm = pmf.getPersistenceManager();
+		Transaction tx = pm.currentTransaction();
+		tx.begin();
+
+		Query query = pm.newQuery(PrimitiveObject.class);
+		query.setFilter("testString == :value");
+		query.addExtension(JDOQLQuery.FETCH_DEFAULT_GROUP, "true");
+
+		List<PrimitiveObject> results = (List<PrimitiveObject>) query
+				.execute("two");
+
+		assertEquals(1, results.size());
+
+		PrimitiveObject result = results.get(0);
+
+		assertEquals(object2, result);
+		assertEquals(object2.getTestByte(), result.getTestByte());
+		assertEquals(object2.isTestBool(), result.isTestBool());
+		assertEquals(object2.getTestChar(), result.getTestChar());
+		assertEquals(object2.getTestDouble(), result.getTestDouble(), 0);
+		assertEquals(object2.getTestFloat(), result.getTestFloat(), 0);
+		assertEquals(object2.getTestInt(), result.getTestInt());
+		assertEquals(object2.getTestLong(), result.getTestLong());
+		assertEquals(object2.getTestShort(), result.getTestShort());
+		assertEquals(object2.getTestString(), result.getTestString());
+
+		tx.commit();
+		pm.close();
+	}
+
 }
\ No newline at end of file
@@ -0,0 +1,144 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+import javax.jdo.Query;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.InvitationToken;
+import com.spidertracks.datanucleus.model.LongEntity;
+
+/**
+ * Tests a range of a query ordered by the identity returns the same results
+ * when it's read in key order as when it's sorted in memory
+ *
+ * @author Todd Nine
+ *
+ */
+public class KeyOrderedQueryTest extends CassandraTest {
+
+	private static PersistenceManagerFactory orderedPmf;
+
+	@BeforeClass
+	public static void setupOrderedKeys() {
+		orderedPmf = JDOHelper.getPersistenceManagerFactory("TestOrderedKeys");
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRange() throws Exception {
+
+		PersistenceManager pm = pmf.getPersistenceManager();
+
+		for (int i = 0; i < 30; i++) {
+			InvitationToken token = new InvitationToken();
+			token.setToken(String.format("ordered%02d", i));
+
+			pm.makePersistent(token);
+		}
+
+		pm.close();
+
+		pm = pmf.getPersistenceManager();
+
+		Query query = pm.newQuery(InvitationToken.class);
+		query.setOrdering("token ascending");
+		query.setRange(5, 15);
+
+		List<InvitationToken> sorted = (List<InvitationToken>) query.execute();
+
+		PersistenceManager orderedPm = orderedPmf.getPersistenceManager();
+
+		query = orderedPm.newQuery(InvitationToken.class);
+		query.setOrdering("token ascending");
+		query.setRange(5, 15);
+
+		List<InvitationToken> ordered = (List<InvitationToken>) query
+				.execute();
+
+		assertEquals(10, ordered.size());
+		assertEquals(sorted.size(), ordered.size());
+
+		for (int i = 0; i < sorted.size(); i++) {
+			assertEquals(sorted.get(i).getToken(), ordered.get(i).getToken());
+		}
+
+		orderedPm.close();
+		pm.close();
+	}
+
+	/**
+	 * The bytes of a negative Long sort after the positive ones, so the query
+	 * must fall back to sorting the rows in memory
+	 * 
+	 * @throws Exception
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testSignedIdentityFallsBackToMemory() throws Exception {
+
+		PersistenceManager pm = orderedPmf.getPersistenceManager();
+
+		for (long i = -5; i < 5; i++) {
+			LongEntity entity = new LongEntity();
+			entity.setId(i);
+			entity.setTestVal("ordered" + i);
+
+			pm.makePersistent(entity);
+		}
+
+		pm.close();
+
+		pm = orderedPmf.getPersistenceManager();
+
+		Query query = pm.newQuery(LongEntity.class);
+		query.setOrdering("id ascending");
+
+		List<LongEntity> ordered = (List<LongEntity>) query.execute();
+
+		int found = 0;
+
+		for (int i = 0; i < ordered.size(); i++) {
+			long id = ordered.get(i).getId();
+
+			if (i > 0) {
+				assertTrue(ordered.get(i - 1).getId() < id);
+			}
+
+			if (id >= -5 && id < 5) {
+				found++;
+			}
+		}
+
+		assertEquals(10, found);
+
+		pm.close();
+	}
+
+}
@@ -0,0 +1,209 @@
+/**********************************************************************
+Copyright (c) 2010 Todd Nine. All rights reserved.
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+
+Contributors :
+    ...
+ ***********************************************************************/
+package com.spidertracks.datanucleus.query.runtime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.jdo.JDODataStoreException;
+import javax.jdo.JDOHelper;
+import javax.jdo.PersistenceManager;
+import javax.jdo.PersistenceManagerFactory;
+
+import org.datanucleus.exceptions.NucleusDataStoreException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scale7.cassandra.pelops.Bytes;
+
+import com.spidertracks.datanucleus.CassandraTest;
+import com.spidertracks.datanucleus.basic.model.PrimitiveObject;
+
+/**
+ * Tests the ranges of a split scan cover the ring, every row is returned and
+ * a range that stops fails the scan rather than dropping rows
+ * 
+ * @author Todd Nine
+ * 
+ */
+public class TokenRangeScanTest extends CassandraTest {
+
+	private ExecutorService executor;
+
+	@Before
+	public void createExecutor() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void shutdownExecutor() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testEveryRowReturned() {
+		FakeScan scan = new FakeScan(4, 25, 10, 0, 60000);
+
+		Set<Bytes> keys = new HashSet<Bytes>();
+
+		while (scan.hasNext()) {
+			for (Columns row : scan.next()) {
+				assertTrue(keys.add(row.getRowKey()));
+			}
+		}
+
+		assertEquals(4 * 25 * 10, keys.size());
+
+		// the ranges follow each other from the start to the end of the ring
+		BigInteger expected = TokenRangeScan.MIN_TOKEN;
+
+		for (Map.Entry<BigInteger, BigInteger> range : scan.ranges.entrySet()) {
+			assertEquals(expected, range.getKey());
+			expected = range.getValue();
+		}
+
+		assertEquals(TokenRangeScan.MAX_TOKEN, expected);
+	}
+
+	@Test
+	public void testSlowReaderFails() throws Exception {
+		// more pages than the scan holds, and they're never read in time
+		FakeScan scan = new FakeScan(2, 20, 1, 0, 50);
+
+		scan.hasNext();
+
+		Thread.sleep(500);
+
+		try {
+			while (scan.hasNext()) {
+				scan.next();
+			}
+
+			fail("The stopped ranges should fail the scan");
+		} catch (NucleusDataStoreException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCloseStopsRanges() throws Exception {
+		FakeScan scan = new FakeScan(2, 1000, 1, 10, 60000);
+
+		assertTrue(scan.hasNext());
+
+		scan.close();
+
+		executor.shutdown();
+
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = JDODataStoreException.class)
+	public void testSplitsNeedRandomPartitioner() {
+		// the test cluster uses the ByteOrderedPartitioner
+		PersistenceManagerFactory splitPmf = JDOHelper
+				.getPersistenceManagerFactory("TestScanSplits");
+
+		PersistenceManager pm = splitPmf.getPersistenceManager();
+
+		try {
+			pm.newQuery(PrimitiveObject.class).execute();
+		} finally {
+			pm.close();
+		}
+	}
+
+	/**
+	 * Scan that returns generated pages for every range instead of reading
+	 * them
+	 * 
+	 */
+	private class FakeScan extends TokenRangeScan {
+
+		private final int pages;
+
+		private final int rows;
+
+		private final long delay;
+
+		private final Map<BigInteger, BigInteger> ranges = Collections
+				.synchronizedMap(new TreeMap<BigInteger, BigInteger>());
+
+		private FakeScan(int splits, int pages, int rows, long delay,
+				long timeout) {
+			super(null, "cf", new Bytes[0], rows, null, splits, executor,
+					timeout);
+			this.pages = pages;
+			this.rows = rows;
+			this.delay = delay;
+		}
+
+		@Override
+		protected CandidatePages createRange(final String startToken,
+				String endToken) {
+
+			ranges.put(new BigInteger(startToken), new BigInteger(endToken));
+
+			return new CandidatePages() {
+
+				private int page;
+
+				@Override
+				protected Set<Columns> readPage() {
+					if (page == pages) {
+						return null;
+					}
+
+					if (delay > 0) {
+						try {
+							Thread.sleep(delay);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new NucleusDataStoreException("interrupted", e);
+						}
+					}
+
+					Set<Columns> result = new LinkedHashSet<Columns>();
+
+					for (int i = 0; i < rows; i++) {
+						result.add(new Columns(Bytes.fromUTF8(startToken + ":"
+								+ page + ":" + i)));
+					}
+
+					page++;
+
+					return result;
+				}
+
+			};
+		}
+	}
+
+}